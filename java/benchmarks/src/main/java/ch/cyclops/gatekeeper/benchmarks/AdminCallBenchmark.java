@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper.benchmarks;
+
+import ch.cyclops.gatekeeper.GKDriver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admin-only calls on a long lived driver, where the admin token is reused, compared with a fresh driver per call
+ * which has to obtain a new admin token first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdminCallBenchmark
+{
+    @Param({"0"})
+    public long latencyMs;
+
+    private GatekeeperStub stub;
+    private String config;
+    private GKDriver driver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        BenchmarkSupport.quietLogging();
+        stub = new GatekeeperStub(latencyMs, 10, 10);
+        config = stub.writeConfig();
+        driver = new GKDriver(config, BenchmarkSupport.ADMIN_UID, GatekeeperStub.PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        driver.close();
+        stub.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean isAdminReusedToken() throws Exception
+    {
+        return driver.isAdmin(ThreadLocalRandom.current().nextInt(1, 10000));
+    }
+
+    @Benchmark
+    public boolean isAdminFreshToken() throws Exception
+    {
+        try (GKDriver fresh = new GKDriver(config, BenchmarkSupport.ADMIN_UID, GatekeeperStub.PASSWORD))
+        {
+            return fresh.isAdmin(1);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper.benchmarks;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Helpers shared by the benchmark suites.
+ */
+final class BenchmarkSupport
+{
+    static final int ADMIN_UID = 1;
+
+    private BenchmarkSupport()
+    {
+    }
+
+    /**
+     * Silences log4j so that the benchmarks measure the driver and not the console.
+     */
+    static void quietLogging()
+    {
+        Logger.getRootLogger().removeAllAppenders();
+        Logger.getRootLogger().setLevel(Level.OFF);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-process imitation of the Gatekeeper REST api used by the benchmarks. Tokens starting with "good" or
+ * issued by the stub are valid, password "secret" is accepted for every user, all admin calls succeed with any token.
+ * Every response is delayed by the configured latency.
+ */
+public class GatekeeperStub implements AutoCloseable
+{
+    static
+    {
+        //the jdk server writes headers and body separately, without TCP_NODELAY every response waits for a delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    public static final String PASSWORD = "secret";
+    public static final String SERVICE_KEY = "bench-service-key";
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final AtomicInteger tokenCounter = new AtomicInteger();
+    private final AtomicInteger userCounter = new AtomicInteger(1000000);
+    private final long latencyMs;
+    private final byte[] userList;
+    private final byte[] serviceList;
+
+    /**
+     * Starts the stub on an ephemeral loopback port.
+     * <p>
+     * @param latencyMs simulated server latency added to every response
+     * @param users     number of users in the user listing
+     * @param services  number of services in the service listing
+     * @throws IOException  if the server socket cannot be bound
+     */
+    public GatekeeperStub(long latencyMs, int users, int services) throws IOException
+    {
+        this.latencyMs = latencyMs;
+        this.userList = buildUserList(users);
+        this.serviceList = buildServiceList(services);
+        workers = Executors.newFixedThreadPool(32);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 512);
+        server.setExecutor(workers);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Writes a driver configuration pointing at this stub.
+     * <p>
+     * @param extra additional configuration lines, may be empty
+     * @return  the path of the written configuration file
+     * @throws IOException  if the file cannot be written
+     */
+    public String writeConfig(String... extra) throws IOException
+    {
+        File conf = File.createTempFile("gatekeeper-bench", ".conf");
+        conf.deleteOnExit();
+        try (FileWriter writer = new FileWriter(conf))
+        {
+            writer.write("gatekeeper.uri = http://127.0.0.1\n");
+            writer.write("gatekeeper.port = " + getPort() + "\n");
+            for(String line : extra)
+                writer.write(line + "\n");
+        }
+        return conf.getAbsolutePath();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        int code = 404;
+        byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+
+        if(path.equals("/token/") && method.equals("POST"))
+        {
+            if(PASSWORD.equals(exchange.getRequestHeaders().getFirst("X-Auth-Password")))
+            {
+                code = 200;
+                body = ("{\"token\":{\"id\":\"issued-" + tokenCounter.incrementAndGet() + "\",\"expires\":\"\"}}").getBytes(StandardCharsets.UTF_8);
+            }
+            else code = 401;
+        }
+        else if(path.startsWith("/token/validate/"))
+        {
+            String token = path.substring("/token/validate/".length());
+            code = token.startsWith("good") || token.startsWith("issued-") ? 200 : 401;
+        }
+        else if(path.startsWith("/auth/"))
+        {
+            code = PASSWORD.equals(exchange.getRequestHeaders().getFirst("X-Auth-Password")) ? 202 : 401;
+        }
+        else if(path.equals("/admin/user/"))
+        {
+            code = 200;
+            if(method.equals("GET")) body = userList;
+            else body = ("{\"info\":[{\"id\":" + userCounter.incrementAndGet() + "}]}").getBytes(StandardCharsets.UTF_8);
+        }
+        else if(path.startsWith("/admin/user/"))
+        {
+            code = 200;
+            if(method.equals("GET")) body = "{\"info\":[{\"id\":1,\"isadmin\":\"y\"}]}".getBytes(StandardCharsets.UTF_8);
+        }
+        else if(path.equals("/admin/service/"))
+        {
+            code = 200;
+            if(method.equals("GET")) body = serviceList;
+            else body = ("{\"info\":[{\"service-uri\":\"/admin/service/" + userCounter.incrementAndGet()
+                    + "\",\"service-key\":\"" + SERVICE_KEY + "\"}]}").getBytes(StandardCharsets.UTF_8);
+        }
+        else if(path.startsWith("/password/"))
+        {
+            code = 200;
+        }
+
+        exchange.getRequestBody().close();
+        if(latencyMs > 0)
+        {
+            try
+            {
+                Thread.sleep(latencyMs);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Builds a user listing in the parallel array format of Gatekeeper.
+     * <p>
+     * @param users number of users
+     * @return  the utf-8 encoded listing
+     */
+    public static byte[] buildUserList(int users)
+    {
+        StringBuilder names = new StringBuilder("{\"userlist\":[");
+        StringBuilder ids = new StringBuilder("],\"userids\":[");
+        for(int i=0; i<users; i++)
+        {
+            if(i > 0)
+            {
+                names.append(',');
+                ids.append(',');
+            }
+            names.append("\"user-").append(i).append('"');
+            ids.append('"').append(i + 1).append('"');
+        }
+        return names.append(ids).append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a service listing in the parallel array format of Gatekeeper.
+     * <p>
+     * @param services  number of services
+     * @return  the utf-8 encoded listing
+     */
+    public static byte[] buildServiceList(int services)
+    {
+        StringBuilder names = new StringBuilder("{\"servicelist\":{\"shortname\":[");
+        StringBuilder keys = new StringBuilder("],\"service-key\":[");
+        StringBuilder ids = new StringBuilder("],\"id\":[");
+        for(int i=0; i<services; i++)
+        {
+            if(i > 0)
+            {
+                names.append(',');
+                keys.append(',');
+                ids.append(',');
+            }
+            names.append("\"service-").append(i).append('"');
+            keys.append("\"key-").append(i).append('"');
+            ids.append('"').append(i + 1).append('"');
+        }
+        return names.append(keys).append(ids).append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper.benchmarks;
+
+import ch.cyclops.gatekeeper.GKDriver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of token generation and of simple password authentication.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenerateTokenBenchmark
+{
+    @Param({"0"})
+    public long latencyMs;
+
+    private GatekeeperStub stub;
+    private GKDriver driver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        BenchmarkSupport.quietLogging();
+        stub = new GatekeeperStub(latencyMs, 10, 10);
+        driver = new GKDriver(stub.writeConfig(), BenchmarkSupport.ADMIN_UID, GatekeeperStub.PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        driver.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public String generateToken() throws Exception
+    {
+        return driver.generateToken(42, GatekeeperStub.PASSWORD);
+    }
+
+    @Benchmark
+    public boolean simpleAuthentication() throws Exception
+    {
+        return driver.simpleAuthentication(42, GatekeeperStub.PASSWORD);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper.benchmarks;
+
+import ch.cyclops.gatekeeper.GKDriver;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of fetching and parsing the user listing for small and huge deployments, through the legacy String adapter
+ * and through the streaming consumer api.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserListBenchmark
+{
+    @Param({"0"})
+    public long latencyMs;
+
+    @Param({"10", "50000"})
+    public int users;
+
+    private GatekeeperStub stub;
+    private GKDriver driver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        BenchmarkSupport.quietLogging();
+        stub = new GatekeeperStub(latencyMs, users, 10);
+        driver = new GKDriver(stub.writeConfig(), BenchmarkSupport.ADMIN_UID, GatekeeperStub.PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        driver.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public ArrayList<String> getUserList() throws Exception
+    {
+        return driver.getUserList();
+    }
+
+    @Benchmark
+    public boolean forEachUser(final Blackhole blackhole) throws Exception
+    {
+        return driver.forEachUser(blackhole::consume);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper.benchmarks;
+
+import ch.cyclops.gatekeeper.GKDriver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of token validation against a user-id and against a service-key, with and without the driver caches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidateTokenBenchmark
+{
+    @Param({"0"})
+    public long latencyMs;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private GatekeeperStub stub;
+    private GKDriver driver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        BenchmarkSupport.quietLogging();
+        stub = new GatekeeperStub(latencyMs, 10, 10);
+        driver = new GKDriver(stub.writeConfig("gatekeeper.cache.token.enabled = " + cached,
+                "gatekeeper.cache.service.enabled = " + cached), BenchmarkSupport.ADMIN_UID, GatekeeperStub.PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        driver.close();
+        stub.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean validateByUserId() throws Exception
+    {
+        return driver.validateToken("good-token", 42);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean validateByServiceKey() throws Exception
+    {
+        return driver.validateToken("good-token", GatekeeperStub.SERVICE_KEY);
+    }
+}
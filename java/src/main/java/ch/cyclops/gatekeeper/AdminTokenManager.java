@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Owns the admin token used by the admin-only calls of the driver. At most one token generation is in flight at any
+ * time, concurrent callers needing a token wait for that single result. Once a token is issued a renewal is scheduled
+ * ahead of its expiry so that admin calls normally find a valid token without waiting. A renewal that fails keeps the
+ * token, which is still valid, and is retried until the token expires.
+ */
+class AdminTokenManager implements AutoCloseable
+{
+    private static final long RENEWAL_RETRY_MILLIS = 5000;
+
+    private final Supplier<CompletableFuture<String>> source;
+    private final long lifetimeNanos;
+    private final long renewAheadMillis;
+    private final Logger logger;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile Token current;
+    private CompletableFuture<String> inFlight;
+    private ScheduledFuture<?> renewal;
+    private boolean closed;
+
+    /**
+     * @param source            generates a new admin token, the future completes with null if the credentials are rejected
+     * @param lifetimeMillis    how long an issued token is considered valid
+     * @param renewAheadMillis  how long before expiry the token is renewed in the background, 0 disables renewal
+     * @param scheduler         the timer of the driver, runs the renewals, may be null if renewal is disabled
+     * @param logger            the driver logger
+     */
+    AdminTokenManager(Supplier<CompletableFuture<String>> source, long lifetimeMillis, long renewAheadMillis,
+                      ScheduledExecutorService scheduler, Logger logger)
+    {
+        this.source = source;
+        this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(lifetimeMillis);
+        this.renewAheadMillis = Math.min(renewAheadMillis, lifetimeMillis);
+        this.logger = logger;
+        this.scheduler = renewAheadMillis > 0 ? scheduler : null;
+    }
+
+    /**
+     * Returns a valid admin token, generating one if none is held or the held one has expired.
+     * <p>
+     * @return  the admin token, an empty string if Gatekeeper rejected the admin credentials
+     * @throws Exception    if the token could not be generated
+     */
+    String getToken() throws Exception
+    {
+        return await(getTokenAsync());
+    }
+
+    /**
+     * Replaces a token that was rejected by Gatekeeper. If another caller already replaced it, the newer token is
+     * returned without contacting Gatekeeper again.
+     * <p>
+     * @param rejected  the token that was rejected
+     * @return  the new admin token, an empty string if Gatekeeper rejected the admin credentials
+     * @throws Exception    if the token could not be generated
+     */
+    String refresh(String rejected) throws Exception
+    {
+        return await(refreshAsync(rejected));
+    }
+
+    CompletableFuture<String> getTokenAsync()
+    {
+        Token t = current;
+        if(t != null && t.isValid(System.nanoTime())) return CompletableFuture.completedFuture(t.value);
+        return refreshAsync(t == null ? null : t.value);
+    }
+
+    CompletableFuture<String> refreshAsync(final String rejected)
+    {
+        synchronized (this)
+        {
+            Token t = current;
+            if(t != null && !t.value.equals(rejected) && t.isValid(System.nanoTime()))
+                return CompletableFuture.completedFuture(t.value);
+        }
+        return generate(rejected);
+    }
+
+    /**
+     * Renews a token ahead of its expiry. The token is kept if the renewal fails, the renewal is then retried while
+     * the token is still valid.
+     */
+    private void renew(final String token)
+    {
+        synchronized (this)
+        {
+            //replaced meanwhile, the new token has its own renewal
+            if(current == null || !current.value.equals(token)) return;
+        }
+        generate(null).whenComplete((renewed, error) -> {
+            if(error != null) retryRenewal(token);
+        });
+    }
+
+    /**
+     * Starts a token generation unless one is in flight already.
+     * <p>
+     * @param rejected  the token to forget if the generation fails, null to keep the current token
+     * @return  future completed with the new token, an empty string if Gatekeeper rejected the admin credentials
+     */
+    private CompletableFuture<String> generate(final String rejected)
+    {
+        final CompletableFuture<String> result;
+        synchronized (this)
+        {
+            if(inFlight != null) return inFlight;
+            result = inFlight = new CompletableFuture<String>();
+        }
+
+        CompletableFuture<String> generated;
+        try
+        {
+            generated = source.get();
+        }
+        catch (Throwable ex)
+        {
+            generated = new CompletableFuture<String>();
+            generated.completeExceptionally(ex);
+        }
+        generated.whenComplete((token, error) -> {
+            boolean issued = error == null && token != null && token.length() > 0;
+            synchronized (AdminTokenManager.this)
+            {
+                if(issued) current = new Token(token, System.nanoTime() + lifetimeNanos);
+                else if(rejected != null && current != null && current.value.equals(rejected)) current = null;
+                inFlight = null;
+            }
+            if(issued)
+            {
+                logger.debug("admin token issued, next renewal in " + (TimeUnit.NANOSECONDS.toMillis(lifetimeNanos) - renewAheadMillis) + "ms");
+                scheduleRenewal(token);
+            }
+            else if(error != null) logger.warn("admin token generation failed: " + error.getMessage());
+            else logger.error("admin credentials were rejected by Gatekeeper.");
+
+            if(error != null) result.completeExceptionally(error);
+            else result.complete(token == null ? "" : token);
+        });
+        return result;
+    }
+
+    /**
+     * Forgets the given token if it is still the current one, the next caller generates a new token.
+     * <p>
+     * @param rejected  the token that was rejected by Gatekeeper
+     */
+    synchronized void invalidate(String rejected)
+    {
+        if(current != null && current.value.equals(rejected)) current = null;
+    }
+
+    /**
+     * @return  the remaining lifetime in milliseconds of the current token, 0 if none is held
+     */
+    synchronized long remainingMillis()
+    {
+        return current != null ? Math.max(TimeUnit.NANOSECONDS.toMillis(current.expiresAt - System.nanoTime()), 0) : 0;
+    }
+
+    /**
+     * @return  the current token, null if none is held
+     */
+    String currentToken()
+    {
+        Token t = current;
+        return t != null ? t.value : null;
+    }
+
+    /**
+     * Adopts a token saved before a restart unless a token was issued meanwhile, its renewal is scheduled ahead of its
+     * remaining lifetime.
+     * <p>
+     * @param token             the saved token
+     * @param remainingMillis   the time the token is still valid
+     */
+    void restore(String token, long remainingMillis)
+    {
+        if(remainingMillis <= 0) return;
+        synchronized (this)
+        {
+            if(current != null || inFlight != null) return;
+            current = new Token(token, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(remainingMillis,
+                    TimeUnit.NANOSECONDS.toMillis(lifetimeNanos))));
+        }
+        scheduleRenewal(token, remainingMillis - renewAheadMillis);
+    }
+
+    private void scheduleRenewal(final String token)
+    {
+        scheduleRenewal(token, TimeUnit.NANOSECONDS.toMillis(lifetimeNanos) - renewAheadMillis);
+    }
+
+    private synchronized void retryRenewal(String token)
+    {
+        if(current == null || !current.value.equals(token)) return;
+        long retry = Math.min(RENEWAL_RETRY_MILLIS, TimeUnit.NANOSECONDS.toMillis(current.expiresAt - System.nanoTime()) / 2);
+        if(retry <= 0) return;
+        logger.debug("admin token renewal retried in " + retry + "ms");
+        scheduleRenewal(token, retry);
+    }
+
+    private synchronized void scheduleRenewal(final String token, long delay)
+    {
+        if(scheduler == null || closed) return;
+        if(renewal != null) renewal.cancel(false);
+        try
+        {
+            renewal = scheduler.schedule(() -> renew(token), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            //the driver is closing
+            renewal = null;
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+        if(renewal != null) renewal.cancel(false);
+    }
+
+    private static String await(CompletableFuture<String> future) throws Exception
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException ex)
+        {
+            if(ex.getCause() instanceof Exception) throw (Exception) ex.getCause();
+            throw ex;
+        }
+    }
+
+    private static final class Token
+    {
+        final String value;
+        final long expiresAt;
+
+        Token(String value, long expiresAt)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isValid(long now)
+        {
+            return expiresAt - now > 0;
+        }
+    }
+}
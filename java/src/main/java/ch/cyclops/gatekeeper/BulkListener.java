@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * Receives the outcome of every item of a bulk operation as soon as it completes. It is called from the OkHttp
+ * dispatcher threads and must not block.
+ * <p>
+ * @param <S>   the item type
+ * @param <R>   the result type
+ */
+public interface BulkListener<S, R>
+{
+    /**
+     * @param item      the completed item
+     * @param result    the result, null if the item failed
+     * @param error     the reason the item failed, null if it succeeded
+     * @param completed the number of items completed so far, including this one
+     */
+    void onItem(S item, R result, String error, long completed);
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The per-item outcome of a bulk operation. Items that failed can be passed to the same operation again, so that only
+ * they are retried.
+ * <p>
+ * @param <S>   the item type
+ * @param <R>   the result type
+ */
+public final class BulkResult<S, R>
+{
+    private final ConcurrentHashMap<S, R> succeeded = new ConcurrentHashMap<S, R>();
+    private final ConcurrentHashMap<S, String> failed = new ConcurrentHashMap<S, String>();
+    private volatile long elapsedMillis;
+
+    void succeeded(S item, R result)
+    {
+        succeeded.put(item, result);
+    }
+
+    void failed(S item, String error)
+    {
+        failed.put(item, error);
+    }
+
+    void finish(long elapsedMillis)
+    {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return  the result of every item that succeeded
+     */
+    public Map<S, R> getSucceeded()
+    {
+        return Collections.unmodifiableMap(succeeded);
+    }
+
+    /**
+     * @return  the reason every failed item failed
+     */
+    public Map<S, String> getFailed()
+    {
+        return Collections.unmodifiableMap(failed);
+    }
+
+    /**
+     * @return  the failed items, to be passed to the bulk operation again
+     */
+    public List<S> getFailedItems()
+    {
+        return new ArrayList<S>(failed.keySet());
+    }
+
+    public boolean isComplete()
+    {
+        return failed.isEmpty();
+    }
+
+    public long getElapsedMillis()
+    {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "succeeded=" + succeeded.size() + ", failed=" + failed.size() + ", elapsed=" + elapsedMillis + "ms";
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * Immutable snapshot of the counters of a driver side cache.
+ */
+public final class CacheStats
+{
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long expirationCount;
+    private final int size;
+    private final int maxEntries;
+
+    public CacheStats(long hitCount, long missCount, long evictionCount, long expirationCount, int size, int maxEntries)
+    {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.expirationCount = expirationCount;
+        this.size = size;
+        this.maxEntries = maxEntries;
+    }
+
+    public long getHitCount()
+    {
+        return hitCount;
+    }
+
+    public long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * @return  number of live entries dropped because the capacity was reached
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * @return  number of entries dropped because their time-to-live elapsed
+     */
+    public long getExpirationCount()
+    {
+        return expirationCount;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    /**
+     * @return  hits divided by lookups, 0 if the cache was never queried
+     */
+    public double getHitRate()
+    {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 0.0 : (double) hitCount / lookups;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + ", expirations="
+                + expirationCount + ", size=" + size + "/" + maxEntries;
+    }
+}
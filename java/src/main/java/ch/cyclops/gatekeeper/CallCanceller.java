@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets another thread abort calls made with CallOptions.cancelledBy(canceller). Cancelling aborts the request in
+ * flight, any pending retry and the wait for the admin token; a blocking call then raises
+ * java.util.concurrent.CancellationException, an asynchronous one completes its future as cancelled. A canceller may
+ * be shared by several calls, once cancelled it stays cancelled.
+ */
+public final class CallCanceller
+{
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    private final Set<Runnable> listeners = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Cancels every call made with this canceller, calls started afterwards fail immediately.
+     */
+    public void cancel()
+    {
+        cancelled.countDown();
+        for(Runnable listener : listeners) listener.run();
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled.getCount() == 0;
+    }
+
+    /**
+     * Registers an action run on cancellation, it runs right away if already cancelled.
+     */
+    void register(Runnable listener)
+    {
+        listeners.add(listener);
+        if(isCancelled() && listeners.remove(listener)) listener.run();
+    }
+
+    void unregister(Runnable listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Waits for the given time unless cancelled before.
+     * <p>
+     * @return  true if cancelled
+     */
+    boolean await(long millis) throws InterruptedException
+    {
+        return cancelled.await(millis, TimeUnit.MILLISECONDS);
+    }
+}
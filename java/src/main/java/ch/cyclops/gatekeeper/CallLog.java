@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-call log records of the driver, kept off the hot path. A record is only built if DEBUG is enabled for the driver
+ * logger and the call is sampled, one in sampleEvery calls on average. Records have a fixed key=value layout, e.g.
+ * <pre>call op=validateTokenByUser status=200 micros=812 attempt=1</pre>
+ * Secrets are never written: passwords are masked in request bodies and tokens are cut to a short prefix.
+ */
+final class CallLog
+{
+    private static final String[] SECRET_KEYS = {"password"};
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(96));
+
+    private final Logger logger;
+    private final int sampleEvery;
+
+    /**
+     * @param logger        the driver logger
+     * @param sampleEvery   one in this many calls is recorded, 1 records every call, 0 disables the records
+     */
+    CallLog(Logger logger, int sampleEvery)
+    {
+        this.logger = logger;
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * Records a call answered by Gatekeeper.
+     */
+    void record(GKOperation operation, int code, long nanos, int attempt)
+    {
+        if(!sampled()) return;
+        StringBuilder record = start(operation).append(" status=").append(code);
+        logger.debug(finish(record, nanos, attempt));
+    }
+
+    /**
+     * Records a call that failed before Gatekeeper answered.
+     */
+    void record(GKOperation operation, Exception error, long nanos, int attempt)
+    {
+        if(!sampled()) return;
+        StringBuilder record = start(operation).append(" status=error error=").append(error.getClass().getSimpleName());
+        logger.debug(finish(record, nanos, attempt));
+    }
+
+    private boolean sampled()
+    {
+        if(sampleEvery <= 0 || !logger.isDebugEnabled()) return false;
+        return sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+
+    private static StringBuilder start(GKOperation operation)
+    {
+        StringBuilder record = BUFFER.get();
+        record.setLength(0);
+        return record.append("call op=").append(operation.getMetricName());
+    }
+
+    private static String finish(StringBuilder record, long nanos, int attempt)
+    {
+        return record.append(" micros=").append(nanos / 1000).append(" attempt=").append(attempt).toString();
+    }
+
+    /**
+     * @return  the json body with the value of every secret key masked
+     */
+    static String redact(JSONObject body)
+    {
+        JSONObject copy = new JSONObject(body, JSONObject.getNames(body));
+        for(String key : SECRET_KEYS)
+            if(copy.has(key)) copy.put(key, "****");
+        return copy.toString();
+    }
+
+    /**
+     * @return  the first characters of a token, enough to correlate log lines without exposing the token
+     */
+    static String mask(String token)
+    {
+        if(token == null) return "null";
+        return token.length() <= 4 ? "****" : token.substring(0, 4) + "****";
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call limits overriding the driver configuration. The deadline covers the whole call: waiting for the admin
+ * token, every attempt and the backoff between attempts. Connect and read timeouts apply to every attempt. A call that
+ * runs out of time raises GKTimeoutException. Options are immutable, the with methods return a modified copy.
+ * <pre>
+ * driver.validateToken(token, uid, CallOptions.deadline(50, TimeUnit.MILLISECONDS));
+ * </pre>
+ * Calls made with options other than DEFAULT are not coalesced with identical calls in flight, so that they are never
+ * held up by a call with a longer deadline.
+ */
+public final class CallOptions
+{
+    /**
+     * No deadline beyond the retry deadline of the driver, the http timeouts of the driver configuration.
+     */
+    public static final CallOptions DEFAULT = new CallOptions(0, 0, 0, null);
+
+    private final long timeoutNanos;
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final CallCanceller canceller;
+
+    private CallOptions(long timeoutNanos, long connectTimeoutMillis, long readTimeoutMillis, CallCanceller canceller)
+    {
+        this.timeoutNanos = timeoutNanos;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.canceller = canceller;
+    }
+
+    /**
+     * @param timeout   the time the whole call may take, counted from the moment it is made
+     * @param unit      the unit of the timeout
+     * @return  options with the given deadline
+     */
+    public static CallOptions deadline(long timeout, TimeUnit unit)
+    {
+        return DEFAULT.withDeadline(timeout, unit);
+    }
+
+    public CallOptions withDeadline(long timeout, TimeUnit unit)
+    {
+        if(timeout <= 0) throw new IllegalArgumentException("timeout must be positive: " + timeout);
+        return new CallOptions(unit.toNanos(timeout), connectTimeoutMillis, readTimeoutMillis, canceller);
+    }
+
+    /**
+     * @param millis    the time allowed to open a connection, 0 for the driver configuration
+     */
+    public CallOptions withConnectTimeout(long millis)
+    {
+        return new CallOptions(timeoutNanos, millis, readTimeoutMillis, canceller);
+    }
+
+    /**
+     * @param millis    the time allowed between two reads from the connection, 0 for the driver configuration
+     */
+    public CallOptions withReadTimeout(long millis)
+    {
+        return new CallOptions(timeoutNanos, connectTimeoutMillis, millis, canceller);
+    }
+
+    /**
+     * @param canceller the canceller that may abort the call
+     */
+    public CallOptions cancelledBy(CallCanceller canceller)
+    {
+        return new CallOptions(timeoutNanos, connectTimeoutMillis, readTimeoutMillis, canceller);
+    }
+
+    /**
+     * @return  the deadline in milliseconds, 0 if none
+     */
+    public long getDeadlineMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    public long getConnectTimeoutMillis()
+    {
+        return connectTimeoutMillis;
+    }
+
+    public long getReadTimeoutMillis()
+    {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * @return  the canceller, null if none
+     */
+    public CallCanceller getCanceller()
+    {
+        return canceller;
+    }
+
+    boolean hasDeadline()
+    {
+        return timeoutNanos > 0;
+    }
+
+    boolean hasHttpTimeouts()
+    {
+        return connectTimeoutMillis > 0 || readTimeoutMillis > 0;
+    }
+
+    /**
+     * @param start the System.nanoTime() value at which the call was made
+     * @param retryDeadline the System.nanoTime() value at which the retry policy stops further attempts
+     * @return  the System.nanoTime() value at which the call must be finished
+     */
+    long deadlineNanos(long start, long retryDeadline)
+    {
+        if(!hasDeadline()) return retryDeadline;
+        long own = start + timeoutNanos;
+        return own - retryDeadline < 0 ? own : retryDeadline;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count based circuit breaker guarding one class of Gatekeeper endpoints. The outcome of the last windowSize calls is
+ * kept; once at least minimumCalls outcomes are known and either the failure rate or the slow call rate reaches its
+ * threshold the breaker opens and calls are refused without contacting Gatekeeper. After the open duration the
+ * breaker lets a limited number of probe calls through (half-open), it closes again if all of them succeed and
+ * reopens on the first failed or slow probe.
+ * <p>
+ * A call fails when it raises an i/o error or Gatekeeper answers with a 5xx status, a call is slow when its response
+ * takes longer than the slow call duration. Client errors (4xx) count as successful calls.
+ */
+public class CircuitBreaker implements CircuitBreakerMBean
+{
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private final String name;
+    private final byte[] window;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int halfOpenProbes;
+    private final Logger logger;
+
+    private State state = State.CLOSED;
+    private int next;
+    private int recorded;
+    private int failed;
+    private int slow;
+    private long openedAt;
+    private int probesIssued;
+    private int probesSucceeded;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder toOpen = new LongAdder();
+    private final LongAdder toHalfOpen = new LongAdder();
+    private final LongAdder toClosed = new LongAdder();
+
+    /**
+     * @param name                  name of the guarded endpoint class, used in logs and JMX
+     * @param windowSize            number of recent calls the rates are computed over
+     * @param minimumCalls          number of calls needed in the window before the breaker may open
+     * @param failureRateThreshold  failure rate in percent at which the breaker opens
+     * @param slowCallRateThreshold slow call rate in percent at which the breaker opens
+     * @param slowCallMillis        duration above which a call counts as slow
+     * @param openMillis            how long calls are refused before probing
+     * @param halfOpenProbes        number of probe calls let through while half-open
+     * @param logger                the driver logger
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold, double slowCallRateThreshold,
+                          long slowCallMillis, long openMillis, int halfOpenProbes, Logger logger)
+    {
+        if(windowSize < 1 || halfOpenProbes < 1)
+            throw new IllegalArgumentException("windowSize and halfOpenProbes must be at least 1");
+        this.name = name;
+        this.window = new byte[windowSize];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, windowSize));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenProbes = halfOpenProbes;
+        this.logger = logger;
+    }
+
+    /**
+     * Reads the breaker settings from the gatekeeper.breaker.&lt;name&gt;.* keys, falling back to the shared
+     * gatekeeper.breaker.* keys and then to the defaults.
+     * <p>
+     * @param name      name of the guarded endpoint class
+     * @param config    the driver configuration
+     * @param logger    the driver logger
+     * @return  the configured breaker
+     */
+    public static CircuitBreaker fromConfiguration(String name, Configuration config, Logger logger)
+    {
+        String prefix = "gatekeeper.breaker." + name + ".";
+        return new CircuitBreaker(name,
+                config.getInt(prefix + "windowSize", config.getInt("gatekeeper.breaker.windowSize", 50)),
+                config.getInt(prefix + "minimumCalls", config.getInt("gatekeeper.breaker.minimumCalls", 20)),
+                config.getDouble(prefix + "failureRate", config.getDouble("gatekeeper.breaker.failureRate", 50)),
+                config.getDouble(prefix + "slowCallRate", config.getDouble("gatekeeper.breaker.slowCallRate", 80)),
+                config.getLong(prefix + "slowCall", config.getLong("gatekeeper.breaker.slowCall", 2000)),
+                config.getLong(prefix + "open", config.getLong("gatekeeper.breaker.open", 10000)),
+                config.getInt(prefix + "halfOpenProbes", config.getInt("gatekeeper.breaker.halfOpenProbes", 3)),
+                logger);
+    }
+
+    /**
+     * Asks for permission to make a call. Every granted call must be followed by onResult or release.
+     * <p>
+     * @return  true if the call may go ahead, false if it must fail fast
+     */
+    public synchronized boolean tryAcquire()
+    {
+        if(state == State.OPEN)
+        {
+            if(System.nanoTime() - openedAt < openNanos)
+            {
+                rejected.increment();
+                return false;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if(state == State.HALF_OPEN)
+        {
+            if(probesIssued >= halfOpenProbes)
+            {
+                rejected.increment();
+                return false;
+            }
+            probesIssued++;
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of a granted call.
+     * <p>
+     * @param failure       true if the call raised an i/o error or Gatekeeper answered with a server error
+     * @param durationNanos how long the call took until the response headers were received
+     */
+    public synchronized void onResult(boolean failure, long durationNanos)
+    {
+        boolean isSlow = durationNanos > slowCallNanos;
+        switch (state)
+        {
+            case CLOSED:
+                record((byte) ((failure ? FAILED : 0) | (isSlow ? SLOW : 0)));
+                if(recorded >= minimumCalls && (failureRate() >= failureRateThreshold || slowCallRate() >= slowCallRateThreshold))
+                    transition(State.OPEN);
+                break;
+            case HALF_OPEN:
+                if(failure || isSlow) transition(State.OPEN);
+                else if(++probesSucceeded >= halfOpenProbes) transition(State.CLOSED);
+                break;
+            default:
+                //a call granted before the breaker opened, its outcome is no longer relevant
+        }
+    }
+
+    /**
+     * Returns the permission of a granted call that ended without an outcome, for instance because it was cancelled.
+     */
+    public synchronized void release()
+    {
+        if(state == State.HALF_OPEN && probesIssued > probesSucceeded) probesIssued--;
+    }
+
+    private void record(byte outcome)
+    {
+        if(recorded == window.length)
+        {
+            byte old = window[next];
+            if((old & FAILED) != 0) failed--;
+            if((old & SLOW) != 0) slow--;
+        }
+        else
+        {
+            recorded++;
+        }
+        window[next] = outcome;
+        if((outcome & FAILED) != 0) failed++;
+        if((outcome & SLOW) != 0) slow++;
+        next = (next + 1) % window.length;
+    }
+
+    private void transition(State target)
+    {
+        logger.warn("circuit breaker '" + name + "' " + state + " -> " + target + ", failure rate=" + failureRate()
+                + "%, slow call rate=" + slowCallRate() + "%");
+        state = target;
+        switch (target)
+        {
+            case OPEN:
+                openedAt = System.nanoTime();
+                toOpen.increment();
+                break;
+            case HALF_OPEN:
+                probesIssued = 0;
+                probesSucceeded = 0;
+                toHalfOpen.increment();
+                break;
+            default:
+                toClosed.increment();
+        }
+        if(target != State.HALF_OPEN)
+        {
+            next = recorded = failed = slow = 0;
+        }
+    }
+
+    private double failureRate()
+    {
+        return recorded == 0 ? 0 : failed * 100.0 / recorded;
+    }
+
+    private double slowCallRate()
+    {
+        return recorded == 0 ? 0 : slow * 100.0 / recorded;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public synchronized State currentState()
+    {
+        return state;
+    }
+
+    @Override
+    public synchronized String getState()
+    {
+        return state.name();
+    }
+
+    @Override
+    public synchronized double getFailureRate()
+    {
+        return failureRate();
+    }
+
+    @Override
+    public synchronized double getSlowCallRate()
+    {
+        return slowCallRate();
+    }
+
+    @Override
+    public long getRejectedCalls()
+    {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getTransitionsToOpen()
+    {
+        return toOpen.sum();
+    }
+
+    @Override
+    public long getTransitionsToHalfOpen()
+    {
+        return toHalfOpen.sum();
+    }
+
+    @Override
+    public long getTransitionsToClosed()
+    {
+        return toClosed.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + ": state=" + getState() + ", failureRate=" + getFailureRate() + "%, slowCallRate=" + getSlowCallRate()
+                + "%, rejected=" + getRejectedCalls() + ", opened=" + getTransitionsToOpen();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * JMX view of a circuit breaker. Rates are percentages of the calls in the sliding window.
+ */
+public interface CircuitBreakerMBean
+{
+    String getState();
+
+    double getFailureRate();
+
+    double getSlowCallRate();
+
+    long getRejectedCalls();
+
+    long getTransitionsToOpen();
+
+    long getTransitionsToHalfOpen();
+
+    long getTransitionsToClosed();
+}
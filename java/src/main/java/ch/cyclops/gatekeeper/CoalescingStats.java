@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * Immutable snapshot of the request coalescing counters of one operation.
+ */
+public final class CoalescingStats
+{
+    private final long executedCount;
+    private final long collapsedCount;
+
+    public CoalescingStats(long executedCount, long collapsedCount)
+    {
+        this.executedCount = executedCount;
+        this.collapsedCount = collapsedCount;
+    }
+
+    /**
+     * @return  number of calls that were sent to Gatekeeper
+     */
+    public long getExecutedCount()
+    {
+        return executedCount;
+    }
+
+    /**
+     * @return  number of calls answered by joining an identical call already in flight
+     */
+    public long getCollapsedCount()
+    {
+        return collapsedCount;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "executed=" + executedCount + ", collapsed=" + collapsedCount;
+    }
+}
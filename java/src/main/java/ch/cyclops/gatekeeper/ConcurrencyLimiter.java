@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.commons.configuration.Configuration;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive limit on the number of calls a driver has in flight to Gatekeeper. The limit follows the AIMD scheme
+ * driven by the measured round trip time: every call answered within tolerance times the minimum round trip time
+ * raises the limit by 1/limit, so by about one per round trip while the limit is in use; a call that is slower, fails
+ * with an i/o error or is answered with 429 or 503 cuts the limit by the backoff ratio. Only calls sent after the last
+ * cut may cut it again, so one burst of slow answers counts once. The minimum round trip time is measured over a
+ * window of calls and replaced by the minimum of the last window, so that the limiter follows a server that became
+ * permanently slower.
+ * <p>
+ * Calls beyond the limit wait in a bounded FIFO queue until a slot frees up or the queue timeout expires, a call that
+ * finds the queue full, or that waited too long, fails with GKLimitExceededException without calling Gatekeeper.
+ */
+public class ConcurrencyLimiter implements ConcurrencyLimiterMBean
+{
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoffRatio;
+    private final int rttWindow;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+    private final ScheduledExecutorService timer;
+
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<CompletableFuture<Void>>();
+    private double limit;
+    private int inFlight;
+    private long minRtt = Long.MAX_VALUE;
+    private long windowMinRtt = Long.MAX_VALUE;
+    private int windowSamples;
+    private long lastDecrease = System.nanoTime();
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * @param initialLimit      number of calls allowed in flight before the first measurement
+     * @param minLimit          lower bound of the limit, at least 1
+     * @param maxLimit          upper bound of the limit
+     * @param tolerance         factor over the minimum round trip time above which a call counts as slow, above 1
+     * @param backoffRatio      factor applied to the limit on a slow or failed call, between 0 and 1
+     * @param rttWindow         number of calls after which the minimum round trip time is measured anew
+     * @param maxQueue          number of calls that may wait for a slot, 0 to refuse calls beyond the limit right away
+     * @param queueTimeoutMillis    longest time a call waits for a slot
+     * @param timer             the timer of the driver, expires the waits of asynchronous calls
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance, double backoffRatio, int rttWindow,
+                              int maxQueue, long queueTimeoutMillis, ScheduledExecutorService timer)
+    {
+        if(minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("limits must satisfy 1 <= min <= max: " + minLimit + ", " + maxLimit);
+        if(tolerance <= 1) throw new IllegalArgumentException("tolerance must be above 1: " + tolerance);
+        if(backoffRatio <= 0 || backoffRatio >= 1) throw new IllegalArgumentException("backoff must be between 0 and 1: " + backoffRatio);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoffRatio = backoffRatio;
+        this.rttWindow = Math.max(1, rttWindow);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.timer = timer;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Reads the limiter settings from the gatekeeper.limiter.* keys of the driver configuration.
+     * <p>
+     * @param config    the driver configuration
+     * @param timer     the timer of the driver
+     * @return  the configured limiter, defaults are used for missing keys
+     */
+    public static ConcurrencyLimiter fromConfiguration(Configuration config, ScheduledExecutorService timer)
+    {
+        return new ConcurrencyLimiter(config.getInt("gatekeeper.limiter.initial", 20),
+                config.getInt("gatekeeper.limiter.min", 4),
+                config.getInt("gatekeeper.limiter.max", Math.min(200, config.getInt("gatekeeper.http.maxRequests", 64))),
+                config.getDouble("gatekeeper.limiter.tolerance", 2.0),
+                config.getDouble("gatekeeper.limiter.backoff", 0.9),
+                config.getInt("gatekeeper.limiter.rttWindow", 500),
+                config.getInt("gatekeeper.limiter.queue", 100),
+                config.getLong("gatekeeper.limiter.queue.timeout", 200),
+                timer);
+    }
+
+    /**
+     * Waits for a slot. Every granted slot must be returned with onSample or release.
+     * <p>
+     * @param maxWaitNanos  upper bound of the wait, for instance the time left until the call deadline, the queue
+     *                      timeout applies if it is lower
+     * @throws GKLimitExceededException if the queue is full or no slot freed up in time
+     * @throws InterruptedException     if the thread was interrupted while waiting, no slot is held then
+     */
+    public void acquire(long maxWaitNanos) throws GKLimitExceededException, InterruptedException
+    {
+        CompletableFuture<Void> waiter = enqueue();
+        if(waiter == null) return;
+        try
+        {
+            waiter.get(Math.min(maxWaitNanos, queueTimeoutNanos), TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException ex)
+        {
+            GKLimitExceededException timeout = new GKLimitExceededException(getLimit(), true);
+            if(expire(waiter, timeout)) throw timeout;
+        }
+        catch (InterruptedException ex)
+        {
+            if(!waiter.cancel(false)) release();
+            throw ex;
+        }
+        catch (ExecutionException ex)
+        {
+            throw (GKLimitExceededException) ex.getCause();
+        }
+    }
+
+    /**
+     * Asynchronous counterpart of acquire, no thread is blocked while waiting. Cancelling the returned future gives up
+     * the wait, a slot granted before is not returned by cancelling.
+     * <p>
+     * @param maxWaitNanos  upper bound of the wait, the queue timeout applies if it is lower
+     * @return  future completed once the slot is granted, or exceptionally with GKLimitExceededException
+     */
+    public CompletableFuture<Void> acquireAsync(long maxWaitNanos)
+    {
+        CompletableFuture<Void> waiter;
+        try
+        {
+            waiter = enqueue();
+        }
+        catch (GKLimitExceededException ex)
+        {
+            CompletableFuture<Void> refused = new CompletableFuture<Void>();
+            refused.completeExceptionally(ex);
+            return refused;
+        }
+        if(waiter == null) return CompletableFuture.completedFuture(null);
+        final CompletableFuture<Void> queued = waiter;
+        try
+        {
+            ScheduledFuture<?> expiry = timer.schedule(() -> expire(queued, new GKLimitExceededException(getLimit(), true)),
+                    Math.min(maxWaitNanos, queueTimeoutNanos), TimeUnit.NANOSECONDS);
+            queued.whenComplete((value, error) -> expiry.cancel(false));
+        }
+        catch (RejectedExecutionException ex)
+        {
+            queued.completeExceptionally(ex);
+        }
+        return queued;
+    }
+
+    /**
+     * Returns the slot of a call that was answered or failed and adapts the limit.
+     * <p>
+     * @param rttNanos  time from sending the request to receiving the response headers or the error
+     * @param dropped   true if the call failed with an i/o error or Gatekeeper signalled overload (429, 503)
+     */
+    public void onSample(long rttNanos, boolean dropped)
+    {
+        synchronized (this)
+        {
+            boolean busy = inFlight * 2 >= limit;
+            inFlight--;
+            if(!dropped) trackRtt(rttNanos);
+            long now = System.nanoTime();
+            if(dropped || rttNanos > minRtt * tolerance)
+            {
+                //only calls sent after the last cut reflect it
+                if(now - rttNanos - lastDecrease > 0)
+                {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastDecrease = now;
+                }
+            }
+            else if(busy)
+            {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Returns the slot of a call that ended without a meaningful round trip, for instance because it was cancelled or
+     * refused by the circuit breaker.
+     */
+    public void release()
+    {
+        synchronized (this)
+        {
+            inFlight--;
+        }
+        drain();
+    }
+
+    /**
+     * @return  null if a slot was granted right away, else the waiter queued for a slot
+     */
+    private CompletableFuture<Void> enqueue() throws GKLimitExceededException
+    {
+        final CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+        synchronized (this)
+        {
+            if(inFlight < (int) limit && waiters.isEmpty())
+            {
+                inFlight++;
+                return null;
+            }
+            if(waiters.size() >= maxQueue)
+            {
+                rejected.increment();
+                throw new GKLimitExceededException((int) limit, false);
+            }
+            waiters.add(waiter);
+        }
+        waiter.whenComplete((value, error) -> {
+            if(error == null) return;
+            synchronized (this)
+            {
+                waiters.remove(waiter);
+            }
+        });
+        return waiter;
+    }
+
+    /**
+     * @return  false if the waiter was granted a slot meanwhile
+     */
+    private boolean expire(CompletableFuture<Void> waiter, GKLimitExceededException timeout)
+    {
+        if(!waiter.completeExceptionally(timeout)) return false;
+        timedOut.increment();
+        return true;
+    }
+
+    /**
+     * Hands free slots to the waiters in arrival order.
+     */
+    private void drain()
+    {
+        while(true)
+        {
+            CompletableFuture<Void> next;
+            synchronized (this)
+            {
+                if(inFlight >= (int) limit || waiters.isEmpty()) return;
+                next = waiters.poll();
+                inFlight++;
+            }
+            if(!next.complete(null))
+            {
+                //the waiter gave up meanwhile
+                synchronized (this)
+                {
+                    inFlight--;
+                }
+            }
+        }
+    }
+
+    private void trackRtt(long rttNanos)
+    {
+        if(rttNanos < minRtt) minRtt = rttNanos;
+        if(rttNanos < windowMinRtt) windowMinRtt = rttNanos;
+        if(++windowSamples >= rttWindow)
+        {
+            minRtt = windowMinRtt;
+            windowMinRtt = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+    }
+
+    @Override
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized int getQueueDepth()
+    {
+        return waiters.size();
+    }
+
+    @Override
+    public synchronized long getMinRttMicros()
+    {
+        return minRtt == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMicros(minRtt);
+    }
+
+    @Override
+    public long getRejectedCalls()
+    {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getTimedOutWaits()
+    {
+        return timedOut.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "limit=" + getLimit() + ", inFlight=" + getInFlight() + ", queued=" + getQueueDepth() + ", minRtt="
+                + getMinRttMicros() + "us, rejected=" + getRejectedCalls() + ", timedOut=" + getTimedOutWaits();
+    }
+}
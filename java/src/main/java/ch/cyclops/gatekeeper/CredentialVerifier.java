@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Answers repeated simpleAuthentication checks locally. After Gatekeeper accepted a password, a PBKDF2 hash of it is
+ * kept for the user with a fresh random salt, never the password itself. A later check with the same password is
+ * accepted by comparing hashes in constant time; any other password is sent to Gatekeeper, so a new password set
+ * elsewhere is accepted right away. The old password however keeps being accepted until its entry expires, unless the
+ * password was updated or the user deleted through the driver, or through another driver of the invalidation bus.
+ * <p>
+ * A check racing with such an update must not remember the old password: every user maps to a generation that is
+ * bumped on invalidation, a password is only recorded if the generation read before asking Gatekeeper is unchanged.
+ */
+class CredentialVerifier
+{
+    private static final int HASH_BITS = 256;
+    private static final int GENERATION_STRIPES = 64;
+
+    private final ExpiringLruCache<Integer, Verifier> verifiers;
+    private final long ttlMillis;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    /**
+     * @param maxEntries    the number of users whose credentials are remembered
+     * @param ttlMillis     how long an accepted password is answered locally
+     * @param iterations    the PBKDF2 iteration count, the cost of every local check and of every remembered password
+     */
+    CredentialVerifier(int maxEntries, long ttlMillis, int iterations)
+    {
+        this.verifiers = new ExpiringLruCache<Integer, Verifier>(maxEntries);
+        this.ttlMillis = ttlMillis;
+        this.iterations = iterations;
+    }
+
+    /**
+     * @return  true if the password was recently accepted by Gatekeeper for this user, false if it has to be checked
+     */
+    boolean verify(int userId, String password)
+    {
+        Verifier verifier = verifiers.get(userId);
+        return verifier != null && MessageDigest.isEqual(verifier.hash, hash(password, verifier.salt));
+    }
+
+    /**
+     * @return  the current generation of the user, to be read before asking Gatekeeper and passed to record
+     */
+    long generation(int userId)
+    {
+        return generations.get(stripe(userId));
+    }
+
+    /**
+     * Remembers a password Gatekeeper accepted for a user, unless the credentials of the user were invalidated since
+     * the generation was read.
+     * <p>
+     * @param generation    the generation of the user read before Gatekeeper was asked
+     */
+    void record(int userId, String password, long generation)
+    {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        Verifier verifier = new Verifier(salt, hash(password, salt));
+        synchronized (this)
+        {
+            if(generations.get(stripe(userId)) == generation) verifiers.put(userId, verifier, ttlMillis);
+        }
+    }
+
+    synchronized void invalidate(int userId)
+    {
+        generations.incrementAndGet(stripe(userId));
+        verifiers.invalidate(userId);
+    }
+
+    synchronized void invalidateAll()
+    {
+        for(int i=0; i<GENERATION_STRIPES; i++)
+            generations.incrementAndGet(i);
+        verifiers.invalidateAll();
+    }
+
+    private static int stripe(int userId)
+    {
+        return (userId ^ (userId >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    CacheStats getStats()
+    {
+        return verifiers.getStats();
+    }
+
+    private byte[] hash(String password, byte[] salt)
+    {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try
+        {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", ex);
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    private static final class Verifier
+    {
+        final byte[] salt;
+        final byte[] hash;
+
+        Verifier(byte[] salt, byte[] hash)
+        {
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.List;
+
+/**
+ * Receives the differences between two consecutive snapshots of a GatekeeperDirectory. A user or service whose
+ * attributes changed, for instance a service whose key was rotated, is reported as removed and added.
+ */
+public interface DirectoryListener
+{
+    /**
+     * Called from the refresh thread after a new snapshot was published, only if something changed.
+     * <p>
+     * @param snapshot          the snapshot now published
+     * @param addedUsers        users not present in the previous snapshot
+     * @param removedUsers      users no longer present
+     * @param addedServices     services not present in the previous snapshot
+     * @param removedServices   services no longer present
+     */
+    void directoryChanged(DirectorySnapshot snapshot, List<GKUser> addedUsers, List<GKUser> removedUsers,
+                          List<GKService> addedServices, List<GKService> removedServices);
+}
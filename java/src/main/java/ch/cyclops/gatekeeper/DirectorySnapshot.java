@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.*;
+
+/**
+ * Immutable view of the users and services registered with Gatekeeper at one point in time, indexed for constant
+ * time lookups.
+ */
+public final class DirectorySnapshot
+{
+    static final DirectorySnapshot EMPTY = new DirectorySnapshot(Collections.<GKUser>emptyList(), Collections.<GKService>emptyList(), 0);
+
+    private final Map<Integer, GKUser> usersById;
+    private final Map<String, GKUser> usersByName;
+    private final Map<String, GKService> servicesByName;
+    private final Map<String, GKService> servicesByKey;
+    private final long createdAt;
+
+    DirectorySnapshot(Collection<GKUser> users, Collection<GKService> services, long createdAt)
+    {
+        HashMap<Integer, GKUser> byId = new HashMap<Integer, GKUser>(users.size() * 2);
+        HashMap<String, GKUser> byName = new HashMap<String, GKUser>(users.size() * 2);
+        for(GKUser user : users)
+        {
+            byId.put(user.getId(), user);
+            byName.put(user.getUsername(), user);
+        }
+        HashMap<String, GKService> sByName = new HashMap<String, GKService>(services.size() * 2);
+        HashMap<String, GKService> sByKey = new HashMap<String, GKService>(services.size() * 2);
+        for(GKService service : services)
+        {
+            sByName.put(service.getShortName(), service);
+            sByKey.put(service.getKey(), service);
+        }
+        this.usersById = Collections.unmodifiableMap(byId);
+        this.usersByName = Collections.unmodifiableMap(byName);
+        this.servicesByName = Collections.unmodifiableMap(sByName);
+        this.servicesByKey = Collections.unmodifiableMap(sByKey);
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * @param userId    the user-id
+     * @return  the user, null if unknown
+     */
+    public GKUser getUserById(int userId)
+    {
+        return usersById.get(userId);
+    }
+
+    /**
+     * @param username  the username
+     * @return  the user, null if unknown
+     */
+    public GKUser getUserByName(String username)
+    {
+        return usersByName.get(username);
+    }
+
+    /**
+     * @param shortName the service short-name
+     * @return  the service, null if unknown
+     */
+    public GKService getServiceByName(String shortName)
+    {
+        return servicesByName.get(shortName);
+    }
+
+    /**
+     * @param serviceKey    the service-key
+     * @return  the service, null if unknown
+     */
+    public GKService getServiceByKey(String serviceKey)
+    {
+        return servicesByKey.get(serviceKey);
+    }
+
+    public Collection<GKUser> getUsers()
+    {
+        return usersById.values();
+    }
+
+    public Collection<GKService> getServices()
+    {
+        return servicesByKey.values();
+    }
+
+    /**
+     * @return  the wall clock time in milliseconds at which the listings were fetched, 0 for the initial empty snapshot
+     */
+    public long getCreatedAt()
+    {
+        return createdAt;
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.*;
+import okio.Timeout;
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Spreads the calls of a driver over one or more Gatekeeper replicas. Every call is sent to the available endpoint
+ * with the fewest requests awaiting a response, either chosen among all endpoints (least) or among two picked at
+ * random (p2c). An endpoint failing with an i/o error is taken out of rotation for the ejection time, periodic health
+ * checks take endpoints out of rotation and bring them back.
+ * <p>
+ * With more than one endpoint, validation calls (validateToken and simpleAuthentication) can be hedged: if no response
+ * arrived within the latency percentile of the operation observed over the recent window, a second request is sent to
+ * another endpoint and the first response wins, the other request is cancelled and left out of the metrics.
+ */
+final class EndpointRouter implements Call.Factory, AutoCloseable
+{
+    private final List<GKEndpoint> endpoints;
+    private final OkHttpClient client;
+    private final boolean powerOfTwo;
+    private final long ejectionMillis;
+    private final GKMetrics metrics;
+    private final Logger logger;
+    private final ScheduledExecutorService timer;
+
+    private final boolean hedging;
+    private final double hedgePercentile;
+    private final long hedgeInitialDelay;
+    private final long hedgeMinDelay;
+    private final long hedgeMinSamples;
+    private final long hedgeWindowNanos;
+    private final AtomicLongArray hedgeDelays = new AtomicLongArray(GKOperation.values().length);
+    private final AtomicLongArray hedgeDelaysAt = new AtomicLongArray(GKOperation.values().length);
+    private final HedgeWindow[] hedgeWindows = new HedgeWindow[GKOperation.values().length];
+
+    private ScheduledFuture<?> healthChecks;
+
+    /**
+     * @param endpoints the base urls of the replicas, at least one
+     * @param client    the http client of the driver
+     * @param config    the driver configuration
+     * @param metrics   the driver metrics, used for the hedging delay
+     * @param timer     runs health checks and hedges, may be null if neither is configured
+     * @param logger    the driver logger
+     */
+    EndpointRouter(List<HttpUrl> endpoints, OkHttpClient client, Configuration config, GKMetrics metrics,
+                   ScheduledExecutorService timer, Logger logger)
+    {
+        ArrayList<GKEndpoint> list = new ArrayList<GKEndpoint>(endpoints.size());
+        for(HttpUrl url : endpoints) list.add(new GKEndpoint(url));
+        this.endpoints = Collections.unmodifiableList(list);
+        this.client = client;
+        this.powerOfTwo = !"least".equalsIgnoreCase(config.getString("gatekeeper.balancer", "p2c"));
+        this.ejectionMillis = config.getLong("gatekeeper.endpoint.ejection", 5000);
+        this.metrics = metrics;
+        this.logger = logger;
+        this.timer = timer;
+        this.hedging = isHedging(endpoints, config);
+        if(config.getBoolean("gatekeeper.hedge.enabled", false) && !hedging)
+            logger.info("hedging needs more than one gatekeeper endpoint, it stays disabled.");
+        this.hedgePercentile = config.getDouble("gatekeeper.hedge.percentile", 95);
+        this.hedgeInitialDelay = config.getLong("gatekeeper.hedge.delay", 50);
+        this.hedgeMinDelay = config.getLong("gatekeeper.hedge.minDelay", 5);
+        this.hedgeMinSamples = config.getLong("gatekeeper.hedge.minSamples", 100);
+        this.hedgeWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1000, config.getLong("gatekeeper.hedge.window", 10000)));
+        for(int i=0; i<hedgeDelays.length(); i++)
+            hedgeDelays.set(i, hedgeInitialDelay);
+    }
+
+    private static boolean isHedging(List<HttpUrl> endpoints, Configuration config)
+    {
+        return endpoints.size() > 1 && config.getBoolean("gatekeeper.hedge.enabled", false);
+    }
+
+    /**
+     * @return  true if the router needs the timer of the driver for the given configuration
+     */
+    static boolean needsTimer(List<HttpUrl> endpoints, Configuration config)
+    {
+        return isHedging(endpoints, config)
+                || (endpoints.size() > 1 && config.getLong("gatekeeper.health.interval", 5000) > 0);
+    }
+
+    /**
+     * Starts the periodic health checks, a GET on the health path of every endpoint. An endpoint is healthy if it
+     * answers with a status below 500 within the health check timeout.
+     */
+    void startHealthChecks(String path, long intervalMillis, long timeoutMillis)
+    {
+        if(endpoints.size() < 2 || intervalMillis <= 0) return;
+        final OkHttpClient checker = client.newBuilder().callTimeout(timeoutMillis, TimeUnit.MILLISECONDS).build();
+        final long downMillis = 2 * intervalMillis;
+        healthChecks = timer.scheduleWithFixedDelay(() -> {
+            for(final GKEndpoint endpoint : endpoints)
+            {
+                Request probe = new Request.Builder().url(endpoint.getUrl() + path.substring(path.startsWith("/") ? 1 : 0))
+                        .header("User-Agent", "OkHttp Headers.java").get().build();
+                checker.newCall(probe).enqueue(new Callback()
+                {
+                    @Override
+                    public void onFailure(Call call, IOException e)
+                    {
+                        if(endpoint.isAvailable()) logger.warn("health check of " + endpoint.getUrl() + " failed: " + e.getMessage());
+                        endpoint.markDown(downMillis);
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response)
+                    {
+                        response.close();
+                        if(response.code() < 500)
+                        {
+                            if(!endpoint.isAvailable()) logger.info("endpoint " + endpoint.getUrl() + " is healthy again.");
+                            endpoint.markUp();
+                        }
+                        else
+                        {
+                            logger.warn("health check of " + endpoint.getUrl() + " returned " + response.code());
+                            endpoint.markDown(downMillis);
+                        }
+                    }
+                });
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    List<GKEndpoint> getEndpoints()
+    {
+        return endpoints;
+    }
+
+    @Override
+    public Call newCall(Request request)
+    {
+        GKOperation operation = request.tag(GKOperation.class);
+        boolean hedge = hedging && operation != null && operation.isValidation();
+        if(!hedge && endpoints.size() == 1) return client.newCall(request);
+        return new RoutedCall(request, hedge);
+    }
+
+    /**
+     * Picks the endpoint for the next request, avoiding the excluded one if any other is available.
+     */
+    GKEndpoint choose(GKEndpoint exclude)
+    {
+        int n = endpoints.size();
+        if(n == 1) return endpoints.get(0);
+        long now = System.nanoTime();
+        ArrayList<GKEndpoint> candidates = new ArrayList<GKEndpoint>(n);
+        for(GKEndpoint endpoint : endpoints)
+            if(endpoint != exclude && endpoint.isAvailable(now)) candidates.add(endpoint);
+        if(candidates.isEmpty())
+        {
+            for(GKEndpoint endpoint : endpoints)
+                if(endpoint != exclude) candidates.add(endpoint);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if(candidates.size() == 1) return candidates.get(0);
+        if(powerOfTwo)
+        {
+            int first = random.nextInt(candidates.size());
+            int second = random.nextInt(candidates.size() - 1);
+            if(second >= first) second++;
+            GKEndpoint a = candidates.get(first);
+            GKEndpoint b = candidates.get(second);
+            return a.getOutstanding() <= b.getOutstanding() ? a : b;
+        }
+        int start = random.nextInt(candidates.size());
+        GKEndpoint best = null;
+        for(int i=0; i<candidates.size(); i++)
+        {
+            GKEndpoint endpoint = candidates.get((start + i) % candidates.size());
+            if(best == null || endpoint.getOutstanding() < best.getOutstanding()) best = endpoint;
+        }
+        return best;
+    }
+
+    /**
+     * Returns the delay after which a validation call is hedged, the configured percentile of the call latencies
+     * observed over the last one to two windows. It is recomputed at most once per second, by a single caller; while
+     * the window holds fewer than minSamples calls the previous delay is kept, initially the configured one.
+     */
+    long hedgeDelayMillis(GKOperation operation)
+    {
+        int i = operation.ordinal();
+        long now = System.nanoTime();
+        long at = hedgeDelaysAt.get(i);
+        if(at != 0 && now - at < TimeUnit.SECONDS.toNanos(1)) return hedgeDelays.get(i);
+        if(!hedgeDelaysAt.compareAndSet(i, at, now)) return hedgeDelays.get(i);
+        long[] recent = recentLatencies(operation, now);
+        long samples = 0;
+        for(long count : recent)
+            samples += count;
+        if(samples < hedgeMinSamples) return hedgeDelays.get(i);
+        long delay = Math.max(hedgeMinDelay, TimeUnit.MICROSECONDS.toMillis(LatencyHistogram.percentileOf(recent, hedgePercentile)));
+        hedgeDelays.set(i, delay);
+        return delay;
+    }
+
+    /**
+     * @return  the latency bucket counts of the calls recorded since the older of the two last window rotations
+     */
+    private long[] recentLatencies(GKOperation operation, long now)
+    {
+        long[] counts = metrics.get(operation).getLatency().getCounts();
+        HedgeWindow window;
+        synchronized (hedgeWindows)
+        {
+            window = hedgeWindows[operation.ordinal()];
+            if(window == null)
+            {
+                window = hedgeWindows[operation.ordinal()] = new HedgeWindow(counts, now);
+            }
+            else if(now - window.rotatedAt >= hedgeWindowNanos)
+            {
+                window.older = window.newer;
+                window.newer = counts;
+                window.rotatedAt = now;
+            }
+            if(window.older == null) return counts;
+            long[] recent = new long[counts.length];
+            for(int b=0; b<counts.length; b++)
+                recent[b] = counts[b] - window.older[b];
+            return recent;
+        }
+    }
+
+    private void failed(GKEndpoint endpoint, Call call, IOException error)
+    {
+        if(call.isCanceled() || endpoints.size() == 1) return;
+        if(endpoint.isAvailable()) logger.warn("endpoint " + endpoint.getUrl() + " failed, ejected for " + ejectionMillis + "ms: " + error.getMessage());
+        endpoint.markDown(ejectionMillis);
+    }
+
+    @Override
+    public void close()
+    {
+        if(healthChecks != null) healthChecks.cancel(false);
+    }
+
+    /**
+     * The latency counts at the last two window rotations of an operation, guarded by the window array.
+     */
+    private static final class HedgeWindow
+    {
+        long[] older;
+        long[] newer;
+        long rotatedAt;
+
+        HedgeWindow(long[] counts, long now)
+        {
+            this.newer = counts;
+            this.rotatedAt = now;
+        }
+    }
+
+    /**
+     * A call sent to the endpoint chosen by the router, and possibly hedged to a second one.
+     */
+    private final class RoutedCall implements Call
+    {
+        private final Request original;
+        private final boolean hedge;
+        private final Timeout timeout = new Timeout();
+        private final List<Call> attempts = new CopyOnWriteArrayList<Call>();
+        private volatile boolean canceled;
+        private boolean executed;
+        private volatile ScheduledFuture<?> hedgeTimer;
+
+        RoutedCall(Request original, boolean hedge)
+        {
+            this.original = original;
+            this.hedge = hedge;
+        }
+
+        private Call start(GKEndpoint endpoint)
+        {
+            Request routed = endpoint.route(original);
+            if(hedge) routed = routed.newBuilder().tag(GKMetrics.Attempt.class, new GKMetrics.Attempt()).build();
+            Call call = client.newCall(routed);
+            call.timeout().timeout(timeout.timeoutNanos(), TimeUnit.NANOSECONDS);
+            if(timeout.hasDeadline()) call.timeout().deadlineNanoTime(timeout.deadlineNanoTime());
+            attempts.add(call);
+            if(canceled) call.cancel();
+            return call;
+        }
+
+        private synchronized void markExecuted()
+        {
+            if(executed) throw new IllegalStateException("Already Executed");
+            executed = true;
+        }
+
+        @Override
+        public Response execute() throws IOException
+        {
+            markExecuted();
+            if(!hedge)
+            {
+                GKEndpoint endpoint = choose(null);
+                Call call = start(endpoint);
+                endpoint.begin();
+                try
+                {
+                    return call.execute();
+                }
+                catch (IOException ex)
+                {
+                    failed(endpoint, call, ex);
+                    throw ex;
+                }
+                finally
+                {
+                    endpoint.end();
+                }
+            }
+            try
+            {
+                return hedged().get();
+            }
+            catch (ExecutionException ex)
+            {
+                if(ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+                throw new IOException(ex.getCause());
+            }
+            catch (InterruptedException ex)
+            {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for Gatekeeper");
+            }
+        }
+
+        @Override
+        public void enqueue(final Callback responseCallback)
+        {
+            markExecuted();
+            if(!hedge)
+            {
+                final GKEndpoint endpoint = choose(null);
+                final Call call = start(endpoint);
+                endpoint.begin();
+                call.enqueue(new Callback()
+                {
+                    @Override
+                    public void onFailure(Call c, IOException e)
+                    {
+                        endpoint.end();
+                        failed(endpoint, call, e);
+                        responseCallback.onFailure(RoutedCall.this, e);
+                    }
+
+                    @Override
+                    public void onResponse(Call c, Response response) throws IOException
+                    {
+                        endpoint.end();
+                        responseCallback.onResponse(RoutedCall.this, response);
+                    }
+                });
+                return;
+            }
+            hedged().whenComplete((response, error) -> {
+                if(error != null)
+                {
+                    responseCallback.onFailure(this, error instanceof IOException ? (IOException) error : new IOException(error));
+                    return;
+                }
+                try
+                {
+                    responseCallback.onResponse(this, response);
+                }
+                catch (IOException ex)
+                {
+                    response.close();
+                }
+            });
+        }
+
+        /**
+         * Sends the request to one endpoint and, unless it answered within the hedging delay, to a second one.
+         */
+        private CompletableFuture<Response> hedged()
+        {
+            final CompletableFuture<Response> winner = new CompletableFuture<Response>();
+            final AtomicInteger inFlight = new AtomicInteger();
+            final GKEndpoint first = choose(null);
+            send(first, winner, inFlight);
+            final GKOperation operation = original.tag(GKOperation.class);
+            try
+            {
+                hedgeTimer = timer.schedule(() -> {
+                    if(winner.isDone() || canceled) return;
+                    metrics.recordHedge(operation);
+                    send(choose(first), winner, inFlight);
+                }, hedgeDelayMillis(operation), TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                //the driver is closing, the first request is all there is
+            }
+            return winner;
+        }
+
+        private void send(final GKEndpoint endpoint, final CompletableFuture<Response> winner, final AtomicInteger inFlight)
+        {
+            final Call call = start(endpoint);
+            inFlight.incrementAndGet();
+            endpoint.begin();
+            call.enqueue(new Callback()
+            {
+                @Override
+                public void onFailure(Call c, IOException e)
+                {
+                    endpoint.end();
+                    failed(endpoint, call, e);
+                    //the call fails once no request is left, a hedge that was not sent yet is not waited for
+                    if(inFlight.decrementAndGet() == 0)
+                    {
+                        ScheduledFuture<?> pending = hedgeTimer;
+                        if(pending != null) pending.cancel(false);
+                        winner.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void onResponse(Call c, Response response)
+                {
+                    endpoint.end();
+                    inFlight.decrementAndGet();
+                    if(!winner.complete(response))
+                    {
+                        discard(call);
+                        response.close();
+                        return;
+                    }
+                    ScheduledFuture<?> pending = hedgeTimer;
+                    if(pending != null) pending.cancel(false);
+                    for(Call other : attempts)
+                    {
+                        if(other == call) continue;
+                        discard(other);
+                        other.cancel();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Leaves an attempt that lost the race out of the metrics, before it is cancelled or its response closed.
+         */
+        private void discard(Call attempt)
+        {
+            GKMetrics.Attempt tag = attempt.request().tag(GKMetrics.Attempt.class);
+            if(tag != null) tag.discard();
+        }
+
+        @Override
+        public Request request()
+        {
+            return original;
+        }
+
+        @Override
+        public void cancel()
+        {
+            canceled = true;
+            ScheduledFuture<?> pending = hedgeTimer;
+            if(pending != null) pending.cancel(false);
+            for(Call call : attempts) call.cancel();
+        }
+
+        @Override
+        public synchronized boolean isExecuted()
+        {
+            return executed;
+        }
+
+        @Override
+        public boolean isCanceled()
+        {
+            return canceled;
+        }
+
+        @Override
+        public Timeout timeout()
+        {
+            return timeout;
+        }
+
+        @Override
+        public Call clone()
+        {
+            return new RoutedCall(original, hedge);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * A bounded in-memory cache where every entry carries its own time-to-live. The key space is split over a number of
+ * independently locked segments so that concurrent readers on different keys do not contend, each segment evicts its
+ * least recently used entry once its share of the capacity is reached.
+ * <p>
+ * @param <K>   the key type, must implement equals and hashCode
+ * @param <V>   the value type
+ */
+public class ExpiringLruCache<K, V>
+{
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final int maxEntries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * Creates the cache with a segment count derived from the number of available processors.
+     * <p>
+     * @param maxEntries    hard upper bound on the number of entries held by the cache
+     */
+    public ExpiringLruCache(int maxEntries)
+    {
+        this(maxEntries, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Creates the cache.
+     * <p>
+     * @param maxEntries    hard upper bound on the number of entries held by the cache
+     * @param concurrency   desired number of segments, rounded up to a power of two and capped by maxEntries
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiringLruCache(int maxEntries, int concurrency)
+    {
+        if(maxEntries < 1) throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        int count = 1;
+        while(count < concurrency && count * 2 <= maxEntries) count <<= 1;
+        this.maxEntries = maxEntries;
+        this.segmentMask = count - 1;
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+        //the first segments take the remainder, the capacities add up to exactly maxEntries
+        int perSegment = maxEntries / count;
+        int remainder = maxEntries % count;
+        for(int i=0; i<count; i++)
+            segments[i] = new Segment<K, V>(perSegment + (i < remainder ? 1 : 0));
+    }
+
+    /**
+     * Looks up a live entry.
+     * <p>
+     * @param key   the key to look up
+     * @return  the cached value, null if absent or expired
+     */
+    public V get(K key)
+    {
+        Segment<K, V> segment = segmentFor(key);
+        long now = System.nanoTime();
+        synchronized (segment)
+        {
+            Timed<V> entry = segment.get(key);
+            if(entry != null)
+            {
+                if(entry.expiresAt - now > 0)
+                {
+                    hits.increment();
+                    return entry.value;
+                }
+                segment.remove(key);
+                expirations.increment();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores a value, replacing any previous entry for the same key.
+     * <p>
+     * @param key       the key
+     * @param value     the value, must not be null
+     * @param ttlMillis time-to-live of this entry in milliseconds, non positive values are ignored
+     */
+    public void put(K key, V value, long ttlMillis)
+    {
+        if(ttlMillis <= 0) return;
+        Segment<K, V> segment = segmentFor(key);
+        Timed<V> entry = new Timed<V>(value, System.nanoTime() + ttlMillis * 1000000L);
+        synchronized (segment)
+        {
+            segment.put(key, entry);
+            if(segment.evicted)
+            {
+                segment.evicted = false;
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes the entry for the given key if present.
+     * <p>
+     * @param key   the key to remove
+     */
+    public void invalidate(K key)
+    {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment)
+        {
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * Removes every entry whose key matches the predicate.
+     * <p>
+     * @param predicate selects the keys to remove
+     */
+    public void invalidateIf(Predicate<? super K> predicate)
+    {
+        for(Segment<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.keySet().removeIf(predicate);
+            }
+        }
+    }
+
+    /**
+     * Removes every entry from the cache.
+     */
+    public void invalidateAll()
+    {
+        for(Segment<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Visits every live entry with its remaining time-to-live, the recency order of the entries is not changed.
+     * <p>
+     * @param visitor   receives the key, the value and the remaining time-to-live in milliseconds
+     */
+    void forEachLive(EntryVisitor<? super K, ? super V> visitor)
+    {
+        long now = System.nanoTime();
+        for(Segment<K, V> segment : segments)
+        {
+            ArrayList<Map.Entry<K, Timed<V>>> live = new ArrayList<Map.Entry<K, Timed<V>>>();
+            synchronized (segment)
+            {
+                for(Map.Entry<K, Timed<V>> entry : segment.entrySet())
+                    if(entry.getValue().expiresAt - now > 0) live.add(new AbstractMap.SimpleImmutableEntry<K, Timed<V>>(entry));
+            }
+            for(Map.Entry<K, Timed<V>> entry : live)
+            {
+                long ttl = (entry.getValue().expiresAt - now) / 1000000L;
+                if(ttl > 0) visitor.visit(entry.getKey(), entry.getValue().value, ttl);
+            }
+        }
+    }
+
+    interface EntryVisitor<K, V>
+    {
+        void visit(K key, V value, long ttlMillis);
+    }
+
+    /**
+     * @return  the number of entries currently held, expired entries not yet purged are included
+     */
+    public int size()
+    {
+        int size = 0;
+        for(Segment<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return  a point in time snapshot of the cache counters
+     */
+    public CacheStats getStats()
+    {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), size(), maxEntries);
+    }
+
+    private Segment<K, V> segmentFor(Object key)
+    {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+    private static final class Timed<V>
+    {
+        final V value;
+        final long expiresAt;
+
+        Timed(V value, long expiresAt)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Segment<K, V> extends LinkedHashMap<K, Timed<V>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        boolean evicted;
+
+        Segment(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Timed<V>> eldest)
+        {
+            if(size() > capacity)
+            {
+                evicted = true;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,682 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking counterpart of GKDriver. Every operation is enqueued on the OkHttp dispatcher of the wrapped driver and
+ * returns a CompletableFuture, no caller thread is blocked while the request is in flight. The number of requests in
+ * flight is bounded by the dispatcher settings of the driver (gatekeeper.http.maxRequests and
+ * gatekeeper.http.maxRequestsPerHost). Caches, connection pool and admin credentials are shared with the driver.
+ * <p>
+ * Futures are completed on the supplied executor, or directly on the OkHttp dispatcher thread if none was given. In
+ * the latter case dependent stages must not block. Cancelling a returned future cancels the underlying http call.
+ */
+public class GKAsyncDriver
+{
+    private final GKDriver driver;
+    private final Executor executor;
+
+    /**
+     * Creates the async driver, futures are completed on the OkHttp dispatcher threads.
+     * <p>
+     * @param driver    the driver providing configuration, http client and caches
+     */
+    public GKAsyncDriver(GKDriver driver)
+    {
+        this(driver, null);
+    }
+
+    /**
+     * Creates the async driver.
+     * <p>
+     * @param driver    the driver providing configuration, http client and caches
+     * @param executor  executor used to complete the returned futures, null to complete on the dispatcher threads
+     */
+    public GKAsyncDriver(GKDriver driver, Executor executor)
+    {
+        this.driver = driver;
+        this.executor = executor;
+    }
+
+    /**
+     * @see GKDriver#validateToken(String, int)
+     */
+    public CompletableFuture<Boolean> validateTokenAsync(final String token, final int userId)
+    {
+        return validateTokenAsync(token, userId, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#validateToken(String, int, CallOptions)
+     */
+    public CompletableFuture<Boolean> validateTokenAsync(final String token, final int userId, CallOptions options)
+    {
+        return validate(TokenCheck.forUser(token, userId), options, GKDecision::isValid);
+    }
+
+    /**
+     * @see GKDriver#validateToken(String, String)
+     */
+    public CompletableFuture<Boolean> validateTokenAsync(final String token, final String serviceKey)
+    {
+        return validateTokenAsync(token, serviceKey, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#validateToken(String, String, CallOptions)
+     */
+    public CompletableFuture<Boolean> validateTokenAsync(final String token, final String serviceKey, CallOptions options)
+    {
+        return validate(TokenCheck.forService(token, serviceKey), options, GKDecision::isValid);
+    }
+
+    /**
+     * @see GKDriver#validate(TokenCheck)
+     */
+    public CompletableFuture<GKDecision> validateAsync(final TokenCheck check)
+    {
+        return validateAsync(check, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#validate(TokenCheck, CallOptions)
+     */
+    public CompletableFuture<GKDecision> validateAsync(final TokenCheck check, CallOptions options)
+    {
+        return validate(check, options, Function.identity());
+    }
+
+    /**
+     * Asks Gatekeeper about a token, bypassing the validation caches.
+     * <p>
+     * @return  future completed with the decision of Gatekeeper, or with null if it failed to take one
+     */
+    CompletableFuture<Boolean> answerAsync(final TokenCheck check)
+    {
+        return answerAsync(check, CallOptions.DEFAULT);
+    }
+
+    private CompletableFuture<Boolean> answerAsync(final TokenCheck check, CallOptions options)
+    {
+        return coalesce(driver.getValidationFlights(), check, options, () -> {
+            long generation = driver.validationGeneration(check);
+            return execute(t -> driver.validationRequest(check), false,
+                    response -> driver.handleValidation(check, generation, response), null, options);
+        });
+    }
+
+    /**
+     * Validates a token and maps the decision, cancelling the returned future cancels the call to Gatekeeper.
+     */
+    private <R> CompletableFuture<R> validate(final TokenCheck check, CallOptions options, final Function<GKDecision, R> mapper)
+    {
+        Boolean cached = driver.cachedDecision(check);
+        if(cached != null) return CompletableFuture.completedFuture(mapper.apply(GKDecision.of(cached)));
+        final CompletableFuture<Boolean> answer = answerAsync(check, options);
+        final CompletableFuture<R> result = new CompletableFuture<R>();
+        result.whenComplete((value, error) -> {
+            if(result.isCancelled()) answer.cancel(true);
+        });
+        answer.whenComplete((valid, error) -> {
+            try
+            {
+                result.complete(mapper.apply(driver.decide(check, valid, error instanceof CompletionException ? error.getCause() : error)));
+            }
+            catch (Throwable t)
+            {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @see GKDriver#simpleAuthentication(int, String)
+     */
+    public CompletableFuture<Boolean> simpleAuthenticationAsync(int userId, String password)
+    {
+        return simpleAuthenticationAsync(userId, password, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#simpleAuthentication(int, String, CallOptions)
+     */
+    public CompletableFuture<Boolean> simpleAuthenticationAsync(int userId, String password, CallOptions options)
+    {
+        if(driver.verifiedLocally(userId, password)) return CompletableFuture.completedFuture(true);
+        long generation = driver.credentialGeneration(userId);
+        return execute(t -> driver.authenticationRequest(userId, password), false, response ->
+                driver.handleAuthentication(userId, password, generation, response), false, options);
+    }
+
+    /**
+     * @see GKDriver#generateToken(int, String)
+     * @return  future completed with the token, or with null if authentication failed
+     */
+    public CompletableFuture<String> generateTokenAsync(int userId, String password)
+    {
+        return generateTokenAsync(userId, password, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#generateToken(int, String, CallOptions)
+     * @return  future completed with the token, or with null if authentication failed
+     */
+    public CompletableFuture<String> generateTokenAsync(int userId, String password, CallOptions options)
+    {
+        TokenLeaseCache leases = driver.getTokenLeases();
+        if(leases == null) return mintTokenAsync(userId, password, options);
+        return within(leases.getAsync(userId, password), GKOperation.GENERATE_TOKEN.getMetricName(), options);
+    }
+
+    /**
+     * Asks Gatekeeper for a new token, bypassing the token leases.
+     */
+    CompletableFuture<String> mintTokenAsync(int userId, String password)
+    {
+        return mintTokenAsync(userId, password, CallOptions.DEFAULT);
+    }
+
+    private CompletableFuture<String> mintTokenAsync(int userId, String password, CallOptions options)
+    {
+        return execute(t -> driver.tokenRequest(userId, password), false, response ->
+                response.code() == 200 ? driver.parseToken(response.body()) : null, null, options);
+    }
+
+    /**
+     * @see GKDriver#updatePassword(String, String, String)
+     */
+    public CompletableFuture<Boolean> updatePasswordAsync(String userId, String password, String token)
+    {
+        return updatePasswordAsync(userId, password, token, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#updatePassword(String, String, String, CallOptions)
+     */
+    public CompletableFuture<Boolean> updatePasswordAsync(String userId, String password, String token, CallOptions options)
+    {
+        return execute(t -> driver.updatePasswordRequest(userId, password, token), false, response -> {
+            if(response.code() != 200) return false;
+            driver.userChanged(userId);
+            return true;
+        }, false, options);
+    }
+
+    /**
+     * @see GKDriver#getUserList()
+     * @return  future completed with the user list, or with null on error
+     */
+    public CompletableFuture<ArrayList<String>> getUserListAsync()
+    {
+        return getUserListAsync(CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#getUserList(CallOptions)
+     * @return  future completed with the user list, or with null on error
+     */
+    public CompletableFuture<ArrayList<String>> getUserListAsync(CallOptions options)
+    {
+        return coalesce(driver.getUserListFlights(), "", options, () -> execute(driver::userListRequest, true, response ->
+                response.code() == 200 ? driver.parseUserList(response.body()) : null, null, options));
+    }
+
+    /**
+     * @see GKDriver#registerUser(String, String, boolean, String)
+     * @return  future completed with the new user-id, or with -1 if the registration failed
+     */
+    public CompletableFuture<Integer> registerUserAsync(String username, String password, boolean isAdmin, String accessList)
+    {
+        return registerUserAsync(username, password, isAdmin, accessList, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#registerUser(String, String, boolean, String, CallOptions)
+     * @return  future completed with the new user-id, or with -1 if the registration failed
+     */
+    public CompletableFuture<Integer> registerUserAsync(String username, String password, boolean isAdmin, String accessList, CallOptions options)
+    {
+        return execute(token -> driver.registerUserRequest(token, username, password, isAdmin, accessList), true, response ->
+                response.code() == 200 ? driver.parseUserId(response.body()) : -1, -1, options);
+    }
+
+    /**
+     * @see GKDriver#deleteUser(int)
+     */
+    public CompletableFuture<Boolean> deleteUserAsync(int userId)
+    {
+        return deleteUserAsync(userId, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#deleteUser(int, CallOptions)
+     */
+    public CompletableFuture<Boolean> deleteUserAsync(int userId, CallOptions options)
+    {
+        return execute(token -> driver.deleteUserRequest(token, userId), true, response -> {
+            if(response.code() != 200) return false;
+            driver.userChanged(userId);
+            return true;
+        }, false, options);
+    }
+
+    /**
+     * @see GKDriver#isAdmin(int)
+     */
+    public CompletableFuture<Boolean> isAdminAsync(int userId)
+    {
+        return isAdminAsync(userId, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#isAdmin(int, CallOptions)
+     */
+    public CompletableFuture<Boolean> isAdminAsync(int userId, CallOptions options)
+    {
+        return coalesce(driver.getIsAdminFlights(), userId, options, () -> execute(token -> driver.userInfoRequest(token, userId),
+                true, response -> response.code() == 200 && driver.parseIsAdmin(response.body()), false, options));
+    }
+
+    /**
+     * @see GKDriver#getServiceList()
+     * @return  future completed with the service list, or with null on error
+     */
+    public CompletableFuture<ArrayList<String>> getServiceListAsync()
+    {
+        return getServiceListAsync(CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#getServiceList(CallOptions)
+     * @return  future completed with the service list, or with null on error
+     */
+    public CompletableFuture<ArrayList<String>> getServiceListAsync(CallOptions options)
+    {
+        return coalesce(driver.getServiceListFlights(), "", options, () -> execute(driver::serviceListRequest, true, response ->
+                response.code() == 200 ? driver.parseServiceList(response.body()) : null, null, options));
+    }
+
+    /**
+     * @see GKDriver#registerService(String, String)
+     * @return  future completed with the service uri and key, or with null on error
+     */
+    public CompletableFuture<HashMap<String, String>> registerServiceAsync(String shortName, String description)
+    {
+        return registerServiceAsync(shortName, description, CallOptions.DEFAULT);
+    }
+
+    /**
+     * @see GKDriver#registerService(String, String, CallOptions)
+     * @return  future completed with the service uri and key, or with null on error
+     */
+    public CompletableFuture<HashMap<String, String>> registerServiceAsync(String shortName, String description, CallOptions options)
+    {
+        return execute(token -> driver.registerServiceRequest(token, shortName, description), true, response ->
+                response.code() == 200 ? driver.serviceRegistered(shortName, driver.parseService(response.body())) : null, null, options);
+    }
+
+    /**
+     * Runs a call through a call group, unless it has its own options.
+     */
+    private static <K, V> CompletableFuture<V> coalesce(SingleFlight<K, V> flights, K key, CallOptions options,
+                                                        Supplier<CompletableFuture<V>> call)
+    {
+        return options == CallOptions.DEFAULT ? flights.executeAsync(key, call) : call.get();
+    }
+
+    /**
+     * Bounds the wait for a future shared with other callers by the deadline of the options, the shared future itself
+     * is neither timed out nor cancelled.
+     */
+    private <V> CompletableFuture<V> within(CompletableFuture<V> shared, final String step, CallOptions options)
+    {
+        if(!options.hasDeadline() && options.getCanceller() == null) return shared;
+        final long start = System.nanoTime();
+        final CompletableFuture<V> result = shared.thenApply(Function.identity());
+        if(options.hasDeadline())
+        {
+            Future<?> timeout = driver.timer().schedule(() ->
+                    result.completeExceptionally(new GKTimeoutException(step, GKDriver.elapsedMillis(start))),
+                    options.getDeadlineMillis(), TimeUnit.MILLISECONDS);
+            result.whenComplete((value, error) -> timeout.cancel(false));
+        }
+        watch(result, options.getCanceller());
+        return result;
+    }
+
+    /**
+     * Cancels the future when the canceller fires while it is pending.
+     */
+    private static void watch(final CompletableFuture<?> future, final CallCanceller canceller)
+    {
+        if(canceller == null) return;
+        final Runnable abort = () -> future.cancel(true);
+        canceller.register(abort);
+        future.whenComplete((value, error) -> canceller.unregister(abort));
+    }
+
+    private <T> CompletableFuture<T> execute(Function<String, Request> requestFor, boolean admin, ResponseHandler<T> handler, T fallback)
+    {
+        return execute(requestFor, admin, handler, fallback, CallOptions.DEFAULT);
+    }
+
+    /**
+     * Asynchronous counterpart of GKDriver#execute, backoff delays are waited for on the timer of the driver instead
+     * of a blocked thread. Cancelling the returned future cancels the attempt in flight and any pending retry. A call
+     * refused by an open circuit breaker completes with the fallback or with GKCircuitOpenException. A call still
+     * pending at the deadline of the options is cancelled and completes with GKTimeoutException.
+     */
+    private <T> CompletableFuture<T> execute(Function<String, Request> requestFor, boolean admin, ResponseHandler<T> handler, T fallback,
+                                             CallOptions options)
+    {
+        final Exchange<T> exchange = new Exchange<T>(requestFor, admin, handler, fallback, driver.getRetryPolicy(), options);
+        exchange.result.whenComplete((value, error) -> {
+            Future<?> timeout = exchange.timeout;
+            if(timeout != null) timeout.cancel(false);
+            if(exchange.result.isCancelled()) exchange.cancel();
+        });
+        if(options.hasDeadline())
+        {
+            try
+            {
+                exchange.timeout = driver.timer().schedule(exchange::expire, exchange.deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                exchange.fail(ex);
+                return exchange.result;
+            }
+        }
+        watch(exchange.result, options.getCanceller());
+        if(!admin)
+        {
+            exchange.attempt(null);
+        }
+        else
+        {
+            driver.getAdminTokens().getTokenAsync().whenComplete((token, error) -> {
+                if(error != null) exchange.fail(error);
+                else exchange.attempt(token);
+            });
+        }
+        return exchange.result;
+    }
+
+    private <T> void complete(final CompletableFuture<T> future, final T value, final Throwable error)
+    {
+        Runnable completion = () -> {
+            if(error != null) future.completeExceptionally(error);
+            else future.complete(value);
+        };
+        if(executor == null) completion.run();
+        else executor.execute(completion);
+    }
+
+    /**
+     * State of one asynchronous call across its attempts.
+     */
+    private final class Exchange<T>
+    {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        private final Function<String, Request> requestFor;
+        private final boolean admin;
+        private final ResponseHandler<T> handler;
+        private final T fallback;
+        private final RetryPolicy policy;
+        private final CallOptions options;
+        private final long started = System.nanoTime();
+        final long deadline;
+        private int attempt = 1;
+        private boolean tokenRenewed;
+        private volatile boolean expired;
+        private volatile Call call;
+        private volatile Future<?> pendingRetry;
+        private volatile Future<?> pendingSlot;
+        private volatile GKOperation operation;
+        volatile Future<?> timeout;
+
+        Exchange(Function<String, Request> requestFor, boolean admin, ResponseHandler<T> handler, T fallback, RetryPolicy policy,
+                 CallOptions options)
+        {
+            this.requestFor = requestFor;
+            this.admin = admin;
+            this.handler = handler;
+            this.fallback = fallback;
+            this.policy = policy;
+            this.options = options;
+            this.deadline = options.deadlineNanos(started, policy.deadlineFromNow());
+        }
+
+        void attempt(final String adminToken)
+        {
+            if(result.isDone() || expired) return;
+            if(admin && adminToken.length() == 0)
+            {
+                driver.getLogger().error("admin credentials were rejected, failing gracefully.");
+                complete(result, fallback, null);
+                return;
+            }
+            final Request request;
+            try
+            {
+                request = requestFor.apply(adminToken);
+            }
+            catch (Throwable t)
+            {
+                fail(t);
+                return;
+            }
+            final GKOperation operation = request.tag(GKOperation.class);
+            this.operation = operation;
+            final ConcurrencyLimiter limiter = driver.getConcurrencyLimiter();
+            if(limiter == null)
+            {
+                send(request, operation, adminToken, null);
+                return;
+            }
+            final CompletableFuture<Void> slot = limiter.acquireAsync(deadline - System.nanoTime());
+            pendingSlot = slot;
+            slot.whenComplete((granted, error) -> {
+                if(error != null) fail(error);
+                else if(result.isDone() || expired) limiter.release();
+                else send(request, operation, adminToken, limiter);
+            });
+        }
+
+        private void send(final Request request, final GKOperation operation, final String adminToken, final ConcurrencyLimiter limiter)
+        {
+            final CircuitBreaker breaker = driver.breakerFor(operation);
+            if(breaker != null && !breaker.tryAcquire())
+            {
+                if(limiter != null) limiter.release();
+                T value = null;
+                Throwable error = null;
+                try
+                {
+                    value = driver.shed(breaker, fallback);
+                }
+                catch (GKCircuitOpenException ex)
+                {
+                    error = ex;
+                }
+                complete(result, value, error);
+                return;
+            }
+            final long start = System.nanoTime();
+            Call current;
+            try
+            {
+                current = driver.newCall(options.hasHttpTimeouts() ? request.newBuilder().tag(CallOptions.class, options).build() : request);
+                if(options.hasDeadline()) current.timeout().deadlineNanoTime(deadline);
+            }
+            catch (RuntimeException ex)
+            {
+                //the call never left, hand back the limiter slot and the breaker probe it was holding
+                if(breaker != null) breaker.release();
+                if(limiter != null) limiter.release();
+                fail(ex);
+                return;
+            }
+            call = current;
+            current.enqueue(new Callback()
+            {
+                @Override
+                public void onFailure(Call call, IOException e)
+                {
+                    if(result.isDone() || expired)
+                    {
+                        if(breaker != null) breaker.release();
+                        if(limiter != null) limiter.release();
+                        return;
+                    }
+                    if(breaker != null) breaker.onResult(true, System.nanoTime() - start);
+                    if(limiter != null) limiter.onSample(System.nanoTime() - start, true);
+                    driver.getCallLog().record(operation, e, System.nanoTime() - start, attempt);
+                    long delay = policy.isRetryable(operation, e) ? policy.nextDelayMillis(attempt, deadline) : -1;
+                    if(delay < 0)
+                    {
+                        fail(driver.timedOut(e, operation, started, deadline, options));
+                        return;
+                    }
+                    driver.getLogger().warn(operation.getMetricName() + " failed with " + e + ", attempt " + attempt + ", retrying in " + delay + "ms");
+                    retryAfter(operation, adminToken, delay);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response)
+                {
+                    int code = response.code();
+                    long elapsed = System.nanoTime() - start;
+                    if(breaker != null) breaker.onResult(code >= 500, elapsed);
+                    if(limiter != null) limiter.onSample(elapsed, GKDriver.isOverloaded(code));
+                    driver.getCallLog().record(operation, code, elapsed, attempt);
+                    if(expired)
+                    {
+                        response.body().close();
+                        return;
+                    }
+                    if(admin && !tokenRenewed && (code == 401 || code == 403))
+                    {
+                        response.body().close();
+                        driver.getLogger().warn("Error probably with the admin-token. Remaking this call automatically.");
+                        tokenRenewed = true;
+                        driver.getMetrics().recordRetry(operation);
+                        driver.getAdminTokens().refreshAsync(adminToken).whenComplete((fresh, error) -> {
+                            if(error != null) fail(error);
+                            else attempt(fresh);
+                        });
+                        return;
+                    }
+                    long delay = policy.isRetryable(operation, code) ? policy.nextDelayMillis(attempt, deadline) : -1;
+                    if(delay >= 0)
+                    {
+                        response.body().close();
+                        driver.getLogger().warn(operation.getMetricName() + " returned " + code + ", attempt " + attempt + ", retrying in " + delay + "ms");
+                        retryAfter(operation, adminToken, delay);
+                        return;
+                    }
+
+                    //the body is closed before completing, so that the call is finished when dependents run
+                    T value = null;
+                    Throwable error = null;
+                    try
+                    {
+                        value = handler.handle(response);
+                    }
+                    catch (Throwable t)
+                    {
+                        error = t;
+                    }
+                    finally
+                    {
+                        response.body().close();
+                    }
+                    complete(result, value, error);
+                }
+            });
+        }
+
+        private void retryAfter(GKOperation operation, final String adminToken, long delay)
+        {
+            attempt++;
+            driver.getMetrics().recordRetry(operation);
+            try
+            {
+                pendingRetry = driver.timer().schedule(() -> attempt(adminToken), delay, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                fail(ex);
+            }
+        }
+
+        void fail(Throwable error)
+        {
+            complete(result, null, error);
+        }
+
+        /**
+         * Gives the call up at its deadline, whatever step it is in.
+         */
+        void expire()
+        {
+            if(result.isDone()) return;
+            expired = true;
+            fail(new GKTimeoutException(requestName(), GKDriver.elapsedMillis(started)));
+            cancel();
+        }
+
+        private String requestName()
+        {
+            GKOperation current = operation;
+            return current != null ? current.getMetricName() : "admin token";
+        }
+
+        void cancel()
+        {
+            Future<?> retry = pendingRetry;
+            if(retry != null) retry.cancel(false);
+            Future<?> slot = pendingSlot;
+            if(slot != null) slot.cancel(false);
+            Call current = call;
+            if(current != null) current.cancel();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.io.IOException;
+
+/**
+ * Raised instead of calling Gatekeeper while the circuit breaker guarding the operation is open.
+ */
+public class GKCircuitOpenException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String breaker;
+
+    public GKCircuitOpenException(String breaker)
+    {
+        super("circuit breaker '" + breaker + "' is open, Gatekeeper was not called");
+        this.breaker = breaker;
+    }
+
+    /**
+     * @return  the name of the open circuit breaker
+     */
+    public String getBreaker()
+    {
+        return breaker;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * The outcome of a token validation. A decision is stale if Gatekeeper could not be reached and the token was accepted
+ * because Gatekeeper confirmed it recently, see gatekeeper.degraded.* in the driver configuration.
+ */
+public final class GKDecision
+{
+    static final GKDecision VALID = new GKDecision(true, false, 0);
+    static final GKDecision INVALID = new GKDecision(false, false, 0);
+
+    private final boolean valid;
+    private final boolean stale;
+    private final long confirmedAt;
+
+    private GKDecision(boolean valid, boolean stale, long confirmedAt)
+    {
+        this.valid = valid;
+        this.stale = stale;
+        this.confirmedAt = confirmedAt;
+    }
+
+    static GKDecision of(boolean valid)
+    {
+        return valid ? VALID : INVALID;
+    }
+
+    /**
+     * @param confirmedAt   time in milliseconds since the epoch at which Gatekeeper last confirmed the token
+     * @return  a decision accepting the token without Gatekeeper having been asked
+     */
+    static GKDecision stale(long confirmedAt)
+    {
+        return new GKDecision(true, true, confirmedAt);
+    }
+
+    public boolean isValid()
+    {
+        return valid;
+    }
+
+    /**
+     * @return  true if the decision was not taken by Gatekeeper but derived from an earlier confirmation
+     */
+    public boolean isStale()
+    {
+        return stale;
+    }
+
+    /**
+     * @return  time in milliseconds since the epoch at which Gatekeeper last confirmed the token, 0 unless stale
+     */
+    public long getConfirmedAt()
+    {
+        return confirmedAt;
+    }
+
+    @Override
+    public String toString()
+    {
+        return stale ? "valid (stale, confirmed at " + confirmedAt + ")" : valid ? "valid" : "invalid";
+    }
+}
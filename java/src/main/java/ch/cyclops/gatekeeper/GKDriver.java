@@ -22,19 +22,30 @@
 package ch.cyclops.gatekeeper;
 
 import okhttp3.*;
+import okio.Buffer;
 import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.configuration.SystemConfiguration;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.log4j.*;
-import org.apache.log4j.pattern.IntegerPatternConverter;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
-public class GKDriver
+public class GKDriver implements AutoCloseable
 {
     private String gatekeeperUri;
     private int gatekeeperPort;
@@ -42,10 +53,42 @@ public class GKDriver
     private String adminPassword;
     private Logger driverLogger;
     private boolean internalStatus;
-    private String adminToken;
+    private OkHttpClient client;
+    private ExpiringLruCache<UserToken, Boolean> tokenCache;
+    private long tokenTtlPositive;
+    private long tokenTtlNegative;
+    private ServiceDecisionCache serviceCache;
+    private final GKAsyncDriver tokenFetcher = new GKAsyncDriver(this);
+    private AdminTokenManager adminTokens;
+    private int batchMaxInFlight;
+    private final SingleFlight<TokenCheck, Boolean> validationFlights = new SingleFlight<TokenCheck, Boolean>();
+    private final SingleFlight<Integer, Boolean> isAdminFlights = new SingleFlight<Integer, Boolean>();
+    private final SingleFlight<String, ArrayList<String>> userListFlights = new SingleFlight<String, ArrayList<String>>(ArrayList::new);
+    private final SingleFlight<String, ArrayList<String>> serviceListFlights = new SingleFlight<String, ArrayList<String>>(ArrayList::new);
+    private long batchTimeout;
+    private GatekeeperDirectory directory;
+    private final GKMetrics metrics = new GKMetrics();
+    private volatile RetryPolicy retryPolicy = RetryPolicy.fromConfiguration(new PropertiesConfiguration());
+    private ScheduledExecutorService timer;
+    private CircuitBreaker validationBreaker;
+    private CircuitBreaker adminBreaker;
+    private ConcurrencyLimiter limiter;
+    private WarmSnapshot snapshot;
+    private InvalidationBus invalidation;
+    private boolean snapshotAdminToken;
+    private boolean breakerFallback;
+    private EndpointRouter router;
+    private KnownGoodTokens knownGood;
+    private CallLog callLog;
+    private int warmUpConnections;
+    private long warmUpTimeout;
+    private String warmUpPath;
+    private int bulkConcurrency;
+    private TokenBucket bulkRate;
+    private TokenLeaseCache tokenLeases;
+    private CredentialVerifier credentials;
 
     public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-    private int attempCount;
 
     /**
      * Constructor class, creates the object given the configuration file path.
@@ -63,359 +106,1746 @@ public class GKDriver
             config.addConfiguration(new PropertiesConfiguration(confFile));
             //now logger configuration is done, we can start using it.
             driverLogger = Logger.getLogger("gatekeeper-driver.Driver");
-            gatekeeperUri = config.getProperty("gatekeeper.uri").toString();
-            gatekeeperPort = Integer.parseInt(config.getProperty("gatekeeper.port").toString());
+            callLog = new CallLog(driverLogger, config.getInt("gatekeeper.log.calls.sampleEvery", 100));
+            List<HttpUrl> endpoints = parseEndpoints(config);
+            gatekeeperUri = endpoints.get(0).scheme() + "://" + endpoints.get(0).host();
+            gatekeeperPort = endpoints.get(0).port();
             adminUserId = Integer.toString(uid, 10);
             adminPassword = pass;
+            client = buildHttpClient(config);
+            retryPolicy = RetryPolicy.fromConfiguration(config);
+            router = new EndpointRouter(endpoints, client, config, metrics,
+                    EndpointRouter.needsTimer(endpoints, config) ? timer() : null, driverLogger);
+            router.startHealthChecks(config.getString("gatekeeper.health.path", "/"),
+                    config.getLong("gatekeeper.health.interval", 5000), config.getLong("gatekeeper.health.timeout", 1000));
+            if(endpoints.size() > 1) driverLogger.info("balancing over " + endpoints.size() + " gatekeeper endpoints: " + endpoints);
+            if(config.getBoolean("gatekeeper.cache.token.enabled", false))
+            {
+                tokenCache = new ExpiringLruCache<UserToken, Boolean>(config.getInt("gatekeeper.cache.token.maxEntries", 10000));
+                tokenTtlPositive = config.getLong("gatekeeper.cache.token.ttl", 60000);
+                tokenTtlNegative = config.getLong("gatekeeper.cache.token.ttl.negative", 5000);
+                driverLogger.info("token validation cache enabled, ttl=" + tokenTtlPositive + "ms, negative ttl=" + tokenTtlNegative + "ms");
+            }
+            if(config.getBoolean("gatekeeper.cache.service.enabled", false))
+            {
+                serviceCache = new ServiceDecisionCache(config.getInt("gatekeeper.cache.service.maxEntriesPerService", 5000),
+                        config.getInt("gatekeeper.cache.service.maxServices", 256),
+                        config.getLong("gatekeeper.cache.service.ttl", 60000),
+                        config.getLong("gatekeeper.cache.service.ttl.negative", 5000));
+                driverLogger.info("service authorization cache enabled.");
+            }
+            if(config.getBoolean("gatekeeper.cache.lease.enabled", false))
+            {
+                tokenLeases = new TokenLeaseCache(config.getInt("gatekeeper.cache.lease.maxEntries", 10000),
+                        config.getLong("gatekeeper.cache.lease.lifetime", 1800000), config.getLong("gatekeeper.cache.lease.margin", 60000),
+                        config.getLong("gatekeeper.cache.lease.renewAhead", 300000), tokenFetcher::mintTokenAsync);
+                driverLogger.info("user token leases enabled.");
+            }
+            if(config.getBoolean("gatekeeper.cache.auth.enabled", false))
+            {
+                credentials = new CredentialVerifier(config.getInt("gatekeeper.cache.auth.maxEntries", 10000),
+                        config.getLong("gatekeeper.cache.auth.ttl", 300000), config.getInt("gatekeeper.cache.auth.iterations", 10000));
+                driverLogger.info("credential verification cache enabled.");
+            }
+            long renewAhead = config.getLong("gatekeeper.admin.token.renewAhead", 60000);
+            adminTokens = new AdminTokenManager(() -> tokenFetcher.mintTokenAsync(uid, pass),
+                    config.getLong("gatekeeper.admin.token.lifetime", 1800000), renewAhead,
+                    renewAhead > 0 ? timer() : null, driverLogger);
+            if(config.getBoolean("gatekeeper.breaker.enabled", false))
+            {
+                validationBreaker = CircuitBreaker.fromConfiguration("validation", config, driverLogger);
+                adminBreaker = CircuitBreaker.fromConfiguration("admin", config, driverLogger);
+                breakerFallback = config.getBoolean("gatekeeper.breaker.fallback", false);
+                driverLogger.info("circuit breakers enabled, fallback=" + breakerFallback);
+            }
+            if(config.getBoolean("gatekeeper.limiter.enabled", false))
+            {
+                limiter = ConcurrencyLimiter.fromConfiguration(config, timer());
+                driverLogger.info("adaptive concurrency limit enabled, " + limiter);
+            }
+            if(config.getBoolean("gatekeeper.metrics.jmx", false))
+            {
+                metrics.registerMBeans(driverLogger);
+                if(validationBreaker != null)
+                {
+                    metrics.registerMBean("circuitBreaker-validation", validationBreaker, driverLogger);
+                    metrics.registerMBean("circuitBreaker-admin", adminBreaker, driverLogger);
+                }
+                if(limiter != null) metrics.registerMBean("concurrencyLimiter", limiter, driverLogger);
+            }
+            if(config.getBoolean("gatekeeper.degraded.enabled", false))
+            {
+                long staleness = config.getLong("gatekeeper.degraded.staleness", 900000);
+                knownGood = new KnownGoodTokens(config.getInt("gatekeeper.degraded.maxEntries", 10000), staleness,
+                        config.getLong("gatekeeper.degraded.revalidate", 5000), tokenFetcher::answerAsync, timer(), driverLogger);
+                driverLogger.info("degraded mode enabled, confirmed tokens are accepted for " + staleness + "ms while gatekeeper is unavailable");
+            }
+            batchMaxInFlight = config.getInt("gatekeeper.batch.maxInFlight", 16);
+            batchTimeout = config.getLong("gatekeeper.batch.timeout", 2000);
+            bulkConcurrency = config.getInt("gatekeeper.bulk.concurrency", 8);
+            double bulkPerSecond = config.getDouble("gatekeeper.bulk.rate", 100);
+            if(bulkPerSecond > 0) bulkRate = new TokenBucket(bulkPerSecond, config.getInt("gatekeeper.bulk.burst", 20));
+            if(config.getBoolean("gatekeeper.directory.enabled", false))
+            {
+                directory = new GatekeeperDirectory(this, config.getLong("gatekeeper.directory.refresh", 60000));
+                directory.addListener((snapshot, addedUsers, removedUsers, addedServices, removedServices) -> {
+                    for(GKUser user : removedUsers)
+                    {
+                        invalidateUser(user.getId());
+                        invalidateCredentials(user.getId());
+                    }
+                    for(GKService service : removedServices) invalidateServiceKey(service.getKey());
+                });
+            }
+            if(config.getBoolean("gatekeeper.invalidation.enabled", false))
+            {
+                InvalidationTransport transport = newTransport(config);
+                byte[] secret = config.getString("gatekeeper.invalidation.secret", "").getBytes(StandardCharsets.UTF_8);
+                invalidation = new InvalidationBus(transport, new LocalInvalidations(), secret, timer(),
+                        config.getLong("gatekeeper.invalidation.batchDelay", 20), config.getInt("gatekeeper.invalidation.maxMessage", 1400),
+                        config.getLong("gatekeeper.invalidation.heartbeat", 5000), driverLogger);
+                invalidation.start();
+                driverLogger.info("invalidation bus enabled over " + transport);
+            }
+            if(config.getBoolean("gatekeeper.snapshot.enabled", false))
+            {
+                snapshot = new WarmSnapshot(Paths.get(config.getString("gatekeeper.snapshot.file", "gatekeeper-driver.snapshot")),
+                        config.getLong("gatekeeper.snapshot.maxAge", 3600000), driverLogger);
+                snapshotAdminToken = config.getBoolean("gatekeeper.snapshot.adminToken", false);
+                restoreSnapshot();
+                long interval = config.getLong("gatekeeper.snapshot.interval", 60000);
+                if(interval > 0) timer().scheduleWithFixedDelay(this::saveSnapshot, interval, interval, TimeUnit.MILLISECONDS);
+            }
+            if(directory != null) directory.start();
+            warmUpConnections = Math.min(config.getInt("gatekeeper.warmup.connections", 4), config.getInt("gatekeeper.http.pool.maxIdle", 8));
+            warmUpTimeout = config.getLong("gatekeeper.warmup.timeout", 5000);
+            warmUpPath = config.getString("gatekeeper.health.path", "/");
             internalStatus = true;
-            adminToken = "";
             driverLogger.info("gatekeeper driver initialized properly.");
+            if(config.getBoolean("gatekeeper.warmup.enabled", false)) warmUp();
         }
         catch (Exception ex)
         {
             internalStatus = false;
             if(driverLogger != null)
                 driverLogger.fatal("Error initializing driver: " + ex.getMessage());
+            //keep the driver closeable even if the configuration was broken
+            if(client == null) client = new OkHttpClient();
+            if(callLog == null) callLog = new CallLog(Logger.getLogger("gatekeeper-driver.Driver"), 0);
         }
     }
 
     /**
-     * This function gets the list of registered users with Gatekeeper.
+     * Reads the Gatekeeper replicas from gatekeeper.endpoints, a list of base urls such as http://gk1:8000, falling
+     * back to the single gatekeeper.uri and gatekeeper.port pair.
      * <p>
-     * @param attemptCount int value that allows internal attempts to fulfill the request. Should be a value between 0 and 4
-     * @return list of registered users as string ArrayList object, on error a null is returned
-     * @throws Exception    an Exception is raised and must be caught or processed
+     * @param config    the loaded driver configuration
+     * @return  the base urls of the replicas, at least one
      */
-    public ArrayList<String> getUserList(int attemptCount) throws Exception
+    private static List<HttpUrl> parseEndpoints(CompositeConfiguration config)
+    {
+        ArrayList<HttpUrl> endpoints = new ArrayList<HttpUrl>();
+        for(Object value : config.getList("gatekeeper.endpoints", Collections.emptyList()))
+        {
+            String endpoint = value.toString().trim();
+            if(endpoint.isEmpty()) continue;
+            HttpUrl url = HttpUrl.parse(endpoint);
+            if(url == null) throw new IllegalArgumentException("invalid gatekeeper endpoint: " + endpoint);
+            endpoints.add(url);
+        }
+        if(endpoints.isEmpty())
+        {
+            String single = config.getProperty("gatekeeper.uri").toString() + ":" + config.getProperty("gatekeeper.port").toString();
+            HttpUrl url = HttpUrl.parse(single);
+            if(url == null) throw new IllegalArgumentException("invalid gatekeeper uri: " + single);
+            endpoints.add(url);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Builds the single http client shared by all calls made through this driver. The connection pool, dispatcher
+     * limits and timeouts are read from the driver configuration, falling back to sensible defaults.
+     * <p>
+     * @param config    the loaded driver configuration
+     * @return  the configured OkHttpClient object
+     */
+    private OkHttpClient buildHttpClient(CompositeConfiguration config)
+    {
+        int maxIdle = config.getInt("gatekeeper.http.pool.maxIdle", 8);
+        long keepAlive = config.getLong("gatekeeper.http.pool.keepAlive", 300);
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getInt("gatekeeper.http.maxRequests", 64));
+        dispatcher.setMaxRequestsPerHost(config.getInt("gatekeeper.http.maxRequestsPerHost", 32));
+
+        driverLogger.debug("http client: pool.maxIdle=" + maxIdle + ", pool.keepAlive=" + keepAlive + "s, maxRequests="
+                + dispatcher.getMaxRequests() + ", maxRequestsPerHost=" + dispatcher.getMaxRequestsPerHost());
+
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdle, keepAlive, TimeUnit.SECONDS))
+                .dispatcher(dispatcher)
+                .connectTimeout(config.getLong("gatekeeper.http.timeout.connect", 10000), TimeUnit.MILLISECONDS)
+                .readTimeout(config.getLong("gatekeeper.http.timeout.read", 10000), TimeUnit.MILLISECONDS)
+                .writeTimeout(config.getLong("gatekeeper.http.timeout.write", 10000), TimeUnit.MILLISECONDS)
+                .eventListenerFactory(metrics.listenerFactory())
+                .addInterceptor(GKDriver::applyCallTimeouts)
+                .build();
+    }
+
+    /**
+     * Applies the connect and read timeouts of the CallOptions a request is tagged with.
+     */
+    private static Response applyCallTimeouts(Interceptor.Chain chain) throws IOException
+    {
+        CallOptions options = chain.request().tag(CallOptions.class);
+        if(options == null) return chain.proceed(chain.request());
+        Interceptor.Chain limited = chain;
+        if(options.getConnectTimeoutMillis() > 0)
+            limited = limited.withConnectTimeout((int) options.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS);
+        if(options.getReadTimeoutMillis() > 0)
+            limited = limited.withReadTimeout((int) options.getReadTimeoutMillis(), TimeUnit.MILLISECONDS);
+        return limited.proceed(chain.request());
+    }
+
+    /**
+     * Prepares the driver to serve its first calls at full speed: the endpoint host names are resolved, pooled
+     * connections are opened to every endpoint, the admin token is fetched and the response parsers are loaded. A
+     * failing phase is logged and does not prevent the others from running.
+     * <p>
+     * @return  the time taken by every phase
+     */
+    public WarmUpReport warmUp()
     {
-        OkHttpClient client = new OkHttpClient();
-        RequestBody body = RequestBody.create(JSON, "");
-        ArrayList<String> result = null;
-        attemptCount++;
-        //this is an admin only call
-        //try first with the available token, if fails then generate a new token
-        if(adminToken.length() > 0)
+        if(router == null) throw new IllegalStateException("the driver was not initialized properly");
+        boolean complete = true;
+        List<GKEndpoint> endpoints = getEndpoints();
+
+        long start = System.nanoTime();
+        for(GKEndpoint endpoint : endpoints)
+        {
+            String host = HttpUrl.parse(endpoint.getUrl()).host();
+            try
+            {
+                client.dns().lookup(host);
+            }
+            catch (IOException ex)
+            {
+                driverLogger.warn("warm-up: could not resolve " + host + ": " + ex.getMessage());
+                complete = false;
+            }
+        }
+        long dns = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int connections = 0;
+        try
+        {
+            connections = preconnect(endpoints);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if(connections < warmUpConnections * endpoints.size())
+        {
+            driverLogger.warn("warm-up: opened " + connections + " of " + warmUpConnections * endpoints.size() + " connections.");
+            complete = false;
+        }
+        long connect = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        try
+        {
+            if(adminTokens.getToken().length() == 0) complete = false;
+        }
+        catch (Exception ex)
+        {
+            driverLogger.warn("warm-up: could not fetch the admin token: " + ex.getMessage());
+            complete = false;
+        }
+        long adminToken = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        try
+        {
+            Buffer users = new Buffer().writeUtf8("{\"userlist\": [\"warm-up\"], \"userids\": [0]}");
+            GKListParser.parseUsers(users, user -> { });
+            Buffer services = new Buffer().writeUtf8("{\"servicelist\": {\"shortname\": [\"warm-up\"], \"service-key\": [\"key\"], \"id\": [0]}}");
+            GKListParser.parseServices(services, service -> { });
+            new JSONObject("{\"token\": {\"id\": \"warm-up\"}, \"info\": [{\"id\": 0, \"isadmin\": \"n\"}]}").getJSONArray("info").getJSONObject(0);
+        }
+        catch (IOException ex)
         {
-            Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/admin/user/").
-                    header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", adminToken).
-                    get().build();
-            Response response = client.newCall(request).execute();
+            driverLogger.warn("warm-up: response parsers failed: " + ex.getMessage());
+            complete = false;
+        }
+        long parsing = System.nanoTime() - start;
 
-            driverLogger.info("List User::Response code: " + response.code());
+        WarmUpReport report = new WarmUpReport(TimeUnit.NANOSECONDS.toMillis(dns), TimeUnit.NANOSECONDS.toMillis(connect), connections,
+                TimeUnit.NANOSECONDS.toMillis(adminToken), TimeUnit.NANOSECONDS.toMillis(parsing), complete);
+        driverLogger.info("warm-up finished: " + report);
+        return report;
+    }
 
-            if(response.code() == 200)
+    /**
+     * Opens gatekeeper.warmup.connections connections to every endpoint by sending as many concurrent requests to the
+     * health path, the connections are kept in the pool once the responses are read.
+     * <p>
+     * @return  the number of requests that were answered
+     */
+    private int preconnect(List<GKEndpoint> endpoints) throws InterruptedException
+    {
+        final CountDownLatch done = new CountDownLatch(warmUpConnections * endpoints.size());
+        final AtomicInteger answered = new AtomicInteger();
+        ArrayList<Call> calls = new ArrayList<Call>();
+        for(GKEndpoint endpoint : endpoints)
+        {
+            Request probe = new Request.Builder().url(endpoint.getUrl() + warmUpPath.substring(warmUpPath.startsWith("/") ? 1 : 0))
+                    .header("User-Agent", "OkHttp Headers.java").get().build();
+            for(int i=0; i<warmUpConnections; i++)
             {
-                ResponseBody rBody = response.body();
-                JSONObject jsonObj = new JSONObject(rBody.string());
-                JSONArray uArray = jsonObj.getJSONArray("userlist");
-                JSONArray uidArray = jsonObj.getJSONArray("userids");
-                driverLogger.info("Got user-list with : " + uArray.length() + " users.");
-                result = new ArrayList<String>(uArray.length());
-                for(int i=0; i<uArray.length(); i++)
+                Call call = client.newCall(probe);
+                calls.add(call);
+                call.enqueue(new Callback()
                 {
-                    result.add(i, uArray.getString(i) + "," + uidArray.getString(i));
-                }
+                    @Override
+                    public void onFailure(Call call, IOException e)
+                    {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response)
+                    {
+                        response.close();
+                        answered.incrementAndGet();
+                        done.countDown();
+                    }
+                });
             }
-            else
+        }
+        if(!done.await(warmUpTimeout, TimeUnit.MILLISECONDS))
+            for(Call call : calls) call.cancel();
+        return answered.get();
+    }
+
+    /**
+     * Releases the resources held by this driver, the pooled connections are evicted and the dispatcher threads are
+     * allowed to terminate. The driver must not be used after this call.
+     */
+    @Override
+    public void close()
+    {
+        if(snapshot != null) saveSnapshot();
+        if(invalidation != null) invalidation.close();
+        if(directory != null) directory.close();
+        metrics.unregisterMBeans();
+        if(adminTokens != null) adminTokens.close();
+        if(router != null) router.close();
+        if(knownGood != null) knownGood.close();
+        synchronized (this)
+        {
+            if(timer != null) timer.shutdownNow();
+        }
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        if(driverLogger != null)
+            driverLogger.info("gatekeeper driver closed.");
+    }
+
+    /**
+     * Writes the warm state of the driver to the snapshot file: the admin token if gatekeeper.snapshot.adminToken is
+     * set, the directory and the cached validation decisions. Failures are logged, the driver keeps working.
+     */
+    void saveSnapshot()
+    {
+        try
+        {
+            long start = System.nanoTime();
+            long size = snapshot.save(this::exportWarmState);
+            driverLogger.debug("snapshot of " + size + " bytes written to " + snapshot.getFile() + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+        catch (Exception ex)
+        {
+            driverLogger.warn("could not write snapshot " + snapshot.getFile() + ": " + ex.getMessage());
+        }
+    }
+
+    private void exportWarmState(WarmSnapshot.Sink sink)
+    {
+        final long now = System.currentTimeMillis();
+        if(snapshotAdminToken && adminTokens != null)
+        {
+            String token = adminTokens.currentToken();
+            long remaining = adminTokens.remainingMillis();
+            if(token != null && remaining > 0) sink.adminToken(token, now + remaining);
+        }
+        if(directory != null)
+        {
+            DirectorySnapshot listing = directory.getSnapshot();
+            if(listing.getCreatedAt() > 0)
+                sink.directory(new ArrayList<GKUser>(listing.getUsers()), new ArrayList<GKService>(listing.getServices()), listing.getCreatedAt());
+        }
+        if(tokenCache != null)
+            tokenCache.forEachLive((key, valid, ttl) -> sink.tokenDecision(key.token, key.userId, valid, now + ttl));
+        if(serviceCache != null)
+            serviceCache.forEachLive((serviceKey, token, granted, ttl) -> sink.serviceDecision(serviceKey, token, granted, now + ttl));
+    }
+
+    /**
+     * Loads the entries of the snapshot file that are still valid into the caches of the driver. Time-to-live values
+     * are capped by the ones configured now. A missing, outdated or damaged snapshot leaves the driver cold.
+     */
+    private void restoreSnapshot()
+    {
+        final long now = System.currentTimeMillis();
+        long start = System.nanoTime();
+        int restored;
+        try
+        {
+            restored = snapshot.load(new WarmSnapshot.Sink()
             {
-                //something wrong with the token.
-                driverLogger.warn("Error probably with the admin-token. Remaking this call automatically. Attempt - " + attemptCount);
-                this.adminToken = "";
-                if(attemptCount < 5) {
-                    response.body().close();
-                    return this.getUserList(attemptCount);
+                @Override
+                public void adminToken(String token, long expiresAt)
+                {
+                    if(snapshotAdminToken) adminTokens.restore(token, expiresAt - now);
                 }
-                else
+
+                @Override
+                public void directory(List<GKUser> users, List<GKService> services, long createdAt)
                 {
-                    response.body().close();
-                    driverLogger.error("Retry limit reached! Failing gracefully.");
+                    if(directory != null) directory.publish(new DirectorySnapshot(users, services, createdAt));
                 }
-            }
+
+                @Override
+                public void tokenDecision(String token, int userId, boolean valid, long expiresAt)
+                {
+                    if(tokenCache != null)
+                        tokenCache.put(new UserToken(token, userId), valid, Math.min(expiresAt - now, valid ? tokenTtlPositive : tokenTtlNegative));
+                }
+
+                @Override
+                public void serviceDecision(String serviceKey, String token, boolean granted, long expiresAt)
+                {
+                    if(serviceCache != null) serviceCache.restore(serviceKey, token, granted, expiresAt - now);
+                }
+            });
+        }
+        catch (IOException ex)
+        {
+            driverLogger.warn("could not load snapshot " + snapshot.getFile() + ", starting cold: " + ex.getMessage());
+            return;
         }
+        if(restored >= 0)
+            driverLogger.info("restored " + restored + " entries from snapshot " + snapshot.getFile() + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    /*
+     * Request builders and response parsers shared by the blocking methods of this class and GKAsyncDriver.
+     */
+
+    String url(String path)
+    {
+        return gatekeeperUri + ":" + gatekeeperPort + path;
+    }
+
+    /**
+     * Creates the call for a request, sent to the endpoint chosen by the router.
+     */
+    Call newCall(Request request)
+    {
+        return router != null ? router.newCall(request) : client.newCall(request);
+    }
+
+    AdminTokenManager getAdminTokens()
+    {
+        return adminTokens;
+    }
+
+    SingleFlight<TokenCheck, Boolean> getValidationFlights()
+    {
+        return validationFlights;
+    }
+
+    SingleFlight<Integer, Boolean> getIsAdminFlights()
+    {
+        return isAdminFlights;
+    }
+
+    SingleFlight<String, ArrayList<String>> getUserListFlights()
+    {
+        return userListFlights;
+    }
+
+    SingleFlight<String, ArrayList<String>> getServiceListFlights()
+    {
+        return serviceListFlights;
+    }
+
+    Logger getLogger()
+    {
+        return driverLogger;
+    }
+
+    CallLog getCallLog()
+    {
+        return callLog;
+    }
+
+    TokenLeaseCache getTokenLeases()
+    {
+        return tokenLeases;
+    }
+
+    /**
+     * Drops what the driver remembers about the credentials of a user, after its password was changed or the account
+     * was removed through this driver.
+     */
+    void invalidateCredentials(int userId)
+    {
+        if(tokenLeases != null) tokenLeases.invalidate(userId);
+        if(credentials != null) credentials.invalidate(userId);
+    }
+
+    /**
+     * Forgets what this driver, and with the invalidation bus every driver of the fleet, knows about a user whose
+     * account was deleted or whose password changed.
+     */
+    void userChanged(int userId)
+    {
+        if(invalidation != null) invalidation.invalidateUser(userId);
         else
         {
-            //generate a new token
-            if(attemptCount < 5) {
-                adminToken = generateToken(Integer.parseInt(adminUserId), adminPassword);
-                if (adminToken == null) adminToken = "";
-                driverLogger.warn("AttemptCount: " + attemptCount);
-                return this.getUserList(attemptCount); //call the function again now that token has been set
-            }
+            invalidateCredentials(userId);
+            invalidateUser(userId);
         }
-        return result;
+    }
+
+    void userChanged(String userId)
+    {
+        try
+        {
+            userChanged(Integer.parseInt(userId.trim()));
+        }
+        catch (NumberFormatException ex)
+        {
+            //not a user-id this driver could have seen
+        }
+    }
+
+    /**
+     * A (re)registered service starts with a clean slate of authorization decisions. When the short-name was known
+     * to the directory under another key, the decisions taken for the old key are dropped too.
+     * <p>
+     * @return  the registered service as returned by parseService
+     */
+    HashMap<String, String> serviceRegistered(String shortName, HashMap<String, String> service)
+    {
+        GKService previous = directory != null ? directory.getServiceByName(shortName) : null;
+        if(previous != null && !previous.getKey().equals(service.get("key"))) serviceKeyChanged(previous.getKey());
+        serviceKeyChanged(service.get("key"));
+        return service;
+    }
+
+    private void serviceKeyChanged(String serviceKey)
+    {
+        if(invalidation != null) invalidation.invalidateServiceKey(serviceKey);
+        else invalidateServiceKey(serviceKey);
+    }
+
+    /**
+     * Applies the invalidations of the bus to the caches of this driver.
+     */
+    private final class LocalInvalidations implements InvalidationBus.Receiver
+    {
+        @Override
+        public void userChanged(int userId)
+        {
+            invalidateCredentials(userId);
+            invalidateUser(userId);
+        }
+
+        @Override
+        public void tokensRevoked(Predicate<String> revoked)
+        {
+            invalidateTokens(revoked);
+        }
+
+        @Override
+        public void serviceKeysChanged(Predicate<String> changed)
+        {
+            invalidateServiceKeys(changed);
+        }
+
+        @Override
+        public void invalidationsLost()
+        {
+            invalidateTokenCache();
+            if(serviceCache != null) serviceCache.invalidateAll();
+            if(knownGood != null) knownGood.invalidateIf(check -> true);
+            if(tokenLeases != null) tokenLeases.invalidateAll();
+            if(credentials != null) credentials.invalidateAll();
+        }
+    }
+
+    /**
+     * Creates the transport of the invalidation bus: multicast, or the class named by gatekeeper.invalidation.transport.
+     */
+    private static InvalidationTransport newTransport(CompositeConfiguration config) throws Exception
+    {
+        String transport = config.getString("gatekeeper.invalidation.transport", "multicast");
+        if(transport.equals("multicast")) return new MulticastTransport(config);
+        return Class.forName(transport).asSubclass(InvalidationTransport.class).getConstructor(Configuration.class).newInstance(config);
+    }
+
+    boolean verifiedLocally(int userId, String password)
+    {
+        return credentials != null && credentials.verify(userId, password);
+    }
+
+    /**
+     * @return  the generation of the remembered credentials of a user, read before Gatekeeper is asked
+     */
+    long credentialGeneration(int userId)
+    {
+        return credentials != null ? credentials.generation(userId) : 0;
+    }
+
+    /**
+     * @param generation    the credential generation read before the call, an accepted password is not remembered
+     *                      if the credentials of the user were invalidated meanwhile
+     */
+    boolean handleAuthentication(int userId, String password, long generation, Response response)
+    {
+        if(response.code() != 202) return false;
+        if(credentials != null) credentials.record(userId, password, generation);
+        return true;
+    }
+
+    void invalidateCredentials(String userId)
+    {
+        try
+        {
+            invalidateCredentials(Integer.parseInt(userId.trim()));
+        }
+        catch (NumberFormatException ex)
+        {
+            //not a user-id this driver could have seen
+        }
+    }
+
+    Request validateRequest(String token, int userId)
+    {
+        return new Request.Builder().url(url("/token/validate/" + token)).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Uid", Integer.toString(userId)).
+                get().tag(GKOperation.class, GKOperation.VALIDATE_TOKEN_USER).build();
+    }
+
+    Request validateServiceRequest(String token, String serviceKey)
+    {
+        return new Request.Builder().url(url("/token/validate/" + token)).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Service-Key", serviceKey).
+                get().tag(GKOperation.class, GKOperation.VALIDATE_TOKEN_SERVICE).build();
+    }
+
+    Request authenticationRequest(int userId, String password)
+    {
+        return new Request.Builder().url(url("/auth/" + userId)).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Password", password).
+                get().tag(GKOperation.class, GKOperation.SIMPLE_AUTHENTICATION).build();
+    }
+
+    Request tokenRequest(int userId, String password)
+    {
+        return new Request.Builder().url(url("/token/")).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Password", password).
+                addHeader("X-Auth-Uid", Integer.toString(userId)).post(RequestBody.create(JSON, "")).tag(GKOperation.class, GKOperation.GENERATE_TOKEN).build();
+    }
+
+    Request userListRequest(String token)
+    {
+        return new Request.Builder().url(url("/admin/user/")).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", token).
+                get().tag(GKOperation.class, GKOperation.LIST_USERS).build();
+    }
+
+    Request registerUserRequest(String token, String username, String password, boolean isAdmin, String accessList)
+    {
+        JSONObject callBody = new JSONObject();
+        callBody.put("username", username);
+        callBody.put("password", password);
+        if (isAdmin) callBody.put("isadmin", "y");
+        else callBody.put("isadmin", "n");
+        callBody.put("accesslist", accessList.trim());
+        if(driverLogger.isDebugEnabled()) driverLogger.debug("register-user call with json: " + CallLog.redact(callBody));
+        return new Request.Builder().url(url("/admin/user/")).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", token).
+                post(RequestBody.create(JSON, callBody.toString())).tag(GKOperation.class, GKOperation.REGISTER_USER).build();
+    }
+
+    Request deleteUserRequest(String token, int userId)
+    {
+        return new Request.Builder().url(url("/admin/user/" + userId)).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", token).delete().tag(GKOperation.class, GKOperation.DELETE_USER).build();
+    }
+
+    Request userInfoRequest(String token, int userId)
+    {
+        return new Request.Builder().url(url("/admin/user/" + userId)).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", token).get().tag(GKOperation.class, GKOperation.IS_ADMIN).build();
+    }
+
+    Request updatePasswordRequest(String userId, String password, String token)
+    {
+        JSONObject callBody = new JSONObject();
+        callBody.put("password", password);
+        if(driverLogger.isDebugEnabled()) driverLogger.debug("update password call for user-id: " + userId + " with json: " + CallLog.redact(callBody));
+        return new Request.Builder().url(url("/password/" + userId)).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", token).
+                put(RequestBody.create(JSON, callBody.toString())).tag(GKOperation.class, GKOperation.UPDATE_PASSWORD).build();
+    }
+
+    Request serviceListRequest(String token)
+    {
+        return new Request.Builder().url(url("/admin/service/")).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", token).
+                get().tag(GKOperation.class, GKOperation.LIST_SERVICES).build();
+    }
+
+    Request registerServiceRequest(String token, String shortName, String description)
+    {
+        JSONObject callBody = new JSONObject();
+        callBody.put("shortname", shortName);
+        callBody.put("description", description);
+        if(driverLogger.isDebugEnabled()) driverLogger.debug("register-service call with json: " + callBody.toString());
+        return new Request.Builder().url(url("/admin/service/")).
+                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", token).
+                post(RequestBody.create(JSON, callBody.toString())).tag(GKOperation.class, GKOperation.REGISTER_SERVICE).build();
+    }
+
+    String parseToken(ResponseBody rBody) throws Exception
+    {
+        JSONObject jsonObj = new JSONObject(rBody.string());
+        JSONObject temp = new JSONObject(jsonObj.get("token").toString());
+        String token = temp.get("id").toString();
+        if(driverLogger.isDebugEnabled()) driverLogger.debug("Received user-token: " + CallLog.mask(token));
+        return token;
+    }
+
+    ArrayList<String> parseUserList(ResponseBody rBody) throws Exception
+    {
+        final ArrayList<String> result = new ArrayList<String>();
+        int count = GKListParser.parseUsers(rBody.source(), user -> result.add(user.toString()));
+        driverLogger.info("Got user-list with : " + count + " users.");
+        return result;
+    }
+
+    int parseUserId(ResponseBody rBody) throws Exception
+    {
+        JSONObject jsonObj = new JSONObject(rBody.string());
+        JSONArray uinfoArray = jsonObj.getJSONArray("info");
+        JSONObject temp = new JSONObject(uinfoArray.get(0).toString());
+        if(driverLogger.isDebugEnabled()) driverLogger.debug("Got user-id: " + temp.get("id"));
+        return Integer.parseInt(temp.get("id").toString());
+    }
+
+    boolean parseIsAdmin(ResponseBody rBody) throws Exception
+    {
+        JSONObject jsonObj = new JSONObject(rBody.string());
+        JSONArray uinfoArray = jsonObj.getJSONArray("info");
+        JSONObject temp = new JSONObject(uinfoArray.get(0).toString());
+        String is_admin = temp.get("isadmin").toString();
+        if(driverLogger.isDebugEnabled()) driverLogger.debug("Got isAdmin flag: " + is_admin);
+        return is_admin.equalsIgnoreCase("y");
+    }
+
+    ArrayList<String> parseServiceList(ResponseBody rBody) throws Exception
+    {
+        final ArrayList<String> result = new ArrayList<String>();
+        int count = GKListParser.parseServices(rBody.source(), service -> result.add(service.toString()));
+        driverLogger.info("Got service-list with : " + count + " services.");
+        return result;
+    }
+
+    HashMap<String, String> parseService(ResponseBody rBody) throws Exception
+    {
+        JSONObject jsonObj = new JSONObject(rBody.string());
+        JSONArray uinfoArray = jsonObj.getJSONArray("info");
+        JSONObject temp = new JSONObject(uinfoArray.get(0).toString());
+        driverLogger.info("Got service-uri: " + temp.get("service-uri"));
+        HashMap<String, String> result = new HashMap<String, String>();
+        result.put("uri", temp.getString("service-uri"));
+        result.put("key", temp.getString("service-key"));
+        return result;
+    }
+
+    /**
+     * @return  the generation of the cached decisions about the check, to be read before asking Gatekeeper
+     */
+    long validationGeneration(TokenCheck check)
+    {
+        return serviceCache != null && check.isServiceCheck() ? serviceCache.generation(check.getServiceKey()) : 0;
+    }
+
+    Request validationRequest(TokenCheck check)
+    {
+        return check.isServiceCheck() ? validateServiceRequest(check.getToken(), check.getServiceKey())
+                : validateRequest(check.getToken(), check.getUserId());
+    }
+
+    /**
+     * Handles the response to a token validation, the decision is recorded in the validation caches.
+     * <p>
+     * @param generation    the generation of the cached decisions read by validationGeneration before the call
+     * @return  the decision of Gatekeeper, null if it gave no definitive answer (a server side error, or a 408 or 429
+     *          from an overloaded Gatekeeper)
+     */
+    Boolean handleValidation(TokenCheck check, long generation, Response response)
+    {
+        int code = response.code();
+        if(check.isServiceCheck()) recordServiceDecision(check.getToken(), check.getServiceKey(), generation, code);
+        else recordValidation(check.getToken(), check.getUserId(), code);
+        return code == 200 ? Boolean.TRUE : isDenial(code) ? Boolean.FALSE : null;
+    }
+
+    /**
+     * @return  true if Gatekeeper definitively refused a token, other client errors such as 408 or 429 say nothing
+     *          about the token
+     */
+    static boolean isDenial(int code)
+    {
+        return code == 401 || code == 403 || code == 404;
+    }
+
+    /**
+     * Turns the outcome of a validation call into a decision. A token confirmed by Gatekeeper is remembered as known
+     * good, if Gatekeeper gave no answer a known good token is accepted with a stale decision.
+     * <p>
+     * @param check     the validated token
+     * @param answer    the decision of Gatekeeper, null if it failed to take one
+     * @param error     the error the call failed with, null if it completed
+     * @return  the decision
+     * @throws Exception    the error of the call, unless a stale decision could be taken
+     */
+    GKDecision decide(TokenCheck check, Boolean answer, Throwable error) throws Exception
+    {
+        if(answer != null)
+        {
+            if(knownGood != null) knownGood.record(check, answer);
+            return GKDecision.of(answer);
+        }
+        GKDecision stale = knownGood != null ? knownGood.lookup(check) : null;
+        if(stale != null) return stale;
+        if(error instanceof Exception) throw (Exception) error;
+        if(error instanceof Error) throw (Error) error;
+        return GKDecision.INVALID;
+    }
+
+    Boolean cachedDecision(TokenCheck check)
+    {
+        return check.isServiceCheck() ? cachedServiceDecision(check.getToken(), check.getServiceKey())
+                : cachedValidation(check.getToken(), check.getUserId());
+    }
+
+    Boolean cachedValidation(String token, int userId)
+    {
+        return tokenCache != null ? tokenCache.get(new UserToken(token, userId)) : null;
+    }
+
+    void recordValidation(String token, int userId, int code)
+    {
+        //only definitive answers are cached, server side errors and throttling must not be remembered as invalid tokens
+        if(tokenCache == null) return;
+        if(code == 200) tokenCache.put(new UserToken(token, userId), Boolean.TRUE, tokenTtlPositive);
+        else if(isDenial(code)) tokenCache.put(new UserToken(token, userId), Boolean.FALSE, tokenTtlNegative);
+    }
+
+    Boolean cachedServiceDecision(String token, String serviceKey)
+    {
+        return serviceCache != null ? serviceCache.get(serviceKey, token) : null;
+    }
+
+    void recordServiceDecision(String token, String serviceKey, long generation, int code)
+    {
+        if(serviceCache != null && (code == 200 || isDenial(code)))
+            serviceCache.put(serviceKey, token, code == 200, generation);
+    }
+
+    <T> T execute(Function<String, Request> requestFor, boolean admin, ResponseHandler<T> handler, T fallback) throws Exception
+    {
+        return execute(requestFor, admin, handler, fallback, CallOptions.DEFAULT);
+    }
+
+    /**
+     * Runs a call under the retry policy of this driver. Admin-only calls are made with the admin token, a call
+     * rejected with 401 or 403 is repeated once with a renewed token. Transient failures are repeated with backoff as
+     * long as the retry policy allows it, the final response is passed to the handler. Every attempt must be granted by
+     * the circuit breaker of the operation, if any. The deadline of the options bounds the whole call, the wait for the
+     * admin token included.
+     * <p>
+     * @param requestFor    builds the request, given the admin token for admin-only calls and null otherwise
+     * @param admin         true if the call needs the admin token
+     * @param handler       turns the final response into the result
+     * @param fallback      the result returned if Gatekeeper rejected the admin credentials, or if the circuit breaker
+     *                      is open and gatekeeper.breaker.fallback is set
+     * @param options       the deadline, http timeouts and canceller of the call
+     * @return  the result produced by the handler
+     * @throws Exception    the i/o error of the last attempt, GKTimeoutException if the call ran out of time,
+     *                      GKCircuitOpenException if the circuit breaker refused the call, CancellationException if the
+     *                      call was cancelled, or an error raised by the handler
+     */
+    <T> T execute(Function<String, Request> requestFor, boolean admin, ResponseHandler<T> handler, T fallback, CallOptions options) throws Exception
+    {
+        RetryPolicy policy = retryPolicy;
+        long callStart = System.nanoTime();
+        long deadline = options.deadlineNanos(callStart, policy.deadlineFromNow());
+        CallCanceller canceller = options.getCanceller();
+        String adminToken = admin ? await(adminTokens.getTokenAsync(), "admin token", callStart, deadline, options) : null;
+        boolean tokenRenewed = false;
+        int attempt = 1;
+        while(true)
+        {
+            if(admin && adminToken.length() == 0)
+            {
+                driverLogger.error("admin credentials were rejected, failing gracefully.");
+                return fallback;
+            }
+            Request request = requestFor.apply(adminToken);
+            GKOperation operation = request.tag(GKOperation.class);
+            if(canceller != null && canceller.isCancelled()) throw new CancellationException(operation.getMetricName() + " was cancelled");
+            if(options.hasDeadline() && System.nanoTime() - deadline >= 0)
+                throw new GKTimeoutException(operation.getMetricName(), elapsedMillis(callStart));
+            if(limiter != null) limiter.acquire(deadline - System.nanoTime());
+            CircuitBreaker breaker = breakerFor(operation);
+            if(breaker != null && !breaker.tryAcquire())
+            {
+                if(limiter != null) limiter.release();
+                return shed(breaker, fallback);
+            }
+            long delay;
+            Response response;
+            long start = System.nanoTime();
+            //until the outcome is recorded the limiter slot and the breaker probe are held, give them back on any throw
+            boolean settled = false;
+            try
+            {
+                if(options.hasHttpTimeouts()) request = request.newBuilder().tag(CallOptions.class, options).build();
+                Call call = newCall(request);
+                if(options.hasDeadline()) call.timeout().deadlineNanoTime(deadline);
+                Runnable abort = canceller != null ? call::cancel : null;
+                if(abort != null) canceller.register(abort);
+                start = System.nanoTime();
+                try
+                {
+                    response = call.execute();
+                }
+                catch (IOException ex)
+                {
+                    boolean cancelled = canceller != null && canceller.isCancelled();
+                    settled = true;
+                    if(breaker != null)
+                    {
+                        //a cancelled call says nothing about the health of Gatekeeper
+                        if(cancelled) breaker.release();
+                        else breaker.onResult(true, System.nanoTime() - start);
+                    }
+                    if(limiter != null)
+                    {
+                        if(cancelled) limiter.release();
+                        else limiter.onSample(System.nanoTime() - start, true);
+                    }
+                    callLog.record(operation, ex, System.nanoTime() - start, attempt);
+                    if(cancelled) throw new CancellationException(operation.getMetricName() + " was cancelled");
+                    delay = policy.isRetryable(operation, ex) ? policy.nextDelayMillis(attempt, deadline) : -1;
+                    if(delay < 0) throw timedOut(ex, operation, callStart, deadline, options);
+                    driverLogger.warn(operation.getMetricName() + " failed with " + ex + ", attempt " + attempt + ", retrying in " + delay + "ms");
+                    metrics.recordRetry(operation);
+                    attempt++;
+                    backoff(delay, operation, canceller);
+                    continue;
+                }
+                finally
+                {
+                    if(abort != null) canceller.unregister(abort);
+                }
+                settled = true;
+            }
+            finally
+            {
+                if(!settled)
+                {
+                    if(breaker != null) breaker.release();
+                    if(limiter != null) limiter.release();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if(breaker != null) breaker.onResult(response.code() >= 500, elapsed);
+            if(limiter != null) limiter.onSample(elapsed, isOverloaded(response.code()));
+            callLog.record(operation, response.code(), elapsed, attempt);
+            String rejectedToken = null;
+            try
+            {
+                int code = response.code();
+                if(admin && !tokenRenewed && (code == 401 || code == 403))
+                {
+                    driverLogger.warn("Error probably with the admin-token. Remaking this call automatically.");
+                    rejectedToken = adminToken;
+                    delay = 0;
+                }
+                else
+                {
+                    delay = policy.isRetryable(operation, code) ? policy.nextDelayMillis(attempt, deadline) : -1;
+                    if(delay < 0) return handler.handle(response);
+                    driverLogger.warn(operation.getMetricName() + " returned " + code + ", attempt " + attempt + ", retrying in " + delay + "ms");
+                    attempt++;
+                }
+            }
+            finally
+            {
+                response.body().close();
+            }
+            metrics.recordRetry(operation);
+            if(rejectedToken != null)
+            {
+                tokenRenewed = true;
+                adminToken = await(adminTokens.refreshAsync(rejectedToken), "admin token", callStart, deadline, options);
+            }
+            else
+            {
+                backoff(delay, operation, canceller);
+            }
+        }
+    }
+
+    /**
+     * Waits for a step of a call that completes asynchronously, such as the admin token, within the call deadline.
+     */
+    <V> V await(CompletableFuture<V> future, String step, long callStart, long deadline, CallOptions options) throws Exception
+    {
+        CallCanceller canceller = options.getCanceller();
+        final CompletableFuture<V> waiter = canceller != null ? future.thenApply(Function.identity()) : future;
+        Runnable abort = () -> waiter.cancel(false);
+        if(canceller != null) canceller.register(abort);
+        try
+        {
+            if(!options.hasDeadline()) return waiter.get();
+            return waiter.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        }
+        catch (ExecutionException ex)
+        {
+            if(ex.getCause() instanceof Exception) throw (Exception) ex.getCause();
+            throw ex;
+        }
+        catch (TimeoutException ex)
+        {
+            throw new GKTimeoutException(step, elapsedMillis(callStart));
+        }
+        finally
+        {
+            if(canceller != null) canceller.unregister(abort);
+        }
+    }
+
+    /**
+     * Reports an i/o error that ended a call as GKTimeoutException if it was caused by a timeout or the call deadline.
+     */
+    IOException timedOut(IOException error, GKOperation operation, long callStart, long deadline, CallOptions options)
+    {
+        if(error instanceof GKTimeoutException || Thread.currentThread().isInterrupted()) return error;
+        boolean expired = options.hasDeadline() && System.nanoTime() - deadline >= 0;
+        if(!expired && !(error instanceof InterruptedIOException)) return error;
+        GKTimeoutException timeout = new GKTimeoutException(operation.getMetricName(), elapsedMillis(callStart));
+        timeout.initCause(error);
+        return timeout;
+    }
+
+    private static void backoff(long delay, GKOperation operation, CallCanceller canceller) throws InterruptedException
+    {
+        if(canceller == null) Thread.sleep(delay);
+        else if(canceller.await(delay)) throw new CancellationException(operation.getMetricName() + " was cancelled");
+    }
+
+    static long elapsedMillis(long start)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Runs a call through a call group, unless it has its own options: such a call is never held up by an identical
+     * call with a longer deadline.
+     */
+    private static <K, V> V coalesce(SingleFlight<K, V> flights, K key, CallOptions options, Callable<V> call) throws Exception
+    {
+        return options == CallOptions.DEFAULT ? flights.execute(key, call) : call.call();
+    }
+
+    /**
+     * @return  true if the status code signals that Gatekeeper is overloaded
+     */
+    static boolean isOverloaded(int status)
+    {
+        return status == 429 || status == 503;
+    }
+
+    /**
+     * @return  the circuit breaker guarding the endpoint class of an operation, null if circuit breakers are disabled
+     */
+    CircuitBreaker breakerFor(GKOperation operation)
+    {
+        return operation.isValidation() ? validationBreaker : adminBreaker;
+    }
+
+    /**
+     * Produces the result of a call refused by an open circuit breaker.
+     */
+    <T> T shed(CircuitBreaker breaker, T fallback) throws GKCircuitOpenException
+    {
+        if(breakerFallback) return fallback;
+        throw new GKCircuitOpenException(breaker.getName());
+    }
+
+    /**
+     * Returns the executor used to run delayed work of the driver, such as the backoff between two attempts of an
+     * asynchronous call. It is created on first use.
+     */
+    ScheduledExecutorService timer()
+    {
+        synchronized (this)
+        {
+            if(timer == null)
+            {
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                    Thread t = new Thread(r, "gatekeeper-timer");
+                    t.setDaemon(true);
+                    return t;
+                });
+                executor.setRemoveOnCancelPolicy(true);
+                timer = executor;
+            }
+            return timer;
+        }
+    }
+
+    /**
+     * Returns the retry policy applied to the calls of this driver and of GKAsyncDriver instances wrapping it.
+     * <p>
+     * @return  the current retry policy
+     */
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * Replaces the retry policy read from the gatekeeper.retry.* configuration keys, calls already in progress keep
+     * the policy they started with.
+     * <p>
+     * @param retryPolicy   the policy to apply, RetryPolicy.none() disables retries
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        if(retryPolicy == null) throw new IllegalArgumentException("retryPolicy must not be null");
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * This function gets the list of registered users with Gatekeeper. This is an admin-only call, transient failures
+     * are retried according to the retry policy.
+     * <p>
+     * @return list of registered users as string ArrayList object, on error a null is returned
+     * @throws Exception    an Exception is raised and must be caught or processed
+     */
+    public ArrayList<String> getUserList() throws Exception
+    {
+        return getUserList(CallOptions.DEFAULT);
+    }
+
+    /**
+     * Gets the list of registered users within the limits of the call options, see {@link #getUserList()}.
+     */
+    public ArrayList<String> getUserList(CallOptions options) throws Exception
+    {
+        return coalesce(userListFlights, "", options, () -> execute(this::userListRequest, true, response ->
+                response.code() == 200 ? parseUserList(response.body()) : null, null, options));
+    }
+
+    /**
+     * @deprecated retries are governed by the retry policy, use {@link #getUserList()}
+     */
+    @Deprecated
+    public ArrayList<String> getUserList(int attemptCount) throws Exception
+    {
+        return getUserList();
+    }
+
+    /**
+     * Streams the registered users to a consumer as they are parsed from the response, without materializing the
+     * listing as a whole. This is an admin-only call.
+     * <p>
+     * @param consumer  receives every registered user
+     * @return  true if the listing was received completely, false if Gatekeeper refused the call
+     * @throws Exception    if the call failed or the response could not be parsed
+     */
+    public boolean forEachUser(final Consumer<GKUser> consumer) throws Exception
+    {
+        return execute(this::userListRequest, true, response -> {
+            if(response.code() != 200) return false;
+            int count = GKListParser.parseUsers(response.body().source(), consumer);
+            driverLogger.info("Streamed user-list with : " + count + " users.");
+            return true;
+        }, false);
+    }
+
+    /**
+     * Streams the registered services to a consumer as they are parsed from the response, without materializing the
+     * listing as a whole. This is an admin-only call.
+     * <p>
+     * @param consumer  receives every registered service
+     * @return  true if the listing was received completely, false if Gatekeeper refused the call
+     * @throws Exception    if the call failed or the response could not be parsed
+     */
+    public boolean forEachService(final Consumer<GKService> consumer) throws Exception
+    {
+        return execute(this::serviceListRequest, true, response -> {
+            if(response.code() != 200) return false;
+            int count = GKListParser.parseServices(response.body().source(), consumer);
+            driverLogger.info("Streamed service-list with : " + count + " services.");
+            return true;
+        }, false);
+    }
+
+    /**
+     * Allows simple authentication process. With gatekeeper.cache.auth.enabled a password Gatekeeper accepted recently
+     * for the same user is verified locally against a salted hash. A password changed without this driver, or another
+     * driver of the invalidation bus, knowing keeps being accepted until gatekeeper.cache.auth.ttl has passed.
+     * <p>
+     * @param userId    int value representing the user-id
+     * @param password  string value representing user's password
+     * @return  true if authentication is successfull, else false is returned.
+     * @throws Exception
+     */
+    public boolean simpleAuthentication(int userId, String password) throws Exception
+    {
+        return simpleAuthentication(userId, password, CallOptions.DEFAULT);
+    }
+
+    /**
+     * Authenticates a user within the limits of the call options, see {@link #simpleAuthentication(int, String)}.
+     */
+    public boolean simpleAuthentication(int userId, String password, CallOptions options) throws Exception
+    {
+        if(verifiedLocally(userId, password)) return true;
+        long generation = credentialGeneration(userId);
+        return execute(token -> authenticationRequest(userId, password), false, response ->
+                handleAuthentication(userId, password, generation, response), false, options);
+    }
+
+    /**
+     * Method to generate a valid token given an userId and corresponding password. A repeated call may mint a second
+     * token, so the call is only repeated when the server answered 503.
+     * <p>
+     * @param userId    the user's id
+     * @param password  the user's password
+     * @return  the token as String, if authentication fails a null is returned.
+     * @throws Exception
+     */
+    public String generateToken(int userId, String password) throws Exception
+    {
+        return generateToken(userId, password, CallOptions.DEFAULT);
+    }
+
+    /**
+     * Generates a token within the limits of the call options, see {@link #generateToken(int, String)}. A leased token
+     * being fetched for another caller is waited for until the deadline.
+     */
+    public String generateToken(int userId, String password, CallOptions options) throws Exception
+    {
+        if(tokenLeases != null)
+        {
+            long start = System.nanoTime();
+            long deadline = options.deadlineNanos(start, retryPolicy.deadlineFromNow());
+            return await(tokenLeases.getAsync(userId, password), GKOperation.GENERATE_TOKEN.getMetricName(), start, deadline, options);
+        }
+        return execute(token -> tokenRequest(userId, password), false, response ->
+                response.code() == 200 ? parseToken(response.body()) : null, null, options);
+    }
+
+    /**
+     * This method allows registration of a new user with Gatekeeper service. This is an admin-only call. Since a
+     * failed registration may have been processed by Gatekeeper, it is only repeated when the server answered 503.
+     * <p>
+     * @param username  the desired username
+     * @param password  the account password associated with this user
+     * @param isAdmin   true if user is an admin-user, else false
+     * @param accessList    comma separated list of resources/services this user has access to, use ALL to grant access to everything
+     * @return  the user-id as integer if registration is successful, -1 if the process fails.
+     * @throws Exception
+     */
+    public int registerUser(String username, String password, boolean isAdmin, String accessList) throws Exception
+    {
+        return registerUser(username, password, isAdmin, accessList, CallOptions.DEFAULT);
+    }
+
+    /**
+     * Registers a user within the limits of the call options, see {@link #registerUser(String, String, boolean, String)}.
+     * A registration that timed out may still have been processed by Gatekeeper.
+     */
+    public int registerUser(String username, String password, boolean isAdmin, String accessList, CallOptions options) throws Exception
+    {
+        return execute(token -> registerUserRequest(token, username, password, isAdmin, accessList), true, response ->
+                response.code() == 200 ? parseUserId(response.body()) : -1, -1, options);
+    }
+
+    /**
+     * @deprecated retries are governed by the retry policy, use {@link #registerUser(String, String, boolean, String)}
+     */
+    @Deprecated
+    public int registerUser(String username, String password, boolean isAdmin, String accessList, int attemptCount) throws Exception
+    {
+        return registerUser(username, password, isAdmin, accessList);
+    }
+
+    /**
+     * This method allows an admin user to delete an user identified by user-id. A repeated deletion would be answered
+     * with 404, so the call is only repeated when the server answered 503.
+     * <p>
+     * @param userId        the user's id whose account is to be deleted from Gatekeeper
+     * @return  true if the account was successfully deleted, else false
+     * @throws Exception
+     */
+    public boolean deleteUser(int userId) throws Exception
+    {
+        return deleteUser(userId, CallOptions.DEFAULT);
+    }
+
+    /**
+     * Deletes a user within the limits of the call options, see {@link #deleteUser(int)}.
+     */
+    public boolean deleteUser(int userId, CallOptions options) throws Exception
+    {
+        return execute(token -> deleteUserRequest(token, userId), true, response -> {
+            if(response.code() != 200) return false;
+            userChanged(userId);
+            return true;
+        }, false, options);
+    }
+
+    /**
+     * @deprecated retries are governed by the retry policy, use {@link #deleteUser(int)}
+     */
+    @Deprecated
+    public boolean deleteUser(int userId, int attemptCount) throws Exception
+    {
+        return deleteUser(userId);
+    }
+
+    /**
+     * This method allows an admin user to check if another user is admin or not
+     * <p>
+     * @param userId        the user's id whose account is to be checked as admin from Gatekeeper
+     * @return  true if the account is an admin, else false
+     * @throws Exception
+     */
+    public boolean isAdmin(final int userId) throws Exception
+    {
+        return isAdmin(userId, CallOptions.DEFAULT);
+    }
+
+    /**
+     * Checks whether a user is an admin within the limits of the call options, see {@link #isAdmin(int)}.
+     */
+    public boolean isAdmin(final int userId, CallOptions options) throws Exception
+    {
+        return coalesce(isAdminFlights, userId, options, () -> execute(token -> userInfoRequest(token, userId), true,
+                response -> response.code() == 200 && parseIsAdmin(response.body()), false, options));
+    }
+
+    /**
+     * @deprecated retries are governed by the retry policy, use {@link #isAdmin(int)}
+     */
+    @Deprecated
+    public boolean isAdmin(int userId, int attemptCount) throws Exception
+    {
+        return isAdmin(userId);
+    }
+
+    /**
+     * This method allows validation of a token against an user-id, if token is valid and belongs to a claimed user the response is true, else false.
+     * <p>
+     * @param token     The token which needs to be validated
+     * @param userId    user-id to be validated with
+     * @return  true if the validation is successful, else a false is returned
+     * @throws Exception
+     */
+    public boolean validateToken(String token, int userId) throws Exception
+    {
+        return validate(TokenCheck.forUser(token, userId)).isValid();
+    }
+
+    /**
+     * Validates a token against a user-id within the limits of the call options, see {@link #validateToken(String, int)}.
+     */
+    public boolean validateToken(String token, int userId, CallOptions options) throws Exception
+    {
+        return validate(TokenCheck.forUser(token, userId), options).isValid();
+    }
+
+    /**
+     * Validates a token against a user-id or a service-key. With gatekeeper.degraded.enabled set, a token Gatekeeper
+     * confirmed within the staleness window is still accepted while Gatekeeper fails to answer, the decision is then
+     * flagged as stale and the token is revalidated in the background once Gatekeeper is back.
+     * <p>
+     * @param check the token and the user-id or service-key it is validated against
+     * @return  the decision, never null
+     * @throws Exception    if Gatekeeper could not be reached and no stale decision could be taken
+     */
+    public GKDecision validate(final TokenCheck check) throws Exception
+    {
+        return validate(check, CallOptions.DEFAULT);
+    }
+
+    /**
+     * Validates a token within the limits of the call options, see {@link #validate(TokenCheck)}. A validation that
+     * runs out of time is answered like one Gatekeeper failed to answer: with a stale decision if one can be taken,
+     * with GKTimeoutException otherwise.
+     * <p>
+     * @param check     the token and the user-id or service-key it is validated against
+     * @param options   the deadline, http timeouts and canceller of the call
+     * @return  the decision, never null
+     * @throws Exception    if Gatekeeper could not be reached in time and no stale decision could be taken
+     */
+    public GKDecision validate(final TokenCheck check, CallOptions options) throws Exception
+    {
+        Boolean cached = cachedDecision(check);
+        if(cached != null) return GKDecision.of(cached);
+
+        Boolean answer;
+        try
+        {
+            answer = coalesce(validationFlights, check, options, () -> {
+                long generation = validationGeneration(check);
+                return execute(t -> validationRequest(check), false, response -> handleValidation(check, generation, response),
+                        null, options);
+            });
+        }
+        catch (IOException ex)
+        {
+            return decide(check, null, ex);
+        }
+        return decide(check, answer, null);
+    }
+
+    /**
+     * Returns the counters of the token validation cache, useful to size the cache.
+     * <p>
+     * @return  the cache statistics, null if the token validation cache is not enabled
+     */
+    public CacheStats getTokenCacheStats()
+    {
+        return tokenCache != null ? tokenCache.getStats() : null;
+    }
+
+    /**
+     * Drops every cached token validation result of a user, for instance after the account was removed.
+     * <p>
+     * @param userId    the user-id whose cached validation results are to be dropped
+     */
+    public void invalidateUser(final int userId)
+    {
+        if(tokenCache != null) tokenCache.invalidateIf(key -> key.userId == userId);
+        if(knownGood != null) knownGood.invalidateIf(check -> !check.isServiceCheck() && check.getUserId() == userId);
+    }
+
+    /**
+     * Returns the number of tokens accepted with a stale decision because Gatekeeper could not be reached.
+     * <p>
+     * @return  the stale decision count, 0 unless gatekeeper.degraded.enabled is set
+     */
+    public long getStaleDecisionCount()
+    {
+        return knownGood != null ? knownGood.getStaleDecisionCount() : 0;
+    }
+
+    /**
+     * Returns the counters of the credential verification cache of simpleAuthentication.
+     * <p>
+     * @return  the statistics, null unless gatekeeper.cache.auth.enabled is set
+     */
+    public CacheStats getCredentialCacheStats()
+    {
+        return credentials != null ? credentials.getStats() : null;
+    }
+
+    /**
+     * Returns the counters of the user token leases.
+     * <p>
+     * @return  the statistics, null unless gatekeeper.cache.lease.enabled is set
+     */
+    public CacheStats getTokenLeaseStats()
+    {
+        return tokenLeases != null ? tokenLeases.getStats() : null;
+    }
+
+    /**
+     * Returns the counters of the known good tokens kept for degraded mode.
+     * <p>
+     * @return  the statistics, null unless gatekeeper.degraded.enabled is set
+     */
+    public CacheStats getKnownGoodStats()
+    {
+        return knownGood != null ? knownGood.getStats() : null;
+    }
+
+    /**
+     * Returns the per-operation call counts, status codes, retries and latency histograms of this driver.
+     * <p>
+     * @return  the metrics of this driver
+     */
+    public GKMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Returns the local directory of users and services, kept up to date in the background.
+     * <p>
+     * @return  the directory, null unless gatekeeper.directory.enabled is set
+     */
+    public GatekeeperDirectory getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Drops every cached token validation result.
+     */
+    public void invalidateTokenCache()
+    {
+        if(tokenCache != null) tokenCache.invalidateAll();
+        if(knownGood != null) knownGood.invalidateIf(check -> !check.isServiceCheck());
     }
 
     /**
-     * Allows simple authentication process.
+     * This method check the token for authorization to use a particular service, if the token is valid, and the user
+     * associated with this token has access rights to the service - the respose is true, otherwise a false is returned.
      * <p>
-     * @param userId    int value representing the user-id
-     * @param password  string value representing user's password
-     * @return  true if authentication is successfull, else false is returned.
+     * @param token     The token which needs to be validated
+     * @param serviceKey    The service-key of the service which is requesting the validation of this token
+     * @return  true if the user associated with token has access to this service provided the token is valid, false otherwise.
      * @throws Exception
      */
-    public boolean simpleAuthentication(int userId, String password) throws Exception
+    public boolean validateToken(String token, String serviceKey) throws Exception
     {
-        OkHttpClient client = new OkHttpClient();
-
-        Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/auth/" + userId).
-                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Password", password).
-                get().build();
-        Response response = client.newCall(request).execute();
+        return validate(TokenCheck.forService(token, serviceKey)).isValid();
+    }
 
-        driverLogger.info("Authentication Check::Response code: " + response.code());
-        if(response.code() == 202)
-        {
-            response.body().close();
-            return true;
-        }
-        response.body().close();
-        return false;
+    /**
+     * Checks a token for access to a service within the limits of the call options, see
+     * {@link #validateToken(String, String)}.
+     */
+    public boolean validateToken(String token, String serviceKey, CallOptions options) throws Exception
+    {
+        return validate(TokenCheck.forService(token, serviceKey), options).isValid();
     }
 
     /**
-     * Method to generate a valid token given an userId and corresponding password.
+     * Returns the circuit breakers guarding the Gatekeeper endpoints: "validation" for token validation and simple
+     * authentication, "admin" for every other call.
      * <p>
-     * @param userId    the user's id
-     * @param password  the user's password
-     * @return  the token as String, if authentication fails a null is returned.
-     * @throws Exception
+     * @return  the breakers keyed by endpoint class, empty unless gatekeeper.breaker.enabled is set
      */
-    public String generateToken(int userId, String password) throws Exception
+    public Map<String, CircuitBreaker> getCircuitBreakers()
     {
-        OkHttpClient client = new OkHttpClient();
-        RequestBody body = RequestBody.create(JSON, "");
-
-        //generate a new token
-        Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/token/").
-                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Password", password).
-                addHeader("X-Auth-Uid", Integer.toString(userId)).post(body).build();
-        Response response = client.newCall(request).execute();
-        driverLogger.info("Request to generate a new token, return code: " + response.code());
-        if(response.code() == 200)
-        {
-            ResponseBody rBody = response.body();
-
-            JSONObject jsonObj = new JSONObject(rBody.string());
-            JSONObject temp = new JSONObject(jsonObj.get("token").toString());
-            driverLogger.info("Received user-token: " + temp.get("id").toString());
-            response.body().close();
-            return temp.get("id").toString();
-        }
-        else
+        HashMap<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+        if(validationBreaker != null)
         {
-            response.body().close();
-            return null;
+            breakers.put(validationBreaker.getName(), validationBreaker);
+            breakers.put(adminBreaker.getName(), adminBreaker);
         }
+        return breakers;
     }
 
     /**
-     * This method allows registration of a new user with Gatekeeper service. This is an admin-only call.
+     * Returns the adaptive limit on the calls in flight to Gatekeeper, its current limit and queue depth are also
+     * exposed over JMX with gatekeeper.metrics.jmx.
      * <p>
-     * @param username  the desired username
-     * @param password  the account password associated with this user
-     * @param isAdmin   true if user is an admin-user, else false
-     * @param accessList    comma separated list of resources/services this user has access to, use ALL to grant access to everything
-     * @param attemptCount  integer value controlling the self execution iterations, should be a value between 0 and 4
-     * @return  the user-id as integer if registration is successful, -1 if the process fails.
-     * @throws Exception
+     * @return  the limiter, null unless gatekeeper.limiter.enabled is set
      */
-    public int registerUser(String username, String password, boolean isAdmin, String accessList, int attemptCount) throws Exception
+    public ConcurrencyLimiter getConcurrencyLimiter()
     {
-        OkHttpClient client = new OkHttpClient();
-        JSONObject callBody = new JSONObject();
-        callBody.put("username", username);
-        callBody.put("password", password);
-        if (isAdmin) callBody.put("isadmin", "y");
-        else callBody.put("isadmin", "n");
-        callBody.put("accesslist", accessList.trim());
-        driverLogger.info("register-user call with json: " + callBody.toString());
-        RequestBody body = RequestBody.create(JSON, callBody.toString());
-        attemptCount++;
-
-        //this is an admin only call
-        //try first with the available token, if fails then generate a new token
-        if (adminToken.length() > 0)
-        {
-            Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/admin/user/").
-                    header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", adminToken).
-                    post(body).build();
-
-            Response response = client.newCall(request).execute();
-
-            driverLogger.info("Register User::Response code: " + response.code());
-
-            if (response.code() == 200)
-            {
-                ResponseBody rBody = response.body();
-                JSONObject jsonObj = new JSONObject(rBody.string());
-                JSONArray uinfoArray = jsonObj.getJSONArray("info");
-                JSONObject temp = new JSONObject(uinfoArray.get(0).toString());
-                driverLogger.info("Got user-id: " + temp.get("id"));
-                response.body().close();
-                return Integer.parseInt(temp.get("id").toString());
-            }
-            response.body().close();
-        }
-        else
-        {
-            //generate a new token
-            if(attemptCount < 5) {
-                adminToken = generateToken(Integer.parseInt(adminUserId), adminPassword);
-                if (adminToken == null) adminToken = "";
-                if (attempCount < 5)
-                    return this.registerUser(username, password, isAdmin, accessList, attemptCount); //call the function again now that token has been set
-            }
-        }
-        return -1;
+        return limiter;
     }
 
     /**
-     * This method allows an admin user to delete an user identified by user-id
+     * Returns the Gatekeeper replicas this driver balances over, with their availability and load.
      * <p>
-     * @param userId        the user's id whose account is to be deleted from Gatekeeper
-     * @param attemptCount  integer value controlling the self execution iterations, should be a value between 0 and 4
-     * @return  true if the account was successfully deleted, else false
-     * @throws Exception
+     * @return  the endpoints in configuration order
      */
-    public boolean deleteUser(int userId, int attemptCount) throws Exception
+    public List<GKEndpoint> getEndpoints()
     {
-        OkHttpClient client = new OkHttpClient();
-        attemptCount++;
-
-        //this is an admin only call
-        //try first with the available token, if fails then generate a new token
-        if (adminToken.length() > 0)
-        {
-            Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/admin/user/" + userId).
-                    header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", adminToken).delete().build();
-
-            Response response = client.newCall(request).execute();
-
-            driverLogger.info("Delete User::Response code: " + response.code());
+        return router != null ? router.getEndpoints() : Collections.<GKEndpoint>emptyList();
+    }
 
-            if (response.code() == 200)
-            {
-                response.body().close();
-                return true;
-            }
-            response.body().close();
-        }
-        else
-        {
-            //generate a new token
-            if(attemptCount < 5) {
-                adminToken = generateToken(Integer.parseInt(adminUserId), adminPassword);
-                if (adminToken == null) adminToken = "";
-                if (attempCount < 5)
-                    return this.deleteUser(userId, attemptCount); //call the function again now that token has been set
-            }
-        }
-        return false;
+    /**
+     * Returns the request coalescing counters, showing how many concurrent identical calls were answered by a single
+     * request to Gatekeeper. Calls made through GKAsyncDriver are included.
+     * <p>
+     * @return  the counters keyed by operation: validateToken, isAdmin, getUserList and getServiceList
+     */
+    public Map<String, CoalescingStats> getCoalescingStats()
+    {
+        HashMap<String, CoalescingStats> stats = new HashMap<String, CoalescingStats>();
+        stats.put("validateToken", validationFlights.getStats());
+        stats.put("isAdmin", isAdminFlights.getStats());
+        stats.put("getUserList", userListFlights.getStats());
+        stats.put("getServiceList", serviceListFlights.getStats());
+        return stats;
     }
 
     /**
-     * This method allows an admin user to check if another user is admin or not
+     * Drops every cached authorization decision taken for a service-key. Call this when the key of a service is
+     * rotated or the service is removed from Gatekeeper.
      * <p>
-     * @param userId        the user's id whose account is to be checked as admin from Gatekeeper
-     * @param attemptCount  integer value controlling the self execution iterations, should be a value between 0 and 4
-     * @return  true if the account is an admin, else false
-     * @throws Exception
+     * @param serviceKey    the service-key whose cached decisions are to be dropped
      */
-    public boolean isAdmin(int userId, int attemptCount) throws Exception
+    public void invalidateServiceKey(String serviceKey)
     {
-        OkHttpClient client = new OkHttpClient();
-        attemptCount++;
+        if(serviceCache != null) serviceCache.invalidateService(serviceKey);
+        if(knownGood != null) knownGood.invalidateIf(check -> serviceKey.equals(check.getServiceKey()));
+    }
 
-        //this is an admin only call
-        //try first with the available token, if fails then generate a new token
-        if (adminToken.length() > 0)
-        {
-            Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/admin/user/" + userId).
-                    header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", adminToken).get().build();
+    /**
+     * Drops every cached authorization decision taken for the service-keys matching a test.
+     */
+    void invalidateServiceKeys(Predicate<String> changed)
+    {
+        if(serviceCache != null) serviceCache.invalidateServiceIf(changed);
+        if(knownGood != null) knownGood.invalidateIf(check -> check.getServiceKey() != null && changed.test(check.getServiceKey()));
+    }
 
-            Response response = client.newCall(request).execute();
+    /**
+     * Drops every cached decision about a token, to be used when the token was revoked.
+     * <p>
+     * @param token the token whose decisions are to be dropped
+     */
+    public void invalidateToken(final String token)
+    {
+        if(tokenCache != null) tokenCache.invalidateIf(key -> key.token.equals(token));
+        if(serviceCache != null) serviceCache.invalidateToken(token);
+        if(knownGood != null) knownGood.invalidateIf(check -> check.getToken().equals(token));
+    }
 
-            driverLogger.info("Is Admin User::Response code: " + response.code());
+    /**
+     * Drops every cached decision about the tokens matching a test.
+     */
+    void invalidateTokens(Predicate<String> revoked)
+    {
+        if(tokenCache != null) tokenCache.invalidateIf(key -> revoked.test(key.token));
+        if(serviceCache != null) serviceCache.invalidateTokenIf(revoked);
+        if(knownGood != null) knownGood.invalidateIf(check -> revoked.test(check.getToken()));
+    }
 
-            if (response.code() == 200)
-            {
-                ResponseBody rBody = response.body();
-                JSONObject jsonObj = new JSONObject(rBody.string());
-                JSONArray uinfoArray = jsonObj.getJSONArray("info");
-                JSONObject temp = new JSONObject(uinfoArray.get(0).toString());
-                String is_admin = temp.get("isadmin").toString();
-                driverLogger.info("Got isAdmin flag: " + is_admin);
-                response.body().close();
-                return is_admin.equalsIgnoreCase("y");
-            }
-            response.body().close();
-        }
-        else
-        {
-            //generate a new token
-            if(attemptCount < 5) {
-                adminToken = generateToken(Integer.parseInt(adminUserId), adminPassword);
-                if (adminToken == null) adminToken = "";
-                if (attempCount < 5)
-                    return this.isAdmin(userId, attemptCount); //call the function again now that token has been set
-            }
-        }
-        return false;
+    /**
+     * Returns the bus spreading invalidations to the other drivers of the fleet. Its invalidate methods apply to this
+     * driver and are broadcast, the invalidate methods of the driver only apply locally.
+     * <p>
+     * @return  the bus, null unless gatekeeper.invalidation.enabled is set
+     */
+    public InvalidationBus getInvalidationBus()
+    {
+        return invalidation;
     }
 
     /**
-     * This method allows validation of a token against an user-id, if token is valid and belongs to a claimed user the response is true, else false.
+     * Returns the counters of the service authorization cache, one entry per tracked service-key.
      * <p>
-     * @param token     The token which needs to be validated
-     * @param userId    user-id to be validated with
-     * @return  true if the validation is successful, else a false is returned
-     * @throws Exception
+     * @return  the cache statistics per service-key, null if the service authorization cache is not enabled
      */
-    public boolean validateToken(String token, int userId) throws Exception
+    public Map<String, CacheStats> getServiceCacheStats()
     {
-        OkHttpClient client = new OkHttpClient();
+        return serviceCache != null ? serviceCache.getStats() : null;
+    }
 
-        Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/token/validate/" + token).
-                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Uid", Integer.toString(userId)).
-                get().build();
-        Response response = client.newCall(request).execute();
+    /**
+     * Validates a batch of tokens concurrently using the configured batch timeout.
+     * <p>
+     * @param checks    the checks to perform, duplicates are validated only once
+     * @return  the outcome of every check that completed within the batch timeout
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     * @see #validateTokens(Collection, long)
+     */
+    public Map<TokenCheck, Boolean> validateTokens(Collection<TokenCheck> checks) throws InterruptedException
+    {
+        return validateTokens(checks, batchTimeout);
+    }
 
-        driverLogger.info("Token Validation::Response code: " + response.code());
-        if(response.code() == 200)
-        {
-            response.body().close();
-            return true;
-        }
-        response.body().close();
-        return false;
+    /**
+     * Validates a batch of tokens concurrently. Duplicate checks are collapsed, the remaining ones are sent over the
+     * shared connection pool with at most gatekeeper.batch.maxInFlight requests outstanding at any time. Checks that
+     * have not completed when the deadline is reached are cancelled and left out of the returned map, as are checks
+     * that failed with an i/o error.
+     * <p>
+     * @param checks        the checks to perform, duplicates are validated only once
+     * @param timeoutMillis deadline for the whole batch in milliseconds
+     * @return  the outcome of every check that completed within the deadline
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public Map<TokenCheck, Boolean> validateTokens(Collection<TokenCheck> checks, long timeoutMillis) throws InterruptedException
+    {
+        return validateBatch(checks, timeoutMillis, check -> check.isServiceCheck()
+                ? tokenFetcher.validateTokenAsync(check.getToken(), check.getServiceKey())
+                : tokenFetcher.validateTokenAsync(check.getToken(), check.getUserId()));
     }
 
     /**
-     * This method check the token for authorization to use a particular service, if the token is valid, and the user
-     * associated with this token has access rights to the service - the respose is true, otherwise a false is returned.
+     * Validates a batch of tokens like {@link #validateTokens(Collection)}, returning the full decisions so that
+     * stale decisions taken in degraded mode can be told apart.
      * <p>
-     * @param token     The token which needs to be validated
-     * @param serviceKey    The service-key of the service which is requesting the validation of this token
-     * @return  true if the user associated with token has access to this service provided the token is valid, false otherwise.
-     * @throws Exception
+     * @param checks    the checks to perform, duplicates are validated only once
+     * @return  the decision of every check that completed within the batch timeout
+     * @throws InterruptedException if the calling thread was interrupted while waiting
      */
-    public boolean validateToken(String token, String serviceKey) throws Exception
+    public Map<TokenCheck, GKDecision> validateTokenDecisions(Collection<TokenCheck> checks) throws InterruptedException
     {
-        OkHttpClient client = new OkHttpClient();
+        return validateBatch(checks, batchTimeout, tokenFetcher::validateAsync);
+    }
 
-        Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/token/validate/" + token).
-                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Service-Key", serviceKey).
-                get().build();
-        Response response = client.newCall(request).execute();
+    private <R> Map<TokenCheck, R> validateBatch(Collection<TokenCheck> checks, long timeoutMillis,
+                                                 Function<TokenCheck, CompletableFuture<R>> validation) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Set<TokenCheck> unique = new LinkedHashSet<TokenCheck>(checks);
+        final ConcurrentHashMap<TokenCheck, R> result = new ConcurrentHashMap<TokenCheck, R>(unique.size() * 2);
+        final Semaphore permits = new Semaphore(batchMaxInFlight);
+        ArrayList<CompletableFuture<R>> pending = new ArrayList<CompletableFuture<R>>(unique.size());
 
-        driverLogger.info("Token Validation by service::Response code: " + response.code());
-        if(response.code() == 200)
+        for(final TokenCheck check : unique)
         {
-            response.body().close();
-            return true;
+            if(!permits.tryAcquire(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) break;
+            CompletableFuture<R> future = validation.apply(check);
+            future.whenComplete((valid, error) -> {
+                permits.release();
+                if(error == null) result.put(check, valid);
+            });
+            pending.add(future);
+        }
+
+        try
+        {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]))
+                    .get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        }
+        catch (ExecutionException | TimeoutException ex)
+        {
+            //individual failures are reported by their absence from the result
         }
-        response.body().close();
-        return false;
+        for(CompletableFuture<R> future : pending)
+            future.cancel(true);
+        if(result.size() < unique.size())
+            driverLogger.warn("Batch validation: " + (unique.size() - result.size()) + " of " + unique.size() + " checks did not complete.");
+        return new HashMap<TokenCheck, R>(result);
     }
 
     /**
@@ -428,91 +1858,49 @@ public class GKDriver
      */
     public boolean updatePassword(String userId, String password, String token) throws Exception
     {
-        OkHttpClient client = new OkHttpClient();
-        JSONObject callBody = new JSONObject();
-        callBody.put("password", password);
-        driverLogger.info("update password call with json: " + callBody.toString());
-        RequestBody body = RequestBody.create(JSON, callBody.toString());
-
-        Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/password/" + userId).
-                header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", token).
-                put(body).build();
-        Response response = client.newCall(request).execute();
+        return updatePassword(userId, password, token, CallOptions.DEFAULT);
+    }
 
-        driverLogger.info("Password update service::Response code: " + response.code());
-        if(response.code() == 200)
-        {
-            response.body().close();
+    /**
+     * Updates a password within the limits of the call options, see {@link #updatePassword(String, String, String)}.
+     */
+    public boolean updatePassword(String userId, String password, String token, CallOptions options) throws Exception
+    {
+        return execute(t -> updatePasswordRequest(userId, password, token), false, response -> {
+            if(response.code() != 200) return false;
+            userChanged(userId);
             return true;
-        }
-        response.body().close();
-        return false;
+        }, false, options);
     }
 
     /**
      * This admin only method allows admins to get the list of registered services with Gatekeeper. The return array
      * contains service-short-name,service-key as its elements.
      * <p>
-     * @param attemptCount integer value controlling the self execution iterations, should be a value between 0 and 4
      * @return list of registered services as string ArrayList object, each element as name,key,id tuple, on error a null is returned.
      * @throws Exception
      */
-    public ArrayList<String> getServiceList(int attemptCount) throws Exception
+    public ArrayList<String> getServiceList() throws Exception
     {
-        OkHttpClient client = new OkHttpClient();
-        RequestBody body = RequestBody.create(JSON, "");
-        ArrayList<String> result = null;
-        attemptCount++;
-        //this is an admin only call
-        //try first with the available token, if fails then generate a new token
-        if(adminToken.length() > 0)
-        {
-            Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/admin/service/").
-                    header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", adminToken).
-                    get().build();
-            Response response = client.newCall(request).execute();
+        return getServiceList(CallOptions.DEFAULT);
+    }
 
-            driverLogger.info("List Service::Response code: " + response.code());
+    /**
+     * Gets the list of registered services within the limits of the call options, see {@link #getServiceList()}.
+     */
+    public ArrayList<String> getServiceList(CallOptions options) throws Exception
+    {
+        return coalesce(serviceListFlights, "", options, () -> execute(this::serviceListRequest, true, response ->
+                response.code() == 200 ? parseServiceList(response.body()) : null, null, options));
+    }
 
-            if(response.code() == 200)
-            {
-                ResponseBody rBody = response.body();
-                JSONObject jsonObj = new JSONObject(rBody.string());
-                JSONObject sList = new JSONObject(jsonObj.get("servicelist").toString());
-                JSONArray sNameList = sList.getJSONArray("shortname");
-                JSONArray sKeyList = sList.getJSONArray("service-key");
-                JSONArray sIdList = sList.getJSONArray("id");
-                driverLogger.info("Got service-list with : " + sNameList.length() + " services.");
-                result = new ArrayList<String>(sNameList.length());
-                for(int i=0; i<sNameList.length(); i++)
-                {
-                    result.add(i, sNameList.getString(i) + "," + sKeyList.getString(i) + "," + sIdList.getString(i));
-                }
-                response.body().close();
-            }
-            else
-            {
-                //something wrong with the token.
-                driverLogger.warn("Error probably with the admin-token. Remaking this call automatically. Attempt - " + attemptCount);
-                response.body().close();
-                this.adminToken = "";
-                if(attemptCount < 5)
-                    return this.getServiceList(attemptCount);
-                else
-                {
-                    driverLogger.error("Retry limit reached! Failing gracefully.");
-                }
-            }
-        }
-        else
-        {
-            //generate a new token
-            adminToken = generateToken(Integer.parseInt(adminUserId), adminPassword);
-            if(adminToken == null) adminToken = "";
-            if(attemptCount < 5)
-                return this.getServiceList(attemptCount); //call the function again now that token has been set
-        }
-        return result;
+    /**
+     * @deprecated retries are governed by the retry policy, use {@link #getServiceList()}
+     */
+    @Deprecated
+    public ArrayList<String> getServiceList(int attemptCount) throws Exception
+    {
+        return getServiceList();
     }
 
     /**
@@ -523,58 +1911,189 @@ public class GKDriver
      * @param shortName     a unique short-name (one-word) for this service being registered, this short-name can be used
      *                      in the access-list of users granting then access to this service.
      * @param description   a sentence describing this service.
-     * @param attemptCount  integer value controlling the self execution iterations, should be a value between 0 and 4
      * @return  a HashMap object containing the service uri and the key. null is returned in case of error.
      * @throws Exception
      */
+    public HashMap<String, String> registerService(String shortName, String description) throws Exception
+    {
+        return registerService(shortName, description, CallOptions.DEFAULT);
+    }
+
+    /**
+     * Registers a service within the limits of the call options, see {@link #registerService(String, String)}.
+     */
+    public HashMap<String, String> registerService(String shortName, String description, CallOptions options) throws Exception
+    {
+        return execute(token -> registerServiceRequest(token, shortName, description), true, response ->
+                response.code() == 200 ? serviceRegistered(shortName, parseService(response.body())) : null, null, options);
+    }
+
+    /**
+     * @deprecated retries are governed by the retry policy, use {@link #registerService(String, String)}
+     */
+    @Deprecated
     public HashMap<String, String> registerService(String shortName, String description, int attemptCount) throws Exception
     {
-        OkHttpClient client = new OkHttpClient();
-        JSONObject callBody = new JSONObject();
-        callBody.put("shortname", shortName);
-        callBody.put("description", description);
-        attemptCount++;
+        return registerService(shortName, description);
+    }
 
-        driverLogger.info("register-service call with json: " + callBody.toString());
-        RequestBody body = RequestBody.create(JSON, callBody.toString());
+    /**
+     * Registers many users, see {@link #registerUsers(Stream, BulkListener)}.
+     */
+    public BulkResult<UserSpec, Integer> registerUsers(Stream<UserSpec> users) throws InterruptedException
+    {
+        return registerUsers(users, null);
+    }
 
-        //this is an admin only call
-        //try first with the available token, if fails then generate a new token
-        if (adminToken.length() > 0)
-        {
-            Request request = new Request.Builder().url(gatekeeperUri + ":" + gatekeeperPort + "/admin/service/").
-                    header("User-Agent", "OkHttp Headers.java").addHeader("X-Auth-Token", adminToken).
-                    post(body).build();
+    /**
+     * Registers many users with gatekeeper.bulk.concurrency registrations in flight and at most gatekeeper.bulk.rate
+     * registrations started per second. Every registration is made like {@link #registerUser(String, String, boolean,
+     * String)}, the admin token is shared. A failed registration does not stop the others, pass the failed items of
+     * the result to this method again to retry only them.
+     * <p>
+     * @param users     the users to register, consumed as the registrations progress
+     * @param listener  receives the outcome of every user, may be null
+     * @return  the new user-id of every registered user and the reason of every failure
+     * @throws InterruptedException if the calling thread was interrupted, registrations in flight are cancelled
+     */
+    public BulkResult<UserSpec, Integer> registerUsers(Stream<UserSpec> users, BulkListener<UserSpec, Integer> listener) throws InterruptedException
+    {
+        return bulk("registerUsers", users, user -> tokenFetcher.registerUserAsync(user.getUsername(), user.getPassword(),
+                user.isAdmin(), user.getAccessList()), id -> id != null && id != -1, listener);
+    }
+
+    /**
+     * Deletes many users, see {@link #deleteUsers(Stream, BulkListener)}.
+     */
+    public BulkResult<Integer, Boolean> deleteUsers(Stream<Integer> userIds) throws InterruptedException
+    {
+        return deleteUsers(userIds, null);
+    }
+
+    /**
+     * Deletes many users with the concurrency and rate limit of {@link #registerUsers(Stream, BulkListener)}.
+     * <p>
+     * @param userIds   the ids of the users to delete
+     * @param listener  receives the outcome of every user, may be null
+     * @return  the outcome of every deletion
+     * @throws InterruptedException if the calling thread was interrupted, deletions in flight are cancelled
+     */
+    public BulkResult<Integer, Boolean> deleteUsers(Stream<Integer> userIds, BulkListener<Integer, Boolean> listener) throws InterruptedException
+    {
+        return bulk("deleteUsers", userIds, tokenFetcher::deleteUserAsync, deleted -> deleted != null && deleted, listener);
+    }
 
-            Response response = client.newCall(request).execute();
+    /**
+     * Registers many services, see {@link #registerServices(Stream, BulkListener)}.
+     */
+    public BulkResult<ServiceSpec, HashMap<String, String>> registerServices(Stream<ServiceSpec> services) throws InterruptedException
+    {
+        return registerServices(services, null);
+    }
 
-            driverLogger.info("Register Service::Response code: " + response.code());
+    /**
+     * Registers many services with the concurrency and rate limit of {@link #registerUsers(Stream, BulkListener)}.
+     * <p>
+     * @param services  the services to register
+     * @param listener  receives the outcome of every service, may be null
+     * @return  the uri and key of every registered service, as returned by {@link #registerService(String, String)}
+     * @throws InterruptedException if the calling thread was interrupted, registrations in flight are cancelled
+     */
+    public BulkResult<ServiceSpec, HashMap<String, String>> registerServices(Stream<ServiceSpec> services,
+                                                                             BulkListener<ServiceSpec, HashMap<String, String>> listener) throws InterruptedException
+    {
+        return bulk("registerServices", services, service -> tokenFetcher.registerServiceAsync(service.getShortName(),
+                service.getDescription()), Objects::nonNull, listener);
+    }
 
-            if (response.code() == 200)
+    /**
+     * Runs one asynchronous call per item, with at most gatekeeper.bulk.concurrency calls in flight and the start of
+     * every call subject to the bulk rate limit.
+     */
+    private <S, R> BulkResult<S, R> bulk(final String name, Stream<? extends S> items, Function<S, CompletableFuture<R>> call,
+                                         final Predicate<R> success, final BulkListener<S, R> listener) throws InterruptedException
+    {
+        final long start = System.nanoTime();
+        final BulkResult<S, R> result = new BulkResult<S, R>();
+        final Semaphore permits = new Semaphore(bulkConcurrency);
+        final Set<CompletableFuture<R>> inFlight = ConcurrentHashMap.newKeySet();
+        final AtomicLong completed = new AtomicLong();
+        try
+        {
+            Iterator<? extends S> it = items.iterator();
+            while(it.hasNext())
             {
-                ResponseBody rBody = response.body();
-                JSONObject jsonObj = new JSONObject(rBody.string());
-                JSONArray uinfoArray = jsonObj.getJSONArray("info");
-                JSONObject temp = new JSONObject(uinfoArray.get(0).toString());
-                driverLogger.info("Got service-uri: " + temp.get("service-uri"));
-                HashMap<String, String> result = new HashMap<String, String>();
-                result.put("uri", temp.getString("service-uri"));
-                result.put("key", temp.getString("service-key"));
-                response.body().close();
-                return result;
+                final S item = it.next();
+                permits.acquire();
+                if(bulkRate != null) bulkRate.acquire();
+                CompletableFuture<R> future;
+                try
+                {
+                    future = call.apply(item);
+                }
+                catch (RuntimeException ex)
+                {
+                    future = new CompletableFuture<R>();
+                    future.completeExceptionally(ex);
+                }
+                inFlight.add(future);
+                final CompletableFuture<R> self = future;
+                future.whenComplete((value, error) -> {
+                    inFlight.remove(self);
+                    try
+                    {
+                        String reason = error != null ? error.toString() : success.test(value) ? null : "rejected by gatekeeper";
+                        if(reason == null) result.succeeded(item, value);
+                        else result.failed(item, reason);
+                        long done = completed.incrementAndGet();
+                        if(done % 1000 == 0) driverLogger.info(name + ": " + done + " items completed.");
+                        if(listener != null) listener.onItem(item, reason == null ? value : null, reason, done);
+                    }
+                    finally
+                    {
+                        permits.release();
+                    }
+                });
             }
-            response.body().close();
+            permits.acquire(bulkConcurrency);
         }
-        else
+        catch (InterruptedException ex)
         {
-            //generate a new token
-            if(attemptCount < 5) {
-                adminToken = generateToken(Integer.parseInt(adminUserId), adminPassword);
-                if (adminToken == null) adminToken = "";
-                if (attempCount < 5)
-                    return this.registerService(shortName, description, attemptCount); //call the function again now that token has been set
-            }
+            for(CompletableFuture<R> future : inFlight) future.cancel(true);
+            throw ex;
+        }
+        result.finish(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        driverLogger.info(name + " finished: " + result);
+        return result;
+    }
+
+    /**
+     * Cache key of a token validated against a user-id.
+     */
+    private static final class UserToken
+    {
+        private final String token;
+        private final int userId;
+
+        UserToken(String token, int userId)
+        {
+            this.token = token;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this == o) return true;
+            if(!(o instanceof UserToken)) return false;
+            UserToken other = (UserToken) o;
+            return userId == other.userId && token.equals(other.token);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * token.hashCode() + userId;
         }
-        return null;
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One Gatekeeper replica the driver sends requests to, with the state used for load balancing: the number of
+ * requests awaiting a response and whether the replica is currently considered available.
+ */
+public final class GKEndpoint
+{
+    private final HttpUrl base;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long downUntil;
+    private volatile boolean down;
+
+    GKEndpoint(HttpUrl base)
+    {
+        this.base = base;
+    }
+
+    /**
+     * Rewrites a request built against any endpoint so that it is sent to this one.
+     */
+    Request route(Request request)
+    {
+        HttpUrl url = request.url();
+        if(url.port() == base.port() && url.host().equals(base.host()) && url.scheme().equals(base.scheme())) return request;
+        return request.newBuilder().url(url.newBuilder().scheme(base.scheme()).host(base.host()).port(base.port()).build()).build();
+    }
+
+    void begin()
+    {
+        requests.increment();
+        outstanding.incrementAndGet();
+    }
+
+    void end()
+    {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Takes the endpoint out of rotation for the given time, or until a health check succeeds.
+     */
+    void markDown(long millis)
+    {
+        failures.increment();
+        downUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        down = true;
+    }
+
+    void markUp()
+    {
+        down = false;
+    }
+
+    boolean isAvailable(long now)
+    {
+        return !down || now - downUntil >= 0;
+    }
+
+    /**
+     * @return  the base url of this endpoint
+     */
+    public String getUrl()
+    {
+        return base.toString();
+    }
+
+    /**
+     * @return  the number of requests sent to this endpoint that are still awaiting a response
+     */
+    public int getOutstanding()
+    {
+        return outstanding.get();
+    }
+
+    /**
+     * @return  true if the endpoint is currently used for new requests
+     */
+    public boolean isAvailable()
+    {
+        return isAvailable(System.nanoTime());
+    }
+
+    /**
+     * @return  the number of requests sent to this endpoint
+     */
+    public long getRequests()
+    {
+        return requests.sum();
+    }
+
+    /**
+     * @return  the number of failed requests and health checks of this endpoint
+     */
+    public long getFailures()
+    {
+        return failures.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getUrl() + ": available=" + isAvailable() + ", outstanding=" + getOutstanding() + ", requests=" + getRequests()
+                + ", failures=" + getFailures();
+    }
+}
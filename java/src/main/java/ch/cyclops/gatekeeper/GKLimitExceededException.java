@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.io.IOException;
+
+/**
+ * Raised instead of calling Gatekeeper when the concurrency limit is reached and the call could not be queued or did
+ * not get a slot within the queue timeout.
+ */
+public class GKLimitExceededException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int limit;
+
+    public GKLimitExceededException(int limit, boolean queued)
+    {
+        super("concurrency limit of " + limit + " reached, " + (queued ? "no slot freed up in time" : "wait queue is full")
+                + ", Gatekeeper was not called");
+        this.limit = limit;
+    }
+
+    /**
+     * @return  the concurrency limit at the time the call was refused
+     */
+    public int getLimit()
+    {
+        return limit;
+    }
+}
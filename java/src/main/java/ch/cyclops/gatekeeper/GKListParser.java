@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import com.squareup.moshi.JsonReader;
+import okio.BufferedSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Streaming parsers for the user and service listings of Gatekeeper. The listings are sent as parallel arrays, one
+ * array per attribute. The parsers read straight from the response source without building a document tree: every
+ * array but the last one received is kept as plain values, the last one is zipped with them on the fly and each
+ * record is handed to the consumer as soon as it is complete. Arrays of different lengths fail the parse, the records
+ * handed out until then must be discarded by the caller.
+ */
+final class GKListParser
+{
+    private GKListParser()
+    {
+    }
+
+    /**
+     * Parses a {"userlist": [...], "userids": [...]} response.
+     * <p>
+     * @param source    the response source, it is consumed but not closed
+     * @param consumer  receives every user in listing order
+     * @return  the number of users handed to the consumer
+     * @throws IOException  if the source cannot be read or the payload is malformed
+     */
+    static int parseUsers(BufferedSource source, Consumer<GKUser> consumer) throws IOException
+    {
+        JsonReader reader = JsonReader.of(source);
+        ArrayList<String> names = null;
+        int[] ids = null;
+        int count = 0;
+
+        reader.beginObject();
+        while(reader.hasNext())
+        {
+            String field = reader.nextName();
+            if(field.equals("userlist"))
+            {
+                if(ids == null) names = readStrings(reader);
+                else count = emitUsers(reader, ids, consumer);
+            }
+            else if(field.equals("userids"))
+            {
+                if(names == null) ids = readInts(reader);
+                else count = emitUsers(reader, names, consumer);
+            }
+            else reader.skipValue();
+        }
+        reader.endObject();
+        //a listing with only one of its arrays is as incomplete as one with a shorter array
+        if(count == 0 && ((names != null && !names.isEmpty()) || (ids != null && ids.length > 0))) throw mismatch(reader);
+        return count;
+    }
+
+    /**
+     * Parses a {"servicelist": {"shortname": [...], "service-key": [...], "id": [...]}} response.
+     * <p>
+     * @param source    the response source, it is consumed but not closed
+     * @param consumer  receives every service in listing order
+     * @return  the number of services handed to the consumer
+     * @throws IOException  if the source cannot be read or the payload is malformed
+     */
+    static int parseServices(BufferedSource source, Consumer<GKService> consumer) throws IOException
+    {
+        JsonReader reader = JsonReader.of(source);
+        int count = 0;
+
+        reader.beginObject();
+        while(reader.hasNext())
+        {
+            if(!reader.nextName().equals("servicelist"))
+            {
+                reader.skipValue();
+                continue;
+            }
+            ArrayList<String> names = null;
+            ArrayList<String> keys = null;
+            int[] ids = null;
+            reader.beginObject();
+            while(reader.hasNext())
+            {
+                String field = reader.nextName();
+                boolean last = (field.equals("shortname") && keys != null && ids != null)
+                        || (field.equals("service-key") && names != null && ids != null)
+                        || (field.equals("id") && names != null && keys != null);
+                if(last)
+                {
+                    count = emitServices(reader, field, names, keys, ids, consumer);
+                }
+                else if(field.equals("shortname")) names = readStrings(reader);
+                else if(field.equals("service-key")) keys = readStrings(reader);
+                else if(field.equals("id")) ids = readInts(reader);
+                else reader.skipValue();
+            }
+            reader.endObject();
+            if(count == 0 && ((names != null && !names.isEmpty()) || (keys != null && !keys.isEmpty()) || (ids != null && ids.length > 0)))
+                throw mismatch(reader);
+        }
+        reader.endObject();
+        return count;
+    }
+
+    private static int emitUsers(JsonReader reader, ArrayList<String> names, Consumer<GKUser> consumer) throws IOException
+    {
+        int i = 0;
+        reader.beginArray();
+        while(reader.hasNext())
+        {
+            if(i >= names.size()) throw mismatch(reader);
+            consumer.accept(new GKUser(names.get(i), reader.nextInt()));
+            i++;
+        }
+        reader.endArray();
+        if(i < names.size()) throw mismatch(reader);
+        return i;
+    }
+
+    private static int emitUsers(JsonReader reader, int[] ids, Consumer<GKUser> consumer) throws IOException
+    {
+        int i = 0;
+        reader.beginArray();
+        while(reader.hasNext())
+        {
+            if(i >= ids.length) throw mismatch(reader);
+            consumer.accept(new GKUser(reader.nextString(), ids[i]));
+            i++;
+        }
+        reader.endArray();
+        if(i < ids.length) throw mismatch(reader);
+        return i;
+    }
+
+    private static int emitServices(JsonReader reader, String field, ArrayList<String> names, ArrayList<String> keys,
+                                    int[] ids, Consumer<GKService> consumer) throws IOException
+    {
+        int known;
+        if(field.equals("shortname")) known = keys.size() == ids.length ? ids.length : -1;
+        else if(field.equals("service-key")) known = names.size() == ids.length ? ids.length : -1;
+        else known = names.size() == keys.size() ? keys.size() : -1;
+        if(known < 0) throw mismatch(reader);
+        int i = 0;
+        reader.beginArray();
+        while(reader.hasNext())
+        {
+            if(i >= known) throw mismatch(reader);
+            if(field.equals("shortname")) consumer.accept(new GKService(reader.nextString(), keys.get(i), ids[i]));
+            else if(field.equals("service-key")) consumer.accept(new GKService(names.get(i), reader.nextString(), ids[i]));
+            else consumer.accept(new GKService(names.get(i), keys.get(i), reader.nextInt()));
+            i++;
+        }
+        reader.endArray();
+        if(i < known) throw mismatch(reader);
+        return i;
+    }
+
+    private static IOException mismatch(JsonReader reader)
+    {
+        return new IOException("listing arrays differ in length at " + reader.getPath());
+    }
+
+    private static ArrayList<String> readStrings(JsonReader reader) throws IOException
+    {
+        ArrayList<String> values = new ArrayList<String>();
+        reader.beginArray();
+        while(reader.hasNext())
+            values.add(reader.nextString());
+        reader.endArray();
+        return values;
+    }
+
+    private static int[] readInts(JsonReader reader) throws IOException
+    {
+        int[] values = new int[64];
+        int size = 0;
+        reader.beginArray();
+        while(reader.hasNext())
+        {
+            if(size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = reader.nextInt();
+        }
+        reader.endArray();
+        return Arrays.copyOf(values, size);
+    }
+}
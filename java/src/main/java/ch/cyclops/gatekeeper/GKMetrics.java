@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.*;
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-operation metrics of a driver instance. Measurements are taken by an OkHttp EventListener, so that every call,
+ * blocking or asynchronous, is accounted for and the DNS, connect, TLS and time-to-first-byte phases can be told
+ * apart. Requests are attributed to an operation through their GKOperation tag.
+ * <p>
+ * The metrics can be read through this object or, once registered, through one JMX MBean per operation named
+ * ch.cyclops.gatekeeper:type=GKDriver,driver=&lt;n&gt;,operation=&lt;name&gt;.
+ */
+public class GKMetrics
+{
+    private static final AtomicInteger DRIVER_IDS = new AtomicInteger();
+
+    private final EnumMap<GKOperation, OperationMetrics> operations = new EnumMap<GKOperation, OperationMetrics>(GKOperation.class);
+    private final String driverId = Integer.toString(DRIVER_IDS.incrementAndGet());
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    GKMetrics()
+    {
+        for(GKOperation operation : GKOperation.values())
+            operations.put(operation, new OperationMetrics(operation));
+    }
+
+    /**
+     * @param operation the operation
+     * @return  the metrics of the operation
+     */
+    public OperationMetrics get(GKOperation operation)
+    {
+        return operations.get(operation);
+    }
+
+    /**
+     * @return  the metrics of every operation
+     */
+    public List<OperationMetrics> getAll()
+    {
+        return new ArrayList<OperationMetrics>(operations.values());
+    }
+
+    /**
+     * @return  the identifier of the driver instance used in the JMX object names
+     */
+    public String getDriverId()
+    {
+        return driverId;
+    }
+
+    void recordRetry(GKOperation operation)
+    {
+        operations.get(operation).recordRetry();
+    }
+
+    void recordHedge(GKOperation operation)
+    {
+        operations.get(operation).recordHedge();
+    }
+
+    EventListener.Factory listenerFactory()
+    {
+        return call -> {
+            GKOperation operation = call.request().tag(GKOperation.class);
+            if(operation != null) return new CallTimer(operations.get(operation), call.request().tag(Attempt.class));
+            return EventListener.NONE;
+        };
+    }
+
+    /**
+     * Tag of one of several requests sent for the same call, such as a hedged request. The outcome of an attempt that
+     * is discarded, because another one answered first, is not recorded: its failure is the cancellation and its
+     * latency is cut short by it.
+     */
+    static final class Attempt
+    {
+        private volatile boolean discarded;
+
+        void discard()
+        {
+            discarded = true;
+        }
+
+        boolean isDiscarded()
+        {
+            return discarded;
+        }
+    }
+
+    /**
+     * Registers the MBeans of all operations with the platform MBean server.
+     * <p>
+     * @param logger    the driver logger
+     */
+    synchronized void registerMBeans(Logger logger)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(OperationMetrics metrics : operations.values())
+        {
+            try
+            {
+                ObjectName name = new ObjectName("ch.cyclops.gatekeeper:type=GKDriver,driver=" + driverId
+                        + ",operation=" + metrics.getOperation().getMetricName());
+                server.registerMBean(metrics, name);
+                registered.add(name);
+            }
+            catch (Exception ex)
+            {
+                logger.warn("Could not register metrics MBean: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Registers an additional MBean under the naming scheme of this driver instance, it is unregistered together
+     * with the operation MBeans.
+     * <p>
+     * @param type      the value of the name key of the object name
+     * @param mbean     the MBean object
+     * @param logger    the driver logger
+     */
+    synchronized void registerMBean(String type, Object mbean, Logger logger)
+    {
+        try
+        {
+            ObjectName name = new ObjectName("ch.cyclops.gatekeeper:type=GKDriver,driver=" + driverId + ",name=" + type);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            registered.add(name);
+        }
+        catch (Exception ex)
+        {
+            logger.warn("Could not register " + type + " MBean: " + ex.getMessage());
+        }
+    }
+
+    synchronized void unregisterMBeans()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name : registered)
+        {
+            try
+            {
+                server.unregisterMBean(name);
+            }
+            catch (Exception ex)
+            {
+                //already gone
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * Times the phases of a single call. OkHttp invokes the listener methods of one call sequentially.
+     */
+    private static final class CallTimer extends EventListener
+    {
+        private final OperationMetrics metrics;
+        private final Attempt attempt;
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long tlsStart;
+        private long requestStart;
+
+        /**
+         * @param attempt   the attempt tag of the request, null if it is the only request of its call
+         */
+        CallTimer(OperationMetrics metrics, Attempt attempt)
+        {
+            this.metrics = metrics;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void callStart(Call call)
+        {
+            callStart = System.nanoTime();
+            metrics.recordCall();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName)
+        {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList)
+        {
+            metrics.dns.recordNanos(System.nanoTime() - dnsStart);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy)
+        {
+            connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call)
+        {
+            tlsStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake)
+        {
+            metrics.tls.recordNanos(System.nanoTime() - tlsStart);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol)
+        {
+            metrics.connect.recordNanos(System.nanoTime() - connectStart);
+        }
+
+        @Override
+        public void requestHeadersStart(Call call)
+        {
+            requestStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response)
+        {
+            //responseHeadersStart fires before the read blocks, only the end of the headers includes the server time
+            metrics.timeToFirstByte.recordNanos(System.nanoTime() - requestStart);
+            metrics.recordStatus(response.code());
+        }
+
+        @Override
+        public void callEnd(Call call)
+        {
+            if(attempt != null && attempt.isDiscarded()) return;
+            metrics.latency.recordNanos(System.nanoTime() - callStart);
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe)
+        {
+            if(attempt != null && attempt.isDiscarded()) return;
+            metrics.recordIoError();
+            metrics.latency.recordNanos(System.nanoTime() - callStart);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * The calls the driver makes to Gatekeeper, used to attribute metrics and to tag outgoing requests.
+ */
+public enum GKOperation
+{
+    VALIDATE_TOKEN_USER("validateTokenByUser", true, true),
+    VALIDATE_TOKEN_SERVICE("validateTokenByService", true, true),
+    SIMPLE_AUTHENTICATION("simpleAuthentication", true, true),
+    GENERATE_TOKEN("generateToken", false, false),
+    UPDATE_PASSWORD("updatePassword", false, true),
+    LIST_USERS("getUserList", false, true),
+    REGISTER_USER("registerUser", false, false),
+    DELETE_USER("deleteUser", false, false),
+    IS_ADMIN("isAdmin", false, true),
+    LIST_SERVICES("getServiceList", false, true),
+    REGISTER_SERVICE("registerService", false, false);
+
+    private final String metricName;
+    private final boolean validation;
+    private final boolean idempotent;
+
+    GKOperation(String metricName, boolean validation, boolean idempotent)
+    {
+        this.metricName = metricName;
+        this.validation = validation;
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * @return  the name under which the metrics of this operation are published
+     */
+    public String getMetricName()
+    {
+        return metricName;
+    }
+
+    /**
+     * @return  true for token and credential checks, false for token generation and admin calls
+     */
+    public boolean isValidation()
+    {
+        return validation;
+    }
+
+    /**
+     * @return  true if repeating the call has no effect beyond the first successful one. Token generation is not, a
+     *          repeated call may mint a second token, nor is deletion, a repeated call is answered with 404
+     */
+    public boolean isIdempotent()
+    {
+        return idempotent;
+    }
+}
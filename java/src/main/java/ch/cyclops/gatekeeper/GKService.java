@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * A service registered with Gatekeeper, as returned by the service listing.
+ */
+public final class GKService
+{
+    private final String shortName;
+    private final String key;
+    private final int id;
+
+    public GKService(String shortName, String key, int id)
+    {
+        this.shortName = shortName;
+        this.key = key;
+        this.id = id;
+    }
+
+    public String getShortName()
+    {
+        return shortName;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o) return true;
+        if(!(o instanceof GKService)) return false;
+        GKService other = (GKService) o;
+        return id == other.id && shortName.equals(other.shortName) && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * (31 * shortName.hashCode() + key.hashCode()) + id;
+    }
+
+    /**
+     * @return  the service in the name,key,id format of GKDriver.getServiceList
+     */
+    @Override
+    public String toString()
+    {
+        return shortName + "," + key + "," + id;
+    }
+}
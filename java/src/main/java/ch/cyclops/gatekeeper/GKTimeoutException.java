@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.io.IOException;
+
+/**
+ * Raised when a call did not complete within its deadline or the http timeouts, retries and admin token renewal
+ * included.
+ */
+public class GKTimeoutException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param call          the name of the call, or of the step of the call, that timed out
+     * @param elapsedMillis the time the call took until it was given up
+     */
+    public GKTimeoutException(String call, long elapsedMillis)
+    {
+        super(call + " timed out after " + elapsedMillis + "ms");
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * A user account registered with Gatekeeper, as returned by the user listing.
+ */
+public final class GKUser
+{
+    private final String username;
+    private final int id;
+
+    public GKUser(String username, int id)
+    {
+        this.username = username;
+        this.id = id;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o) return true;
+        if(!(o instanceof GKUser)) return false;
+        GKUser other = (GKUser) o;
+        return id == other.id && username.equals(other.username);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * username.hashCode() + id;
+    }
+
+    /**
+     * @return  the user in the name,id format of GKDriver.getUserList
+     */
+    @Override
+    public String toString()
+    {
+        return username + "," + id;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Local copy of the users and services registered with Gatekeeper. The listings are fetched in the background at a
+ * fixed interval, compared with the previous snapshot and published as a new immutable snapshot that replaces the old
+ * one atomically. Lookups only read the current snapshot and never wait for the network.
+ * <p>
+ * Gatekeeper has no change feed, so every refresh downloads the full listings; the diff is computed locally and only
+ * reported to listeners when something changed.
+ */
+public class GatekeeperDirectory implements AutoCloseable
+{
+    private final GKDriver driver;
+    private final long refreshInterval;
+    private final Logger logger;
+    private final CopyOnWriteArrayList<DirectoryListener> listeners = new CopyOnWriteArrayList<DirectoryListener>();
+    private volatile DirectorySnapshot snapshot = DirectorySnapshot.EMPTY;
+    private volatile ScheduledExecutorService scheduler;
+
+    /**
+     * @param driver            the driver used to fetch the listings, its admin credentials are used
+     * @param refreshInterval   time in milliseconds between two refreshes
+     */
+    public GatekeeperDirectory(GKDriver driver, long refreshInterval)
+    {
+        this.driver = driver;
+        this.refreshInterval = refreshInterval;
+        this.logger = driver.getLogger();
+    }
+
+    /**
+     * Starts the background refresh, the first refresh is performed immediately on the refresh thread.
+     */
+    public synchronized void start()
+    {
+        if(scheduler != null && !scheduler.isShutdown()) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gatekeeper-directory");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try
+            {
+                refresh();
+            }
+            catch (Exception ex)
+            {
+                logger.warn("Directory refresh failed, keeping previous snapshot: " + ex.getMessage());
+            }
+        }, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fetches both listings and publishes a new snapshot. If either listing cannot be fetched the current snapshot is
+     * kept.
+     * <p>
+     * @return  true if a new snapshot was published
+     * @throws Exception    if a listing call failed
+     */
+    public synchronized boolean refresh() throws Exception
+    {
+        final ArrayList<GKUser> users = new ArrayList<GKUser>();
+        final ArrayList<GKService> services = new ArrayList<GKService>();
+        if(!driver.forEachUser(users::add) || !driver.forEachService(services::add))
+        {
+            logger.warn("Directory refresh was refused by Gatekeeper, keeping previous snapshot.");
+            return false;
+        }
+        return publish(new DirectorySnapshot(users, services, System.currentTimeMillis()));
+    }
+
+    synchronized boolean publish(DirectorySnapshot next)
+    {
+        DirectorySnapshot previous = snapshot;
+        List<GKUser> addedUsers = difference(next.getUsers(), previous.getUsers());
+        List<GKUser> removedUsers = difference(previous.getUsers(), next.getUsers());
+        List<GKService> addedServices = difference(next.getServices(), previous.getServices());
+        List<GKService> removedServices = difference(previous.getServices(), next.getServices());
+        snapshot = next;
+
+        if(addedUsers.isEmpty() && removedUsers.isEmpty() && addedServices.isEmpty() && removedServices.isEmpty())
+            return true;
+        logger.info("Directory changed: users +" + addedUsers.size() + "/-" + removedUsers.size() + ", services +"
+                + addedServices.size() + "/-" + removedServices.size());
+        for(DirectoryListener listener : listeners)
+        {
+            try
+            {
+                listener.directoryChanged(next, addedUsers, removedUsers, addedServices, removedServices);
+            }
+            catch (RuntimeException ex)
+            {
+                logger.error("Directory listener failed: " + ex.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private static <T> List<T> difference(Collection<T> from, Collection<T> minus)
+    {
+        Set<T> exclude = minus instanceof Set ? (Set<T>) minus : new HashSet<T>(minus);
+        ArrayList<T> result = new ArrayList<T>();
+        for(T item : from)
+            if(!exclude.contains(item)) result.add(item);
+        return result;
+    }
+
+    /**
+     * @return  the currently published snapshot, empty until the first refresh completed
+     */
+    public DirectorySnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    public GKUser getUserById(int userId)
+    {
+        return snapshot.getUserById(userId);
+    }
+
+    public GKUser getUserByName(String username)
+    {
+        return snapshot.getUserByName(username);
+    }
+
+    public GKService getServiceByName(String shortName)
+    {
+        return snapshot.getServiceByName(shortName);
+    }
+
+    public GKService getServiceByKey(String serviceKey)
+    {
+        return snapshot.getServiceByKey(serviceKey);
+    }
+
+    public void addListener(DirectoryListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DirectoryListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stops the background refresh, the last snapshot stays readable.
+     */
+    @Override
+    public void close()
+    {
+        ScheduledExecutorService running = scheduler;
+        if(running != null) running.shutdownNow();
+    }
+}
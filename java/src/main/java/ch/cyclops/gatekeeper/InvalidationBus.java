@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Spreads cache invalidations between the drivers of a fleet, so that a user deleted or a service re-registered
+ * through one driver is forgotten by all of them without waiting for the time-to-live of their caches. Invalidations
+ * are applied locally right away and sent in batches: a message goes out batchDelay after its first entry, or as soon
+ * as it is full. A message is laid out as
+ * <pre>
+ * magic "GK" (short), version (byte), reserved (byte), sender (long), sequence (long), entry count (short),
+ * entries of kind (byte) and user-id (int) or digest (16 bytes), HMAC-SHA256 of everything before (32 bytes)
+ * </pre>
+ * The drivers of a fleet share a secret: messages are authenticated with a key derived from it and dropped by the
+ * receivers when the HMAC does not match. Tokens and service-keys never leave the driver, an entry carries a keyed
+ * digest of the value and the receiving driver drops the cached values with the same digest.
+ * <p>
+ * Every sender numbers its messages, and sends an empty message when it was quiet for a heartbeat interval. A
+ * receiver seeing a gap in the numbers of a sender assumes invalidations were lost and drops everything it cached.
+ * A sender picks a random id when it starts, so a restarted driver is a new sender to the others. Senders not heard
+ * from for three heartbeat intervals, or ten minutes without heartbeats, are forgotten.
+ */
+public class InvalidationBus implements AutoCloseable
+{
+    static final short MAGIC = 0x474B;
+    static final byte VERSION = 2;
+    private static final int HEADER = 2 + 1 + 1 + 8 + 8 + 2;
+    private static final int MAC = 32;
+    private static final int DIGEST = 16;
+    private static final int MIN_SECRET = 16;
+    private static final long QUIET_SENDER_MILLIS = 600000;
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final byte USER = 1;
+    private static final byte TOKEN = 2;
+    private static final byte SERVICE_KEY = 3;
+
+    /**
+     * Applies invalidations to the local driver.
+     */
+    public interface Receiver
+    {
+        void userChanged(int userId);
+
+        /**
+         * @param revoked   matches the revoked tokens, invalidations of other drivers only carry their digests
+         */
+        void tokensRevoked(Predicate<String> revoked);
+
+        /**
+         * @param changed   matches the changed service-keys, invalidations of other drivers only carry their digests
+         */
+        void serviceKeysChanged(Predicate<String> changed);
+
+        /**
+         * Called when invalidations of another driver were lost, everything cached must be dropped.
+         */
+        void invalidationsLost();
+    }
+
+    private final InvalidationTransport transport;
+    private final Receiver receiver;
+    private final ScheduledExecutorService timer;
+    private final long batchDelayMillis;
+    private final int maxMessageBytes;
+    private final long heartbeatMillis;
+    private final Logger logger;
+    private final long sender;
+    private final SecretKeySpec messageKey;
+    private final SecretKeySpec digestKey;
+    private final Mac sendMac;
+    private final Mac sendDigest;
+    private final long quietSenderNanos;
+
+    private final ConcurrentHashMap<Long, Peer> peers = new ConcurrentHashMap<Long, Peer>();
+    private long lastPruned = System.nanoTime();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingEntries;
+    private ScheduledFuture<?> pendingFlush;
+    private long sequence;
+    private volatile long lastSent = System.nanoTime();
+    private ScheduledFuture<?> heartbeat;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+
+    /**
+     * @param transport         carries the messages
+     * @param receiver          applies invalidations to the local driver
+     * @param secret            shared by the drivers of the fleet, at least 16 bytes
+     * @param timer             the timer of the driver, sends batches and heartbeats
+     * @param batchDelayMillis  how long invalidations are collected before being sent
+     * @param maxMessageBytes   size above which a batch is sent right away, keep it below the network MTU
+     * @param heartbeatMillis   quiet time after which an empty message is sent, 0 disables heartbeats
+     * @param logger            the driver logger
+     */
+    public InvalidationBus(InvalidationTransport transport, Receiver receiver, byte[] secret, ScheduledExecutorService timer,
+                           long batchDelayMillis, int maxMessageBytes, long heartbeatMillis, Logger logger)
+    {
+        if(secret == null || secret.length < MIN_SECRET)
+            throw new IllegalArgumentException("the invalidation secret must have at least " + MIN_SECRET + " bytes");
+        this.transport = transport;
+        this.receiver = receiver;
+        this.timer = timer;
+        this.batchDelayMillis = batchDelayMillis;
+        this.maxMessageBytes = Math.max(maxMessageBytes, HEADER + MAC + 64);
+        this.heartbeatMillis = heartbeatMillis;
+        this.logger = logger;
+        this.sender = new SecureRandom().nextLong();
+        this.messageKey = derive(secret, "gatekeeper-invalidation-message");
+        this.digestKey = derive(secret, "gatekeeper-invalidation-digest");
+        this.sendMac = newMac(messageKey);
+        this.sendDigest = newMac(digestKey);
+        this.quietSenderNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis > 0 ? 3 * heartbeatMillis : QUIET_SENDER_MILLIS);
+    }
+
+    /**
+     * Joins the bus.
+     * <p>
+     * @throws IOException  if the transport could not be opened
+     */
+    public synchronized void start() throws IOException
+    {
+        transport.start(this::receive);
+        if(heartbeatMillis > 0)
+        {
+            heartbeat = timer.scheduleWithFixedDelay(() -> {
+                if(System.nanoTime() - lastSent >= TimeUnit.MILLISECONDS.toNanos(heartbeatMillis)) flush();
+            }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drops the cached state of a user on this driver and on every other driver of the bus.
+     */
+    public void invalidateUser(int userId)
+    {
+        receiver.userChanged(userId);
+        enqueue(USER, userId, null);
+    }
+
+    /**
+     * Drops the cached decisions about a token on this driver and on every other driver of the bus.
+     */
+    public void invalidateToken(String token)
+    {
+        receiver.tokensRevoked(token::equals);
+        enqueue(TOKEN, 0, token);
+    }
+
+    /**
+     * Drops the cached decisions taken for a service-key on this driver and on every other driver of the bus.
+     */
+    public void invalidateServiceKey(String serviceKey)
+    {
+        receiver.serviceKeysChanged(serviceKey::equals);
+        enqueue(SERVICE_KEY, 0, serviceKey);
+    }
+
+    private synchronized void enqueue(byte kind, int userId, String value)
+    {
+        int size = 1 + (value != null ? DIGEST : 4);
+        if(pendingEntries > 0 && HEADER + pending.size() + size + MAC > maxMessageBytes) flush();
+        DataOutputStream out = new DataOutputStream(pending);
+        try
+        {
+            out.writeByte(kind);
+            if(value == null) out.writeInt(userId);
+            else out.write(digest(sendDigest, kind, value));
+        }
+        catch (IOException ex)
+        {
+            //not raised by an in-memory stream
+        }
+        pendingEntries++;
+        if(HEADER + pending.size() + MAC >= maxMessageBytes || pendingEntries == Short.MAX_VALUE) flush();
+        else if(pendingFlush == null) pendingFlush = timer.schedule(this::flush, batchDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the pending invalidations, or an empty heartbeat message if there are none.
+     */
+    synchronized void flush()
+    {
+        if(pendingFlush != null)
+        {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        ByteBuffer message = ByteBuffer.allocate(HEADER + pending.size() + MAC);
+        message.putShort(MAGIC).put(VERSION).put((byte) 0).putLong(sender).putLong(++sequence)
+                .putShort((short) pendingEntries).put(pending.toByteArray());
+        sendMac.update(message.array(), 0, message.position());
+        message.put(sendMac.doFinal());
+        pending = new ByteArrayOutputStream();
+        pendingEntries = 0;
+        lastSent = System.nanoTime();
+        try
+        {
+            transport.send(message.array());
+            sent.increment();
+        }
+        catch (IOException ex)
+        {
+            //the receivers will see the gap in the sequence numbers
+            logger.warn("could not send invalidations: " + ex.getMessage());
+        }
+    }
+
+    private void receive(ByteBuffer message)
+    {
+        try
+        {
+            if(message.remaining() < HEADER + MAC || !authentic(message))
+            {
+                malformed.increment();
+                return;
+            }
+            message.limit(message.limit() - MAC);
+            if(message.getShort() != MAGIC || message.get() != VERSION)
+            {
+                malformed.increment();
+                return;
+            }
+            message.get();
+            long from = message.getLong();
+            if(from == sender) return;
+            long number = message.getLong();
+            received.increment();
+            //messages are received on the single thread of the transport
+            long now = System.nanoTime();
+            forgetQuietSenders(now);
+            Peer peer = peers.get(from);
+            //a duplicate or late message, whatever it carried was covered by the loss handling
+            if(peer != null && number <= peer.sequence) return;
+            if(peer == null) peers.put(from, new Peer(number, now));
+            else
+            {
+                long previous = peer.sequence;
+                peer.sequence = number;
+                peer.heardAt = now;
+                if(number > previous + 1)
+                {
+                    lost.add(number - previous - 1);
+                    logger.warn("lost " + (number - previous - 1) + " invalidation messages of driver " + Long.toHexString(from)
+                            + ", dropping all cached decisions");
+                    receiver.invalidationsLost();
+                }
+            }
+            final Set<ByteBuffer> tokens = new HashSet<ByteBuffer>();
+            final Set<ByteBuffer> serviceKeys = new HashSet<ByteBuffer>();
+            for(int i=message.getShort() & 0xFFFF; i>0; i--)
+            {
+                byte kind = message.get();
+                if(kind == USER)
+                {
+                    receiver.userChanged(message.getInt());
+                }
+                else
+                {
+                    byte[] digest = new byte[DIGEST];
+                    message.get(digest);
+                    if(kind == TOKEN) tokens.add(ByteBuffer.wrap(digest));
+                    else if(kind == SERVICE_KEY) serviceKeys.add(ByteBuffer.wrap(digest));
+                }
+                applied.increment();
+            }
+            //the cached values are hashed with the same key to find those the digests stand for
+            if(!tokens.isEmpty())
+            {
+                final Mac mac = newMac(digestKey);
+                receiver.tokensRevoked(token -> tokens.contains(ByteBuffer.wrap(digest(mac, TOKEN, token))));
+            }
+            if(!serviceKeys.isEmpty())
+            {
+                final Mac mac = newMac(digestKey);
+                receiver.serviceKeysChanged(key -> serviceKeys.contains(ByteBuffer.wrap(digest(mac, SERVICE_KEY, key))));
+            }
+        }
+        catch (BufferUnderflowException ex)
+        {
+            malformed.increment();
+        }
+        catch (RuntimeException ex)
+        {
+            logger.error("could not apply invalidations: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Checks the HMAC closing a message, in constant time.
+     */
+    private boolean authentic(ByteBuffer message)
+    {
+        Mac mac = newMac(messageKey);
+        ByteBuffer signed = message.duplicate();
+        signed.limit(message.limit() - MAC);
+        mac.update(signed);
+        byte[] expected = new byte[MAC];
+        signed.limit(message.limit());
+        signed.get(expected);
+        return MessageDigest.isEqual(expected, mac.doFinal());
+    }
+
+    private void forgetQuietSenders(final long now)
+    {
+        if(now - lastPruned < quietSenderNanos) return;
+        lastPruned = now;
+        peers.values().removeIf(peer -> now - peer.heardAt >= quietSenderNanos);
+    }
+
+    private static byte[] digest(Mac mac, byte kind, String value)
+    {
+        mac.update(kind);
+        return Arrays.copyOf(mac.doFinal(value.getBytes(StandardCharsets.UTF_8)), DIGEST);
+    }
+
+    private static SecretKeySpec derive(byte[] secret, String purpose)
+    {
+        Mac mac = newMac(new SecretKeySpec(secret, ALGORITHM));
+        return new SecretKeySpec(mac.doFinal(purpose.getBytes(StandardCharsets.UTF_8)), ALGORITHM);
+    }
+
+    private static Mac newMac(SecretKeySpec key)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException(ALGORITHM + " is not available", ex);
+        }
+    }
+
+    /**
+     * @return  the number of messages sent, heartbeats included
+     */
+    public long getSentMessages()
+    {
+        return sent.sum();
+    }
+
+    /**
+     * @return  the number of messages received from other drivers
+     */
+    public long getReceivedMessages()
+    {
+        return received.sum();
+    }
+
+    /**
+     * @return  the number of invalidations received from other drivers and applied
+     */
+    public long getAppliedInvalidations()
+    {
+        return applied.sum();
+    }
+
+    /**
+     * @return  the number of messages of other drivers detected as lost
+     */
+    public long getLostMessages()
+    {
+        return lost.sum();
+    }
+
+    /**
+     * @return  the number of messages dropped as malformed or failing authentication
+     */
+    public long getMalformedMessages()
+    {
+        return malformed.sum();
+    }
+
+    /**
+     * @return  the number of other drivers currently tracked
+     */
+    public int getKnownSenders()
+    {
+        return peers.size();
+    }
+
+    /**
+     * Sends the pending invalidations and leaves the bus.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            if(heartbeat != null) heartbeat.cancel(false);
+            if(pendingEntries > 0) flush();
+        }
+        transport.close();
+    }
+
+    @Override
+    public String toString()
+    {
+        return transport + ", sent=" + getSentMessages() + ", received=" + getReceivedMessages() + ", applied="
+                + getAppliedInvalidations() + ", lost=" + getLostMessages();
+    }
+
+    /**
+     * The last message seen from another driver.
+     */
+    private static final class Peer
+    {
+        long sequence;
+        long heardAt;
+
+        Peer(long sequence, long heardAt)
+        {
+            this.sequence = sequence;
+            this.heardAt = heardAt;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Carries the messages of the invalidation bus between the drivers of a fleet. Delivery may be unreliable, the bus
+ * detects lost messages from their sequence numbers. Set gatekeeper.invalidation.transport to the class name of an
+ * implementation with a public constructor taking the driver configuration to replace the multicast transport.
+ */
+public interface InvalidationTransport extends AutoCloseable
+{
+    /**
+     * Starts receiving, messages sent by every member including this one are handed to the receiver on a thread of
+     * the transport. The buffer is only valid during the call.
+     * <p>
+     * @param receiver  consumes the received messages
+     * @throws IOException  if the transport could not be opened
+     */
+    void start(Consumer<ByteBuffer> receiver) throws IOException;
+
+    /**
+     * @param message   the encoded message, sent as one datagram
+     * @throws IOException  if the message could not be sent
+     */
+    void send(byte[] message) throws IOException;
+
+    @Override
+    void close();
+}
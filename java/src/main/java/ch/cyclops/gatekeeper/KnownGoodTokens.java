@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Remembers the tokens Gatekeeper recently confirmed as valid, so that they can still be accepted while Gatekeeper is
+ * unreachable. A token stays known good for the staleness window after its last confirmation, or until Gatekeeper
+ * rejects it. Tokens accepted this way are revalidated in the background: one of them is sent to Gatekeeper every
+ * revalidation interval, and once Gatekeeper answers again all of them are. Tokens the cache evicted or expired
+ * before they were revalidated are dropped from the queue, so that it stays bounded by the cache capacity.
+ */
+class KnownGoodTokens implements AutoCloseable
+{
+    private final ExpiringLruCache<TokenCheck, Long> confirmed;
+    private final int maxEntries;
+    private final long stalenessMillis;
+    private final Function<TokenCheck, CompletableFuture<Boolean>> upstream;
+    private final Logger logger;
+    private final Set<TokenCheck> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final LongAdder staleDecisions = new LongAdder();
+    private final ScheduledFuture<?> revalidation;
+
+    /**
+     * @param maxEntries        the number of tokens remembered
+     * @param stalenessMillis   how long after its last confirmation a token may still be accepted
+     * @param revalidateMillis  interval at which Gatekeeper is probed while stale decisions are outstanding
+     * @param upstream          asks Gatekeeper, completes with null if Gatekeeper gave no answer
+     * @param timer             runs the revalidation
+     * @param logger            the driver logger
+     */
+    KnownGoodTokens(int maxEntries, long stalenessMillis, long revalidateMillis, Function<TokenCheck, CompletableFuture<Boolean>> upstream,
+                    ScheduledExecutorService timer, Logger logger)
+    {
+        this.confirmed = new ExpiringLruCache<TokenCheck, Long>(maxEntries);
+        this.maxEntries = maxEntries;
+        this.stalenessMillis = stalenessMillis;
+        this.upstream = upstream;
+        this.logger = logger;
+        this.revalidation = timer.scheduleWithFixedDelay(this::revalidate, revalidateMillis, revalidateMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records an answer of Gatekeeper, a confirmed token starts a new staleness window, a rejected one is forgotten.
+     */
+    void record(TokenCheck check, boolean valid)
+    {
+        if(valid) confirmed.put(check, System.currentTimeMillis(), stalenessMillis);
+        else confirmed.invalidate(check);
+        pending.remove(check);
+    }
+
+    /**
+     * Looks up a token while Gatekeeper is unreachable. A token that is accepted is queued for revalidation.
+     * <p>
+     * @return  the stale decision accepting the token, null if the token is not known good
+     */
+    GKDecision lookup(TokenCheck check)
+    {
+        Long confirmedAt = confirmed.get(check);
+        if(confirmedAt == null) return null;
+        staleDecisions.increment();
+        if(pending.isEmpty()) logger.warn("gatekeeper unavailable, accepting recently confirmed tokens as stale decisions.");
+        //pruning only past twice the capacity keeps its cost amortized over the lookups
+        if(pending.add(check) && pending.size() > 2 * maxEntries) prune();
+        return GKDecision.stale(confirmedAt);
+    }
+
+    /**
+     * Drops the pending tokens that are no longer known good.
+     */
+    private void prune()
+    {
+        final Set<TokenCheck> live = new HashSet<TokenCheck>();
+        confirmed.forEachLive((check, confirmedAt, ttlMillis) -> live.add(check));
+        pending.retainAll(live);
+    }
+
+    void invalidateIf(Predicate<? super TokenCheck> predicate)
+    {
+        confirmed.invalidateIf(predicate);
+        pending.removeIf(predicate);
+    }
+
+    /**
+     * Sends one pending token to Gatekeeper, if it answers Gatekeeper is back and every pending token is revalidated.
+     */
+    private void revalidate()
+    {
+        if(pending.isEmpty() || !probing.compareAndSet(false, true)) return;
+        final TokenCheck probe = pending.iterator().next();
+        ask(probe).whenComplete((answered, error) -> {
+            probing.set(false);
+            if(!answered) return;
+            ArrayList<TokenCheck> remaining = new ArrayList<TokenCheck>(pending);
+            logger.info("gatekeeper answers again, revalidating " + (remaining.size() + 1) + " stale tokens.");
+            for(TokenCheck check : remaining) ask(check);
+        });
+    }
+
+    /**
+     * @return  future completed with true if Gatekeeper answered for the token, the answer is recorded
+     */
+    private CompletableFuture<Boolean> ask(final TokenCheck check)
+    {
+        CompletableFuture<Boolean> answer;
+        try
+        {
+            answer = upstream.apply(check);
+        }
+        catch (RuntimeException ex)
+        {
+            answer = new CompletableFuture<Boolean>();
+            answer.completeExceptionally(ex);
+        }
+        return answer.handle((valid, error) -> {
+            if(error != null || valid == null) return false;
+            record(check, valid);
+            return true;
+        });
+    }
+
+    /**
+     * @return  the number of tokens accepted as stale decisions
+     */
+    long getStaleDecisionCount()
+    {
+        return staleDecisions.sum();
+    }
+
+    CacheStats getStats()
+    {
+        return confirmed.getStats();
+    }
+
+    @Override
+    public void close()
+    {
+        revalidation.cancel(false);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log-linear histogram of durations in microseconds, in the spirit of HdrHistogram. Each power of two is
+ * split into 8 linear sub-buckets, which bounds the relative error of a reported percentile to 12.5%. Recording is
+ * lock-free and allocation-free, reading is a best-effort snapshot while recording continues.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    //values up to 2^42 microseconds (about 50 days) are tracked, larger ones are clamped into the last bucket
+    private static final int MAX_EXPONENT = 42;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the duration to record in nanoseconds, negative values are recorded as 0
+     */
+    public void recordNanos(long nanos)
+    {
+        long micros = Math.max(nanos, 0) / 1000;
+        counts.incrementAndGet(indexOf(micros));
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        long current;
+        while(micros > (current = max.get()))
+        {
+            if(max.compareAndSet(current, micros)) break;
+        }
+    }
+
+    static int indexOf(long micros)
+    {
+        if(micros < SUB_COUNT) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if(exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBoundOf(int index)
+    {
+        if(index < SUB_COUNT) return index;
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        long base = 1L << exponent;
+        return base + ((long) (sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * @return  the number of recorded values
+     */
+    public long getCount()
+    {
+        return total.get();
+    }
+
+    /**
+     * @return  the largest recorded value in microseconds
+     */
+    public long getMaxMicros()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return  the mean of the recorded values in microseconds, 0 if nothing was recorded
+     */
+    public double getMeanMicros()
+    {
+        long n = total.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile    the percentile to compute, between 0 and 100
+     * @return  an upper bound of the given percentile in microseconds, 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile)
+    {
+        return Math.min(percentileOf(getCounts(), percentile), max.get());
+    }
+
+    /**
+     * @return  a copy of the bucket counts, the difference of two copies describes the values recorded in between
+     */
+    long[] getCounts()
+    {
+        long[] snapshot = new long[BUCKETS];
+        for(int i=0; i<BUCKETS; i++)
+            snapshot[i] = counts.get(i);
+        return snapshot;
+    }
+
+    /**
+     * @param snapshot      bucket counts as returned by getCounts, or a difference of them
+     * @param percentile    the percentile to compute, between 0 and 100
+     * @return  an upper bound of the given percentile in microseconds, 0 if the counts are empty
+     */
+    static long percentileOf(long[] snapshot, double percentile)
+    {
+        long n = 0;
+        for(long count : snapshot)
+            n += count;
+        if(n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for(int i=0; i<snapshot.length; i++)
+        {
+            seen += snapshot[i];
+            if(seen >= rank) return upperBoundOf(i);
+        }
+        return upperBoundOf(snapshot.length - 1);
+    }
+}
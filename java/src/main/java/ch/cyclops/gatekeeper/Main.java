@@ -28,6 +28,7 @@ import org.apache.log4j.*;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
 
 public class Main {
     public static void main(String[] args) throws Exception {
@@ -38,9 +39,20 @@ public class Main {
 
         //setting up the logging framework now
         Logger.getRootLogger().getLoggerRepository().resetConfiguration();
+        //with log.async the appenders are fed from a bounded buffer by a background thread, events are dropped
+        //instead of blocking the caller when the buffer is full
+        AsyncAppender async = null;
+        if(config.getBoolean("log.async", true))
+        {
+            async = new AsyncAppender();
+            async.setBufferSize(config.getInt("log.async.bufferSize", 8192));
+            async.setBlocking(false);
+            async.setLocationInfo(false);
+            Logger.getRootLogger().addAppender(async);
+        }
         ConsoleAppender console = new ConsoleAppender(); //create appender
-        //configure the appender
-        String PATTERN = "%d [%p|%C{1}|%M|%L] %m%n";
+        //configure the appender, caller location (%C %M %L) is costly to compute and not available to the async appender
+        String PATTERN = async != null ? "%d [%p|%c{1}] %m%n" : "%d [%p|%C{1}|%M|%L] %m%n";
         console.setLayout(new PatternLayout(PATTERN));
         String logConsoleLevel = config.getProperty("log.level.console").toString();
         switch (logConsoleLevel) {
@@ -68,7 +80,8 @@ public class Main {
 
         console.activateOptions();
         //add appender to any Logger (here is root)
-        Logger.getRootLogger().addAppender(console);
+        if(async != null) async.addAppender(console);
+        else Logger.getRootLogger().addAppender(console);
 
         String logFileLevel = config.getProperty("log.level.file").toString();
         String logFile = config.getProperty("log.file").toString();
@@ -107,18 +120,34 @@ public class Main {
             fa.activateOptions();
 
             //add appender to any Logger (here is root)
-            Logger.getRootLogger().addAppender(fa);
+            if(async != null) async.addAppender(fa);
+            else Logger.getRootLogger().addAppender(fa);
         }
         //now logger configuration is done, we can start using it.
         Logger mainLogger = Logger.getLogger("gatekeeper-driver.Main");
 
         mainLogger.debug("Driver loaded properly");
-        if(args.length > 0)
+        if(args.length > 1 && args[0].equals("serve"))
+        {
+            //sidecar mode: serve token checks over local http until the process is stopped. headers and body are
+            //written separately, without TCP_NODELAY every response waits for a delayed ACK
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+            final GKDriver gkDriver = new GKDriver(args[args.length - 1], config.getInt("gatekeeper.user.id"),
+                    config.getString("gatekeeper.user.password"));
+            final ValidationServer server = new ValidationServer(gkDriver, config);
+            final CountDownLatch stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                gkDriver.close();
+                stopped.countDown();
+            }));
+            stopped.await();
+        }
+        else if(args.length > 0)
         {
             GKDriver gkDriver = new GKDriver(args[args.length - 1], 1, "Eq7K8h9gpg");
-            System.out.println("testing if admin: " + gkDriver.isAdmin(1, 0));
-            ArrayList<String> uList = gkDriver.getUserList(0); //the argument is the starting count of number of allowed
-                                                                //internal attempts.
+            System.out.println("testing if admin: " + gkDriver.isAdmin(1));
+            ArrayList<String> uList = gkDriver.getUserList();
             if(uList != null)
             {
                 mainLogger.info("Received user list from Gatekeeper! Count: " + uList.size());
@@ -133,7 +162,7 @@ public class Main {
                 mainLogger.warn("Authentication attempt failed!");
 
             String sName = "myservice-"+System.currentTimeMillis();
-            HashMap<String, String> newService = gkDriver.registerService(sName, "this is my new cool service", 0);
+            HashMap<String, String> newService = gkDriver.registerService(sName, "this is my new cool service");
             String sKey = "";
             if(newService != null)
             {
@@ -145,7 +174,7 @@ public class Main {
                 mainLogger.warn("Service registration failed!");
             }
 
-            int newUserId = gkDriver.registerUser("user-"+System.currentTimeMillis(), "pass1234", false, sName, 0);
+            int newUserId = gkDriver.registerUser("user-"+System.currentTimeMillis(), "pass1234", false, sName);
             if(newUserId != -1)
                 mainLogger.info("User registration was successful. Received new id: " + newUserId);
             else mainLogger.warn("User registration failed!");
@@ -153,11 +182,10 @@ public class Main {
             String token = gkDriver.generateToken(newUserId, "pass1234");
             boolean isValidToken = gkDriver.validateToken(token, newUserId);
 
-            if(isValidToken) mainLogger.info("The token: " + token + " is successfully validated for user-id: " + newUserId);
-            else mainLogger.warn("Token validation was unsuccessful! Token: " + token + ", user-id: " + newUserId);
+            if(isValidToken) mainLogger.info("The token: " + CallLog.mask(token) + " is successfully validated for user-id: " + newUserId);
+            else mainLogger.warn("Token validation was unsuccessful! Token: " + CallLog.mask(token) + ", user-id: " + newUserId);
 
-            ArrayList<String> sList = gkDriver.getServiceList(0); //the argument is the starting count of number of allowed
-                                                                    //internal attempts.
+            ArrayList<String> sList = gkDriver.getServiceList();
             if(sList != null)
             {
                 mainLogger.info("Received service list from Gatekeeper! Count: " + sList.size());
@@ -166,12 +194,15 @@ public class Main {
             }
 
             isValidToken = gkDriver.validateToken(token, sKey);
-            if(isValidToken) mainLogger.info("The token: " + token + " is successfully validated for user-id: " + newUserId + " against s-key:" + sKey);
-            else mainLogger.warn("Token validation was unsuccessful! Token: " + token + ", user-id: " + newUserId + ", s-key: " + sKey);
+            if(isValidToken) mainLogger.info("The token: " + CallLog.mask(token) + " is successfully validated for user-id: " + newUserId + " against s-key:" + sKey);
+            else mainLogger.warn("Token validation was unsuccessful! Token: " + CallLog.mask(token) + ", user-id: " + newUserId + ", s-key: " + sKey);
 
-            boolean deleteResult = gkDriver.deleteUser(newUserId, 0);
+            boolean deleteResult = gkDriver.deleteUser(newUserId);
             if(deleteResult) mainLogger.info("User with id: " + newUserId + " was deleted successfully.");
             else mainLogger.warn("User with id: " + newUserId + " could not be deleted successfully!");
+
+            gkDriver.close();
         }
+        LogManager.shutdown();
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.commons.configuration.Configuration;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Invalidation transport over UDP multicast. Every driver joins the group and receives the messages of all members,
+ * its own included. Multicast loopback is kept on, so drivers on the same host (or tests using the loopback
+ * interface) receive each other's messages. Any host of the network may send to the group, the bus drops the
+ * datagrams that are not authenticated with the secret of the fleet.
+ */
+public class MulticastTransport implements InvalidationTransport
+{
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final InetAddress group;
+    private final int port;
+    private final int ttl;
+    private final String interfaceName;
+    private volatile MulticastSocket socket;
+
+    /**
+     * Reads gatekeeper.invalidation.group, .port, .ttl and .interface from the driver configuration.
+     * <p>
+     * @param config    the driver configuration
+     * @throws UnknownHostException if the group is not a valid address
+     */
+    public MulticastTransport(Configuration config) throws UnknownHostException
+    {
+        this(config.getString("gatekeeper.invalidation.group", "239.255.42.99"), config.getInt("gatekeeper.invalidation.port", 4446),
+                config.getInt("gatekeeper.invalidation.ttl", 1), config.getString("gatekeeper.invalidation.interface", null));
+    }
+
+    /**
+     * @param group         the multicast group address
+     * @param port          the port of the group
+     * @param ttl           the multicast time-to-live, 1 keeps the messages in the local network
+     * @param interfaceName the network interface to use, e.g. "lo", null for the system default
+     * @throws UnknownHostException if the group is not a valid address
+     */
+    public MulticastTransport(String group, int port, int ttl, String interfaceName) throws UnknownHostException
+    {
+        this.group = InetAddress.getByName(group);
+        if(!this.group.isMulticastAddress()) throw new IllegalArgumentException(group + " is not a multicast address");
+        this.port = port;
+        this.ttl = ttl;
+        this.interfaceName = interfaceName;
+    }
+
+    @Override
+    //setLoopbackMode and joinGroup(InetAddress) are deprecated since Java 14, their replacements do not exist in Java 8
+    @SuppressWarnings("deprecation")
+    public synchronized void start(final Consumer<ByteBuffer> receiver) throws IOException
+    {
+        if(socket != null) throw new IllegalStateException("transport already started");
+        MulticastSocket opened = new MulticastSocket(null);
+        try
+        {
+            opened.setReuseAddress(true);
+            opened.bind(new InetSocketAddress(port));
+            opened.setTimeToLive(ttl);
+            //false enables the loopback of sent datagrams
+            opened.setLoopbackMode(false);
+            if(interfaceName != null)
+            {
+                NetworkInterface nif = NetworkInterface.getByName(interfaceName);
+                if(nif == null) throw new SocketException("no network interface " + interfaceName);
+                opened.setNetworkInterface(nif);
+                opened.joinGroup(new InetSocketAddress(group, port), nif);
+            }
+            else
+            {
+                opened.joinGroup(group);
+            }
+        }
+        catch (IOException ex)
+        {
+            opened.close();
+            throw ex;
+        }
+        socket = opened;
+
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[MAX_DATAGRAM];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while(!opened.isClosed())
+            {
+                try
+                {
+                    packet.setLength(buffer.length);
+                    opened.receive(packet);
+                    receiver.accept(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+                }
+                catch (IOException ex)
+                {
+                    //closed, or a transient error, the loop condition decides
+                }
+            }
+        }, "gatekeeper-invalidation");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void send(byte[] message) throws IOException
+    {
+        MulticastSocket current = socket;
+        if(current == null) throw new IOException("transport not started");
+        current.send(new DatagramPacket(message, message.length, group, port));
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if(socket != null) socket.close();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "multicast " + group.getHostAddress() + ":" + port + (interfaceName != null ? " on " + interfaceName : "");
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one driver operation. The total latency covers the whole http call including
+ * reading the response body, the phase histograms only record calls that went through that phase, for instance the
+ * connect histogram only sees calls that could not reuse a pooled connection.
+ */
+public final class OperationMetrics implements OperationMetricsMBean
+{
+    private final GKOperation operation;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder status2xx = new LongAdder();
+    private final LongAdder status3xx = new LongAdder();
+    private final LongAdder status4xx = new LongAdder();
+    private final LongAdder status5xx = new LongAdder();
+    private final LongAdder ioErrors = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LatencyHistogram dns = new LatencyHistogram();
+    final LatencyHistogram connect = new LatencyHistogram();
+    final LatencyHistogram tls = new LatencyHistogram();
+    final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+
+    OperationMetrics(GKOperation operation)
+    {
+        this.operation = operation;
+    }
+
+    public GKOperation getOperation()
+    {
+        return operation;
+    }
+
+    void recordCall()
+    {
+        calls.increment();
+    }
+
+    void recordStatus(int code)
+    {
+        if(code >= 500) status5xx.increment();
+        else if(code >= 400) status4xx.increment();
+        else if(code >= 300) status3xx.increment();
+        else status2xx.increment();
+    }
+
+    void recordIoError()
+    {
+        ioErrors.increment();
+    }
+
+    void recordRetry()
+    {
+        retries.increment();
+    }
+
+    void recordHedge()
+    {
+        hedges.increment();
+    }
+
+    /**
+     * @return  the histogram of total call latencies
+     */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * @return  the histogram of the time from sending the request headers to receiving the response headers
+     */
+    public LatencyHistogram getTimeToFirstByte()
+    {
+        return timeToFirstByte;
+    }
+
+    @Override
+    public long getCalls()
+    {
+        return calls.sum();
+    }
+
+    @Override
+    public long getStatus2xx()
+    {
+        return status2xx.sum();
+    }
+
+    @Override
+    public long getStatus3xx()
+    {
+        return status3xx.sum();
+    }
+
+    @Override
+    public long getStatus4xx()
+    {
+        return status4xx.sum();
+    }
+
+    @Override
+    public long getStatus5xx()
+    {
+        return status5xx.sum();
+    }
+
+    @Override
+    public long getIoErrors()
+    {
+        return ioErrors.sum();
+    }
+
+    @Override
+    public long getRetries()
+    {
+        return retries.sum();
+    }
+
+    @Override
+    public long getHedges()
+    {
+        return hedges.sum();
+    }
+
+    @Override
+    public double getLatencyMeanMicros()
+    {
+        return latency.getMeanMicros();
+    }
+
+    @Override
+    public long getLatencyP50Micros()
+    {
+        return latency.getPercentileMicros(50);
+    }
+
+    @Override
+    public long getLatencyP90Micros()
+    {
+        return latency.getPercentileMicros(90);
+    }
+
+    @Override
+    public long getLatencyP99Micros()
+    {
+        return latency.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getLatencyMaxMicros()
+    {
+        return latency.getMaxMicros();
+    }
+
+    @Override
+    public long getDnsP99Micros()
+    {
+        return dns.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getConnectP99Micros()
+    {
+        return connect.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getTlsP99Micros()
+    {
+        return tls.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getTimeToFirstByteP50Micros()
+    {
+        return timeToFirstByte.getPercentileMicros(50);
+    }
+
+    @Override
+    public long getTimeToFirstByteP99Micros()
+    {
+        return timeToFirstByte.getPercentileMicros(99);
+    }
+
+    @Override
+    public String toString()
+    {
+        return operation.getMetricName() + ": calls=" + getCalls() + ", 2xx=" + getStatus2xx() + ", 4xx=" + getStatus4xx()
+                + ", 5xx=" + getStatus5xx() + ", ioErrors=" + getIoErrors() + ", retries=" + getRetries() + ", hedges=" + getHedges()
+                + ", p50=" + getLatencyP50Micros() + "us, p99=" + getLatencyP99Micros() + "us";
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * JMX view of the metrics of one driver operation. Latencies are in microseconds.
+ */
+public interface OperationMetricsMBean
+{
+    long getCalls();
+
+    long getStatus2xx();
+
+    long getStatus3xx();
+
+    long getStatus4xx();
+
+    long getStatus5xx();
+
+    long getIoErrors();
+
+    long getRetries();
+
+    long getHedges();
+
+    double getLatencyMeanMicros();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP90Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyMaxMicros();
+
+    long getDnsP99Micros();
+
+    long getConnectP99Micros();
+
+    long getTlsP99Micros();
+
+    long getTimeToFirstByteP50Micros();
+
+    long getTimeToFirstByteP99Micros();
+}
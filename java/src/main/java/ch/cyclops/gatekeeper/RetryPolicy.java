@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.commons.configuration.Configuration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether and when a failed Gatekeeper call is repeated. Delays grow exponentially from the initial backoff up
+ * to the maximum backoff and are randomized by the jitter fraction, so that clients failing at the same moment do not
+ * retry in lock-step. No attempt is started once the total deadline of the call would be exceeded.
+ * <p>
+ * By default i/o errors are only retried for idempotent operations, since a failed registration, token generation
+ * or deletion may still have been processed by the server, and the retryable status codes are only retried for
+ * idempotent operations or when the server signals it did not process the request (503). Subclasses may override the
+ * classification methods.
+ */
+public class RetryPolicy
+{
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double multiplier;
+    private final double jitter;
+    private final long deadlineMillis;
+    private final Set<Integer> retryableStatuses;
+
+    /**
+     * @param maxAttempts           total number of attempts including the first one, at least 1
+     * @param initialBackoffMillis  delay before the first retry
+     * @param maxBackoffMillis      upper bound of the delay between two attempts
+     * @param multiplier            growth factor of the delay after every retry
+     * @param jitter                fraction between 0 and 1 of the delay that is randomized
+     * @param deadlineMillis        total time budget of a call including all retries
+     * @param retryableStatuses     http status codes that indicate a transient failure
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, double multiplier, double jitter,
+                       long deadlineMillis, Set<Integer> retryableStatuses)
+    {
+        if(maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+        if(jitter < 0 || jitter > 1) throw new IllegalArgumentException("jitter must be between 0 and 1: " + jitter);
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.deadlineMillis = deadlineMillis;
+        this.retryableStatuses = new HashSet<Integer>(retryableStatuses);
+    }
+
+    /**
+     * Reads the policy from the gatekeeper.retry.* keys of the driver configuration.
+     * <p>
+     * @param config    the driver configuration
+     * @return  the configured policy, defaults are used for missing keys
+     */
+    public static RetryPolicy fromConfiguration(Configuration config)
+    {
+        HashSet<Integer> statuses = new HashSet<Integer>();
+        for(Object code : config.getList("gatekeeper.retry.statuses", Arrays.<Object>asList("502", "503", "504")))
+            statuses.add(Integer.parseInt(code.toString().trim()));
+        return new RetryPolicy(config.getInt("gatekeeper.retry.maxAttempts", 3),
+                config.getLong("gatekeeper.retry.backoff.initial", 50),
+                config.getLong("gatekeeper.retry.backoff.max", 1000),
+                config.getDouble("gatekeeper.retry.backoff.multiplier", 2.0),
+                config.getDouble("gatekeeper.retry.jitter", 0.5),
+                config.getLong("gatekeeper.retry.deadline", 5000),
+                statuses);
+    }
+
+    /**
+     * @return  a policy making a single attempt
+     */
+    public static RetryPolicy none()
+    {
+        return new RetryPolicy(1, 0, 0, 1.0, 0.0, TimeUnit.DAYS.toMillis(1), new HashSet<Integer>());
+    }
+
+    /**
+     * @param operation the operation that failed
+     * @param error     the i/o error raised by the attempt
+     * @return  true if the operation may be attempted again
+     */
+    public boolean isRetryable(GKOperation operation, IOException error)
+    {
+        return operation.isIdempotent();
+    }
+
+    /**
+     * @param operation the operation that was attempted
+     * @param status    the http status code received
+     * @return  true if the operation may be attempted again
+     */
+    public boolean isRetryable(GKOperation operation, int status)
+    {
+        return retryableStatuses.contains(status) && (operation.isIdempotent() || status == 503);
+    }
+
+    /**
+     * Computes the delay before the next attempt.
+     * <p>
+     * @param attempt       the number of attempts made so far, starting at 1
+     * @param deadlineNanos the System.nanoTime() value at which the call must be finished
+     * @return  the delay in milliseconds, or -1 if no further attempt may be made
+     */
+    public long nextDelayMillis(int attempt, long deadlineNanos)
+    {
+        if(attempt >= maxAttempts) return -1;
+        double base = Math.min(maxBackoffMillis, initialBackoffMillis * Math.pow(multiplier, attempt - 1));
+        long delay = (long) (base * (1.0 - jitter * ThreadLocalRandom.current().nextDouble()));
+        if(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) - deadlineNanos >= 0) return -1;
+        return delay;
+    }
+
+    /**
+     * @return  the System.nanoTime() value at which a call starting now must be finished
+     */
+    public long deadlineFromNow()
+    {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    public long getDeadlineMillis()
+    {
+        return deadlineMillis;
+    }
+}
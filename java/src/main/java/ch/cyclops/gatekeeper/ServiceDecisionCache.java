@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+/**
+ * Caches authorization decisions of tokens against service-keys. Every service-key gets its own bounded partition so
+ * that a service validating many distinct tokens only evicts its own entries. Denials are only cached for service-keys
+ * Gatekeeper granted a token for. When maxServices keys are tracked, an empty partition or else the least recently
+ * used one makes room for a new key, so that rotated or retired keys do not hold their slots forever.
+ * <p>
+ * A validation racing with an invalidation must not bring the dropped decision back: every service-key maps to a
+ * generation bumped on invalidation, a decision is only kept if the generation read before asking Gatekeeper is
+ * unchanged once it is stored.
+ */
+public class ServiceDecisionCache
+{
+    private static final int GENERATION_STRIPES = 64;
+
+    private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final int entriesPerService;
+    private final int maxServices;
+    private final long ttlPositive;
+    private final long ttlNegative;
+
+    /**
+     * @param entriesPerService capacity of the partition of a single service-key
+     * @param maxServices       maximum number of service-keys tracked at a time
+     * @param ttlPositive       time-to-live in milliseconds of granted decisions
+     * @param ttlNegative       time-to-live in milliseconds of denied decisions
+     */
+    public ServiceDecisionCache(int entriesPerService, int maxServices, long ttlPositive, long ttlNegative)
+    {
+        this.entriesPerService = entriesPerService;
+        this.maxServices = maxServices;
+        this.ttlPositive = ttlPositive;
+        this.ttlNegative = ttlNegative;
+    }
+
+    /**
+     * @param serviceKey    the service-key the token was validated against
+     * @param token         the token
+     * @return  the cached decision, null if unknown or expired
+     */
+    public Boolean get(String serviceKey, String token)
+    {
+        Partition partition = partitions.get(serviceKey);
+        return partition != null ? partition.get(token) : null;
+    }
+
+    /**
+     * @return  the current generation of the service-key, to be read before asking Gatekeeper and passed to put
+     */
+    public long generation(String serviceKey)
+    {
+        return generations.get(stripe(serviceKey));
+    }
+
+    /**
+     * Records a decision taken by Gatekeeper.
+     * <p>
+     * @param serviceKey    the service-key the token was validated against
+     * @param token         the token
+     * @param granted       true if the token was authorized for the service
+     */
+    public void put(String serviceKey, String token, boolean granted)
+    {
+        put(serviceKey, token, granted, generation(serviceKey));
+    }
+
+    /**
+     * Records a decision taken by Gatekeeper, unless the decisions of the service-key or of the token were
+     * invalidated since the generation was read.
+     * <p>
+     * @param generation    the generation of the service-key read before Gatekeeper was asked
+     */
+    public void put(String serviceKey, String token, boolean granted, long generation)
+    {
+        if(generation(serviceKey) != generation) return;
+        Partition partition = partitionFor(serviceKey, granted);
+        if(partition == null) return;
+        partition.put(token, granted, granted ? ttlPositive : ttlNegative);
+        //an invalidation that ran in between may have missed the decision just stored
+        if(generation(serviceKey) != generation) partition.invalidate(token);
+    }
+
+    /**
+     * Restores a decision saved earlier, its time-to-live is capped by the configured one.
+     */
+    void restore(String serviceKey, String token, boolean granted, long ttlMillis)
+    {
+        Partition partition = partitionFor(serviceKey, granted);
+        if(partition != null) partition.put(token, granted, Math.min(ttlMillis, granted ? ttlPositive : ttlNegative));
+    }
+
+    /**
+     * A service-key only gets a partition once Gatekeeper granted a token for it, so that made-up keys, which are
+     * never granted, cannot take the slots of the real services.
+     * <p>
+     * @return  the partition of the service-key, null if it has none and the decision does not admit it
+     */
+    private Partition partitionFor(String serviceKey, boolean granted)
+    {
+        Partition partition = partitions.get(serviceKey);
+        if(partition != null || !granted) return partition;
+        synchronized (partitions)
+        {
+            partition = partitions.get(serviceKey);
+            if(partition == null)
+            {
+                if(partitions.size() >= maxServices) makeRoom();
+                partition = new Partition(entriesPerService);
+                partitions.put(serviceKey, partition);
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * Drops the empty partitions, or the least recently used one if none is empty. Called with the partitions locked.
+     */
+    private void makeRoom()
+    {
+        partitions.values().removeIf(partition -> partition.size() == 0);
+        if(partitions.size() < maxServices) return;
+        Map.Entry<String, Partition> idlest = null;
+        for(Map.Entry<String, Partition> entry : partitions.entrySet())
+        {
+            if(idlest == null || entry.getValue().lastUsed - idlest.getValue().lastUsed < 0) idlest = entry;
+        }
+        if(idlest != null) partitions.remove(idlest.getKey(), idlest.getValue());
+    }
+
+    private static int stripe(String serviceKey)
+    {
+        int hash = serviceKey.hashCode();
+        return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    private void bumpAll()
+    {
+        for(int i=0; i<GENERATION_STRIPES; i++)
+            generations.incrementAndGet(i);
+    }
+
+    /**
+     * Visits every live decision with its remaining time-to-live in milliseconds.
+     */
+    void forEachLive(DecisionVisitor visitor)
+    {
+        for(Map.Entry<String, Partition> partition : partitions.entrySet())
+        {
+            final String serviceKey = partition.getKey();
+            partition.getValue().forEachLive((token, granted, ttl) -> visitor.visit(serviceKey, token, granted, ttl));
+        }
+    }
+
+    interface DecisionVisitor
+    {
+        void visit(String serviceKey, String token, boolean granted, long ttlMillis);
+    }
+
+    /**
+     * Drops every decision taken for a service-key, to be used when the key is rotated or the service removed.
+     * <p>
+     * @param serviceKey    the service-key whose decisions are to be dropped
+     */
+    public void invalidateService(String serviceKey)
+    {
+        generations.incrementAndGet(stripe(serviceKey));
+        partitions.remove(serviceKey);
+    }
+
+    /**
+     * Drops every decision taken for the service-keys matching a test.
+     * <p>
+     * @param changed   matches the service-keys whose decisions are to be dropped
+     */
+    public void invalidateServiceIf(Predicate<String> changed)
+    {
+        bumpAll();
+        partitions.keySet().removeIf(changed);
+    }
+
+    /**
+     * Drops the decisions of a token across all services.
+     * <p>
+     * @param token the token whose decisions are to be dropped
+     */
+    public void invalidateToken(String token)
+    {
+        bumpAll();
+        for(Partition partition : partitions.values())
+            partition.invalidate(token);
+    }
+
+    /**
+     * Drops the decisions of the tokens matching a test across all services.
+     * <p>
+     * @param revoked   matches the tokens whose decisions are to be dropped
+     */
+    public void invalidateTokenIf(Predicate<String> revoked)
+    {
+        bumpAll();
+        for(Partition partition : partitions.values())
+            partition.invalidateIf(revoked);
+    }
+
+    /**
+     * Drops every cached decision.
+     */
+    public void invalidateAll()
+    {
+        bumpAll();
+        partitions.clear();
+    }
+
+    /**
+     * @return  the cache counters of every tracked service-key
+     */
+    public Map<String, CacheStats> getStats()
+    {
+        HashMap<String, CacheStats> result = new HashMap<String, CacheStats>();
+        for(Map.Entry<String, Partition> entry : partitions.entrySet())
+            result.put(entry.getKey(), entry.getValue().getStats());
+        return result;
+    }
+
+    /**
+     * The decisions of one service-key, with the time it was last looked up or written to.
+     */
+    private static final class Partition extends ExpiringLruCache<String, Boolean>
+    {
+        private volatile long lastUsed = System.nanoTime();
+
+        Partition(int maxEntries)
+        {
+            super(maxEntries);
+        }
+
+        @Override
+        public Boolean get(String token)
+        {
+            lastUsed = System.nanoTime();
+            return super.get(token);
+        }
+
+        @Override
+        public void put(String token, Boolean granted, long ttlMillis)
+        {
+            lastUsed = System.nanoTime();
+            super.put(token, granted, ttlMillis);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * A service to register, see GKDriver.registerServices. Two specs are equal if they have the same short-name.
+ */
+public final class ServiceSpec
+{
+    private final String shortName;
+    private final String description;
+
+    /**
+     * @param shortName     a unique one-word name of the service
+     * @param description   a sentence describing the service
+     */
+    public ServiceSpec(String shortName, String description)
+    {
+        if(shortName == null) throw new IllegalArgumentException("shortName must not be null");
+        this.shortName = shortName;
+        this.description = description;
+    }
+
+    public String getShortName()
+    {
+        return shortName;
+    }
+
+    public String getDescription()
+    {
+        return description;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return this == o || (o instanceof ServiceSpec && shortName.equals(((ServiceSpec) o).shortName));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return shortName.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "service " + shortName;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Collapses concurrent identical calls into one. The first caller for a key performs the call, callers arriving while
+ * it is in flight wait for and share its outcome. Nothing is remembered once the call completes.
+ * <p>
+ * Every caller of an asynchronous call, the one that started it included, gets its own future. Cancelling it only
+ * withdraws that caller, the call itself is cancelled once every caller has withdrawn.
+ * <p>
+ * @param <K>   the key identifying identical calls
+ * @param <V>   the result type
+ */
+class SingleFlight<K, V>
+{
+    private final ConcurrentHashMap<K, Flight<V>> calls = new ConcurrentHashMap<K, Flight<V>>();
+    private final UnaryOperator<V> shareCopy;
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    SingleFlight()
+    {
+        this(null);
+    }
+
+    /**
+     * @param shareCopy applied to the result handed to waiting callers, used when the result is mutable
+     */
+    SingleFlight(UnaryOperator<V> shareCopy)
+    {
+        this.shareCopy = shareCopy;
+    }
+
+    /**
+     * Performs the call in the calling thread unless an identical call is already in flight.
+     * <p>
+     * @param key   identifies the call
+     * @param call  the call to perform
+     * @return  the result of the call
+     * @throws Exception    the exception raised by the call
+     */
+    V execute(K key, Callable<V> call) throws Exception
+    {
+        Flight<V> mine = new Flight<V>();
+        Flight<V> existing = join(key, mine);
+        if(existing != null)
+        {
+            collapsed.increment();
+            try
+            {
+                return share(existing.result.get());
+            }
+            catch (ExecutionException ex)
+            {
+                if(ex.getCause() instanceof Exception) throw (Exception) ex.getCause();
+                throw ex;
+            }
+        }
+
+        executed.increment();
+        //the call is unregistered before it is completed, so that later callers never join a finished call
+        V value;
+        try
+        {
+            value = call.call();
+        }
+        catch (Exception ex)
+        {
+            calls.remove(key, mine);
+            mine.result.completeExceptionally(ex);
+            throw ex;
+        }
+        calls.remove(key, mine);
+        mine.result.complete(value);
+        return value;
+    }
+
+    /**
+     * Starts the asynchronous call unless an identical call is already in flight.
+     * <p>
+     * @param key   identifies the call
+     * @param call  starts the call
+     * @return  future completed with the result of the call, cancelling it withdraws this caller only
+     */
+    CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call)
+    {
+        Flight<V> mine = new Flight<V>();
+        Flight<V> existing = join(key, mine);
+        if(existing != null)
+        {
+            collapsed.increment();
+            return participate(key, existing, this::share);
+        }
+
+        executed.increment();
+        CompletableFuture<V> started;
+        try
+        {
+            started = call.get();
+        }
+        catch (Throwable t)
+        {
+            started = new CompletableFuture<V>();
+            started.completeExceptionally(t);
+        }
+        mine.upstream = started;
+        started.whenComplete((value, error) -> {
+            calls.remove(key, mine);
+            if(error != null) mine.result.completeExceptionally(error);
+            else mine.result.complete(value);
+        });
+        return participate(key, mine, UnaryOperator.identity());
+    }
+
+    /**
+     * Registers a new call unless an identical one is in flight, a call every caller withdrew from is replaced.
+     * <p>
+     * @return  the call in flight the caller joined, null if the new call was registered
+     */
+    private Flight<V> join(K key, Flight<V> mine)
+    {
+        while(true)
+        {
+            Flight<V> existing = calls.putIfAbsent(key, mine);
+            if(existing == null || existing.join()) return existing;
+            calls.remove(key, existing);
+        }
+    }
+
+    /**
+     * @return  a future of its own for a caller of the call, the call is cancelled when the last caller cancels it
+     */
+    private CompletableFuture<V> participate(final K key, final Flight<V> flight, UnaryOperator<V> copy)
+    {
+        final CompletableFuture<V> mine = flight.result.thenApply(copy);
+        mine.whenComplete((value, error) -> {
+            if(mine.isCancelled() && flight.leave())
+            {
+                calls.remove(key, flight);
+                flight.upstream.cancel(true);
+            }
+        });
+        return mine;
+    }
+
+    private V share(V value)
+    {
+        return shareCopy == null || value == null ? value : shareCopy.apply(value);
+    }
+
+    /**
+     * @return  the counters of this call group
+     */
+    CoalescingStats getStats()
+    {
+        return new CoalescingStats(executed.sum(), collapsed.sum());
+    }
+
+    /**
+     * A call in flight and the number of its callers that have not withdrawn.
+     */
+    private static final class Flight<V>
+    {
+        final CompletableFuture<V> result = new CompletableFuture<V>();
+        //the future of an asynchronous call, set before any caller can withdraw
+        volatile CompletableFuture<V> upstream;
+        private int participants = 1;
+        private boolean abandoned;
+
+        /**
+         * @return  false if every caller withdrew, the call must not be joined anymore
+         */
+        synchronized boolean join()
+        {
+            if(abandoned) return false;
+            participants++;
+            return true;
+        }
+
+        /**
+         * @return  true if the last caller withdrew before the call completed
+         */
+        synchronized boolean leave()
+        {
+            if(--participants > 0 || result.isDone() || upstream == null) return false;
+            abandoned = true;
+            return true;
+        }
+    }
+}
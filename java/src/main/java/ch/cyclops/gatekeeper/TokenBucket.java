@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which calls are started. Permits are added at a fixed rate up to the burst size, a caller finding
+ * no permit reserves the next one and sleeps until it is due.
+ */
+final class TokenBucket
+{
+    private final double permitsPerNano;
+    private final double burst;
+    private double permits;
+    private long refilledAt;
+
+    /**
+     * @param permitsPerSecond  the sustained rate
+     * @param burst             the number of permits that can be taken at once after an idle period
+     */
+    TokenBucket(double permitsPerSecond, int burst)
+    {
+        if(permitsPerSecond <= 0) throw new IllegalArgumentException("permitsPerSecond must be positive: " + permitsPerSecond);
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.permits = this.burst;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Takes a permit, waiting until one is available.
+     * <p>
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    void acquire() throws InterruptedException
+    {
+        long wait;
+        synchronized (this)
+        {
+            long now = System.nanoTime();
+            permits = Math.min(burst, permits + (now - refilledAt) * permitsPerNano);
+            refilledAt = now;
+            permits -= 1;
+            if(permits >= 0) return;
+            wait = (long) (-permits / permitsPerNano);
+        }
+        TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
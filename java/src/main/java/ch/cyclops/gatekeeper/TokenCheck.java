@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * A single token validation request, either against a user-id or against a service-key. Two checks are equal if they
+ * would result in the same call to Gatekeeper.
+ */
+public final class TokenCheck
+{
+    private final String token;
+    private final int userId;
+    private final String serviceKey;
+
+    private TokenCheck(String token, int userId, String serviceKey)
+    {
+        if(token == null) throw new IllegalArgumentException("token must not be null");
+        this.token = token;
+        this.userId = userId;
+        this.serviceKey = serviceKey;
+    }
+
+    /**
+     * @param token     the token to validate
+     * @param userId    the user-id the token must belong to
+     * @return  a check equivalent to GKDriver.validateToken(token, userId)
+     */
+    public static TokenCheck forUser(String token, int userId)
+    {
+        return new TokenCheck(token, userId, null);
+    }
+
+    /**
+     * @param token         the token to validate
+     * @param serviceKey    the service-key the token must be authorized for
+     * @return  a check equivalent to GKDriver.validateToken(token, serviceKey)
+     */
+    public static TokenCheck forService(String token, String serviceKey)
+    {
+        if(serviceKey == null) throw new IllegalArgumentException("serviceKey must not be null");
+        return new TokenCheck(token, -1, serviceKey);
+    }
+
+    public String getToken()
+    {
+        return token;
+    }
+
+    /**
+     * @return  the user-id, -1 for a service check
+     */
+    public int getUserId()
+    {
+        return userId;
+    }
+
+    /**
+     * @return  the service-key, null for a user check
+     */
+    public String getServiceKey()
+    {
+        return serviceKey;
+    }
+
+    public boolean isServiceCheck()
+    {
+        return serviceKey != null;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o) return true;
+        if(!(o instanceof TokenCheck)) return false;
+        TokenCheck other = (TokenCheck) o;
+        return userId == other.userId && token.equals(other.token)
+                && (serviceKey == null ? other.serviceKey == null : serviceKey.equals(other.serviceKey));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int h = token.hashCode();
+        h = 31 * h + userId;
+        return 31 * h + (serviceKey == null ? 0 : serviceKey.hashCode());
+    }
+
+    @Override
+    public String toString()
+    {
+        return isServiceCheck() ? "token check against service-key " + serviceKey : "token check against user-id " + userId;
+    }
+}
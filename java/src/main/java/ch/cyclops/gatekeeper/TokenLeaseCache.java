@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Leases the tokens issued to users by generateToken, so that repeated calls with the same credentials reuse one
+ * token instead of minting a new one each time. A lease is held per user-id and bound to a salted SHA-256 hash of the
+ * credentials, the password itself is never kept. A lease is handed out until the expiry margin before the token
+ * lifetime ends; once it enters the renewal window the next caller still gets the current token while a new one is
+ * minted in the background. At most one token is minted per user-id and credentials at any time.
+ */
+class TokenLeaseCache
+{
+    private final ExpiringLruCache<Integer, Lease> leases;
+    private final SingleFlight<Credentials, String> minting = new SingleFlight<Credentials, String>();
+    private final BiFunction<Integer, String, CompletableFuture<String>> source;
+    private final long usableMillis;
+    private final long renewAheadMillis;
+    private final byte[] salt = new byte[16];
+
+    /**
+     * @param maxEntries        the number of users whose token is leased
+     * @param lifetimeMillis    how long an issued token is valid on the server
+     * @param marginMillis      how long before the end of its lifetime a token is no longer handed out
+     * @param renewAheadMillis  how long before it is no longer handed out a token is renewed in the background
+     * @param source            mints a token, the future completes with null if the credentials are rejected
+     */
+    TokenLeaseCache(int maxEntries, long lifetimeMillis, long marginMillis, long renewAheadMillis,
+                    BiFunction<Integer, String, CompletableFuture<String>> source)
+    {
+        this.leases = new ExpiringLruCache<Integer, Lease>(maxEntries);
+        this.usableMillis = lifetimeMillis - marginMillis;
+        this.renewAheadMillis = Math.min(renewAheadMillis, usableMillis);
+        this.source = source;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * @return  future completed with the leased token, or with null if Gatekeeper rejected the credentials
+     */
+    CompletableFuture<String> getAsync(int userId, String password)
+    {
+        Credentials credentials = new Credentials(userId, hash(userId, password));
+        Lease lease = leases.get(userId);
+        if(lease != null && MessageDigest.isEqual(lease.credentials.hash, credentials.hash))
+        {
+            if(System.nanoTime() - lease.renewAt >= 0) mint(credentials, password);
+            return CompletableFuture.completedFuture(lease.token);
+        }
+        return mint(credentials, password);
+    }
+
+    private CompletableFuture<String> mint(final Credentials credentials, final String password)
+    {
+        return minting.executeAsync(credentials, () -> source.apply(credentials.userId, password).thenApply(token -> {
+            if(token != null)
+            {
+                long renewAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(usableMillis - renewAheadMillis);
+                leases.put(credentials.userId, new Lease(credentials, token, renewAt), usableMillis);
+            }
+            return token;
+        }));
+    }
+
+    /**
+     * Drops the lease of a user, for instance after the password was changed or the account removed.
+     */
+    void invalidate(int userId)
+    {
+        leases.invalidate(userId);
+    }
+
+    void invalidateAll()
+    {
+        leases.invalidateAll();
+    }
+
+    CacheStats getStats()
+    {
+        return leases.getStats();
+    }
+
+    private byte[] hash(int userId, String password)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(Integer.toString(userId).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static final class Credentials
+    {
+        final int userId;
+        final byte[] hash;
+
+        Credentials(int userId, byte[] hash)
+        {
+            this.userId = userId;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this == o) return true;
+            if(!(o instanceof Credentials)) return false;
+            Credentials other = (Credentials) o;
+            return userId == other.userId && MessageDigest.isEqual(hash, other.hash);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * userId + Arrays.hashCode(hash);
+        }
+    }
+
+    private static final class Lease
+    {
+        final Credentials credentials;
+        final String token;
+        final long renewAt;
+
+        Lease(Credentials credentials, String token, long renewAt)
+        {
+            this.credentials = credentials;
+            this.token = token;
+            this.renewAt = renewAt;
+        }
+    }
+}
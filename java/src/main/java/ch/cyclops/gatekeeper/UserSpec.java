@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * A user account to register, see GKDriver.registerUsers. Two specs are equal if they have the same username.
+ */
+public final class UserSpec
+{
+    private final String username;
+    private final String password;
+    private final boolean admin;
+    private final String accessList;
+
+    /**
+     * @param username      the desired username
+     * @param password      the account password
+     * @param admin         true if the user is an admin-user
+     * @param accessList    comma separated list of services the user has access to, ALL grants access to everything
+     */
+    public UserSpec(String username, String password, boolean admin, String accessList)
+    {
+        if(username == null) throw new IllegalArgumentException("username must not be null");
+        this.username = username;
+        this.password = password;
+        this.admin = admin;
+        this.accessList = accessList;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public String getPassword()
+    {
+        return password;
+    }
+
+    public boolean isAdmin()
+    {
+        return admin;
+    }
+
+    public String getAccessList()
+    {
+        return accessList;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return this == o || (o instanceof UserSpec && username.equals(((UserSpec) o).username));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return username.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "user " + username;
+    }
+}
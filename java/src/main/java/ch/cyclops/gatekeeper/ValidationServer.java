@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local http server answering token checks for processes that cannot use the driver directly. All requests are
+ * served by one GKDriver, so every client on the host shares its caches, coalescing and connection pool. Connections
+ * are kept alive between requests, requests are handled by a bounded worker pool and once its queue is full further
+ * requests are answered with 503 right away, so that the thread dispatching the connections never waits on Gatekeeper.
+ * <p>
+ * Responses are only sent without delay if TCP_NODELAY is set for the http server of the JVM, with the system property
+ * sun.net.httpserver.nodelay=true, which the serve mode of Main does.
+ * <p>
+ * Endpoints, credentials are taken from the same headers Gatekeeper uses, or from the query string:
+ * <pre>
+ * GET  /validate          X-Auth-Token and X-Auth-Uid or X-Auth-Service-Key, 200 if valid, 401 if not
+ * GET  /auth              X-Auth-Uid and X-Auth-Password, 202 if authenticated, 401 if not
+ * POST /validate/batch    {"checks": [{"token": "..", "uid": 1}, {"token": "..", "serviceKey": ".."}]},
+ *                         answered with {"results": [{"valid": true, "stale": false}, {"error": ".."}]} in the same order
+ * </pre>
+ * 503 is returned when Gatekeeper could not be asked or the server is overloaded, 400 for malformed requests.
+ */
+public class ValidationServer implements AutoCloseable
+{
+    private static final int MAX_BATCH_BODY = 1 << 20;
+
+    private final GKDriver driver;
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    private final Logger logger;
+
+    /**
+     * Starts the server with the gatekeeper.sidecar.* settings of the configuration.
+     * <p>
+     * @param driver    the driver answering the checks, it is not closed with the server
+     * @param config    the driver configuration
+     * @throws IOException  if the server socket cannot be bound
+     */
+    public ValidationServer(GKDriver driver, Configuration config) throws IOException
+    {
+        this(driver, config.getString("gatekeeper.sidecar.host", "127.0.0.1"), config.getInt("gatekeeper.sidecar.port", 8600),
+                config.getInt("gatekeeper.sidecar.workers", 16), config.getInt("gatekeeper.sidecar.queue", 256),
+                config.getInt("gatekeeper.sidecar.backlog", 128));
+    }
+
+    /**
+     * Starts the server.
+     * <p>
+     * @param driver    the driver answering the checks, it is not closed with the server
+     * @param host      the address to listen on, a loopback address keeps the server local to the host
+     * @param port      the port to listen on, 0 for an ephemeral port
+     * @param workers   the number of worker threads
+     * @param queue     the number of requests waiting for a worker
+     * @param backlog   the accept backlog of the server socket
+     * @throws IOException  if the server socket cannot be bound
+     */
+    public ValidationServer(GKDriver driver, String host, int port, int workers, int queue, int backlog) throws IOException
+    {
+        this.driver = driver;
+        this.logger = Logger.getLogger("gatekeeper-driver.ValidationServer");
+        final AtomicInteger threads = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), r -> {
+            Thread t = new Thread(r, "gatekeeper-sidecar-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(host, port), backlog);
+        //the handlers run on the dispatcher thread of the server and only hand the exchange to a worker
+        server.setExecutor(null);
+        server.createContext("/validate", offload(this::handleValidate));
+        server.createContext("/auth", offload(this::handleAuth));
+        server.start();
+        logger.info("validation server listening on " + server.getAddress() + " with " + workers + " workers.");
+    }
+
+    /**
+     * @return  the address the server listens on
+     */
+    public InetSocketAddress getAddress()
+    {
+        return server.getAddress();
+    }
+
+    /**
+     * Runs a handler on the worker pool, a request that finds the pool and its queue busy is answered with 503.
+     */
+    private HttpHandler offload(final HttpHandler handler)
+    {
+        return exchange -> {
+            try
+            {
+                workers.execute(() -> {
+                    try
+                    {
+                        handler.handle(exchange);
+                    }
+                    catch (IOException ex)
+                    {
+                        logger.debug("could not answer " + exchange.getRequestURI() + ": " + ex.getMessage());
+                    }
+                    finally
+                    {
+                        exchange.close();
+                    }
+                });
+            }
+            catch (RejectedExecutionException ex)
+            {
+                try
+                {
+                    respond(exchange, 503, error("validation server overloaded"));
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        };
+    }
+
+    private void handleValidate(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            String path = exchange.getRequestURI().getPath();
+            if(path.equals("/validate/batch") || path.equals("/validate/batch/"))
+            {
+                if(!exchange.getRequestMethod().equals("POST")) respond(exchange, 405, error("POST expected"));
+                else handleBatch(exchange);
+                return;
+            }
+            if(!path.equals("/validate") && !path.equals("/validate/"))
+            {
+                respond(exchange, 404, error("unknown endpoint"));
+                return;
+            }
+            Map<String, String> query = query(exchange);
+            String token = param(exchange, query, "X-Auth-Token", "token");
+            String uid = param(exchange, query, "X-Auth-Uid", "uid");
+            String serviceKey = param(exchange, query, "X-Auth-Service-Key", "serviceKey");
+            if(token == null || (uid == null) == (serviceKey == null))
+            {
+                respond(exchange, 400, error("a token and either a uid or a serviceKey are required"));
+                return;
+            }
+            TokenCheck check = serviceKey != null ? TokenCheck.forService(token, serviceKey) : TokenCheck.forUser(token, Integer.parseInt(uid));
+            GKDecision decision = driver.validate(check);
+            respond(exchange, decision.isValid() ? 200 : 401, decision(decision));
+        }
+        catch (NumberFormatException ex)
+        {
+            respond(exchange, 400, error("uid must be a number"));
+        }
+        catch (IOException ex)
+        {
+            respond(exchange, 503, error("gatekeeper unavailable: " + ex.getMessage()));
+        }
+        catch (Exception ex)
+        {
+            //the details stay in the log, clients of the sidecar are not meant to see driver internals
+            logger.error("validation request failed", ex);
+            respond(exchange, 500, error("internal error"));
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange) throws Exception
+    {
+        JSONArray items;
+        ArrayList<TokenCheck> checks = new ArrayList<TokenCheck>();
+        try
+        {
+            items = new JSONObject(body(exchange)).getJSONArray("checks");
+            for(int i=0; i<items.length(); i++)
+            {
+                JSONObject item = items.getJSONObject(i);
+                checks.add(item.has("serviceKey") ? TokenCheck.forService(item.getString("token"), item.getString("serviceKey"))
+                        : TokenCheck.forUser(item.getString("token"), item.getInt("uid")));
+            }
+        }
+        catch (JSONException | IllegalArgumentException ex)
+        {
+            respond(exchange, 400, error("malformed batch: " + ex.getMessage()));
+            return;
+        }
+
+        Map<TokenCheck, GKDecision> decisions = driver.validateTokenDecisions(checks);
+        JSONArray results = new JSONArray();
+        for(TokenCheck check : checks)
+        {
+            GKDecision decision = decisions.get(check);
+            results.put(decision != null ? decision(decision) : error("not validated"));
+        }
+        respond(exchange, 200, new JSONObject().put("results", results));
+    }
+
+    private void handleAuth(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            Map<String, String> query = query(exchange);
+            String uid = param(exchange, query, "X-Auth-Uid", "uid");
+            String password = exchange.getRequestHeaders().getFirst("X-Auth-Password");
+            if(uid == null || password == null)
+            {
+                respond(exchange, 400, error("X-Auth-Uid and X-Auth-Password headers are required"));
+                return;
+            }
+            boolean authenticated = driver.simpleAuthentication(Integer.parseInt(uid), password);
+            respond(exchange, authenticated ? 202 : 401, new JSONObject().put("authenticated", authenticated));
+        }
+        catch (NumberFormatException ex)
+        {
+            respond(exchange, 400, error("uid must be a number"));
+        }
+        catch (IOException ex)
+        {
+            respond(exchange, 503, error("gatekeeper unavailable: " + ex.getMessage()));
+        }
+        catch (Exception ex)
+        {
+            //the details stay in the log, clients of the sidecar are not meant to see driver internals
+            logger.error("authentication request failed", ex);
+            respond(exchange, 500, error("internal error"));
+        }
+    }
+
+    private static JSONObject decision(GKDecision decision)
+    {
+        JSONObject result = new JSONObject().put("valid", decision.isValid()).put("stale", decision.isStale());
+        if(decision.isStale()) result.put("confirmedAt", decision.getConfirmedAt());
+        return result;
+    }
+
+    private static JSONObject error(String message)
+    {
+        return new JSONObject().put("error", message);
+    }
+
+    /**
+     * Reads a parameter from the request header, falling back to the query string.
+     */
+    private static String param(HttpExchange exchange, Map<String, String> query, String header, String name)
+    {
+        Headers headers = exchange.getRequestHeaders();
+        String value = headers.getFirst(header);
+        return value != null ? value : query.get(name);
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws IOException
+    {
+        HashMap<String, String> result = new HashMap<String, String>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if(raw == null) return result;
+        for(String pair : raw.split("&"))
+        {
+            int eq = pair.indexOf('=');
+            if(eq <= 0) continue;
+            result.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return result;
+    }
+
+    private static String body(HttpExchange exchange) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = exchange.getRequestBody())
+        {
+            int read;
+            while((read = in.read(buffer)) != -1)
+            {
+                body.write(buffer, 0, read);
+                if(body.size() > MAX_BATCH_BODY) throw new IllegalArgumentException("request body too large");
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends a json response with a fixed length, so that the connection can be reused for the next request.
+     */
+    private static void respond(HttpExchange exchange, int code, JSONObject body) throws IOException
+    {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stops accepting requests, requests in progress get up to a second to complete.
+     */
+    @Override
+    public void close()
+    {
+        server.stop(1);
+        workers.shutdown();
+        logger.info("validation server stopped.");
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk copy of the warm state of a driver, so that a restarted driver does not start with empty caches. The file
+ * is written and read through memory-mapped buffers. Its layout is
+ * <pre>
+ * header:  magic "GKWS" (int), version (short), reserved (short), written at (long, epoch ms),
+ *          payload length (int), CRC32 of the payload (int)
+ * payload: sections of tag (byte), length (int), records
+ * </pre>
+ * Every record carries the wall clock time at which it expires, expired records are dropped on load. Sections with
+ * an unknown tag are skipped, a file with another version, a bad checksum or older than the maximum age is ignored as
+ * a whole. Strings are stored as UTF-8 prefixed by their length.
+ * <p>
+ * The snapshot holds tokens, the file is created readable by its owner only. It is not saved on a file system that
+ * cannot restrict its permissions. The tokens are kept as they are, not hashed, since the restored caches are keyed
+ * by the tokens themselves.
+ */
+final class WarmSnapshot
+{
+    static final int MAGIC = 0x474B5753;
+    static final short VERSION = 1;
+    private static final int HEADER = 24;
+
+    private static final byte ADMIN_TOKEN = 1;
+    private static final byte DIRECTORY = 2;
+    private static final byte TOKEN_DECISIONS = 3;
+    private static final byte SERVICE_DECISIONS = 4;
+
+    /**
+     * Receives the state being saved or restored. Expiry times are wall clock times in milliseconds.
+     */
+    interface Sink
+    {
+        void adminToken(String token, long expiresAt);
+
+        void directory(List<GKUser> users, List<GKService> services, long createdAt);
+
+        void tokenDecision(String token, int userId, boolean valid, long expiresAt);
+
+        void serviceDecision(String serviceKey, String token, boolean granted, long expiresAt);
+    }
+
+    private final Path file;
+    private final long maxAgeMillis;
+    private final Logger logger;
+
+    /**
+     * @param file          the snapshot file
+     * @param maxAgeMillis  age above which a snapshot is not loaded anymore
+     * @param logger        the driver logger
+     */
+    WarmSnapshot(Path file, long maxAgeMillis, Logger logger)
+    {
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+        this.logger = logger;
+    }
+
+    Path getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Writes the state handed over by the exporter. The file is written under a temporary name and then moved over
+     * the previous snapshot, a reader never sees a partially written file.
+     * <p>
+     * @param exporter  hands the state to save to the given sink
+     * @return  the size of the snapshot in bytes
+     * @throws IOException  if the file could not be written
+     */
+    long save(Consumer<Sink> exporter) throws IOException
+    {
+        Encoder encoder = new Encoder();
+        try
+        {
+            exporter.accept(encoder);
+        }
+        catch (UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+        byte[] payload = encoder.payload();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        Path parent = file.toAbsolutePath().getParent();
+        if(parent != null) Files.createDirectories(parent);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        createOwnerOnly(temp);
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + payload.length);
+            out.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(System.currentTimeMillis())
+                    .putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            out.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return HEADER + payload.length;
+    }
+
+    /**
+     * Hands the records of the snapshot that are still valid to the sink.
+     * <p>
+     * @param sink  receives the restored state
+     * @return  the number of records handed to the sink, -1 if there is no snapshot or it is too old
+     * @throws IOException  if the file could not be read or is damaged
+     */
+    int load(Sink sink) throws IOException
+    {
+        if(!Files.isRegularFile(file)) return -1;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if(size < HEADER) throw new IOException("snapshot " + file + " is truncated");
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(in.getInt() != MAGIC) throw new IOException(file + " is not a gatekeeper snapshot");
+            short version = in.getShort();
+            if(version != VERSION)
+            {
+                logger.info("ignoring snapshot " + file + " of version " + version + ", expected " + VERSION);
+                return -1;
+            }
+            in.getShort();
+            long writtenAt = in.getLong();
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if(length != size - HEADER) throw new IOException("snapshot " + file + " is truncated");
+            ByteBuffer payload = in.slice();
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if((int) crc.getValue() != checksum) throw new IOException("snapshot " + file + " fails its checksum");
+
+            long now = System.currentTimeMillis();
+            if(now - writtenAt > maxAgeMillis)
+            {
+                logger.info("ignoring snapshot " + file + " written " + (now - writtenAt) + "ms ago");
+                return -1;
+            }
+            return decode(payload, sink, now);
+        }
+        catch (BufferUnderflowException ex)
+        {
+            throw new IOException("snapshot " + file + " is malformed");
+        }
+    }
+
+    private static int decode(ByteBuffer payload, Sink sink, long now) throws IOException
+    {
+        int restored = 0;
+        while(payload.hasRemaining())
+        {
+            byte tag = payload.get();
+            int length = payload.getInt();
+            if(length < 0 || length > payload.remaining()) throw new IOException("snapshot section " + tag + " is malformed");
+            ByteBuffer section = payload.slice();
+            section.limit(length);
+            payload.position(payload.position() + length);
+            switch (tag)
+            {
+                case ADMIN_TOKEN:
+                    long tokenExpiry = section.getLong();
+                    String adminToken = readString(section);
+                    if(tokenExpiry > now)
+                    {
+                        sink.adminToken(adminToken, tokenExpiry);
+                        restored++;
+                    }
+                    break;
+                case DIRECTORY:
+                    long createdAt = section.getLong();
+                    ArrayList<GKUser> users = new ArrayList<GKUser>();
+                    for(int i=section.getInt(); i>0; i--)
+                    {
+                        int id = section.getInt();
+                        users.add(new GKUser(readString(section), id));
+                    }
+                    ArrayList<GKService> services = new ArrayList<GKService>();
+                    for(int i=section.getInt(); i>0; i--)
+                    {
+                        int id = section.getInt();
+                        services.add(new GKService(readString(section), readString(section), id));
+                    }
+                    sink.directory(users, services, createdAt);
+                    restored += users.size() + services.size();
+                    break;
+                case TOKEN_DECISIONS:
+                    while(section.hasRemaining())
+                    {
+                        long expiresAt = section.getLong();
+                        int userId = section.getInt();
+                        boolean valid = section.get() != 0;
+                        String token = readString(section);
+                        if(expiresAt <= now) continue;
+                        sink.tokenDecision(token, userId, valid, expiresAt);
+                        restored++;
+                    }
+                    break;
+                case SERVICE_DECISIONS:
+                    while(section.hasRemaining())
+                    {
+                        long expiresAt = section.getLong();
+                        boolean granted = section.get() != 0;
+                        String serviceKey = readString(section);
+                        String token = readString(section);
+                        if(expiresAt <= now) continue;
+                        sink.serviceDecision(serviceKey, token, granted, expiresAt);
+                        restored++;
+                    }
+                    break;
+                default:
+                    //written by a newer driver, skipped
+            }
+        }
+        return restored;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException
+    {
+        int length = in.getInt();
+        if(length < 0 || length > in.remaining()) throw new IOException("snapshot string is malformed");
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates an empty file readable by its owner only, the permissions are set as the file is created so that the
+     * tokens are never exposed. A left over file of an interrupted save is replaced.
+     * <p>
+     * @throws IOException  if the file could not be created or the file system cannot restrict its permissions
+     */
+    private static void createOwnerOnly(Path path) throws IOException
+    {
+        Files.deleteIfExists(path);
+        try
+        {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            throw new IOException("cannot restrict the permissions of " + path + ", the snapshot is not saved", ex);
+        }
+    }
+
+    /**
+     * Encodes every section into its own buffer, the sections are concatenated once complete.
+     */
+    private static final class Encoder implements Sink
+    {
+        private final Section admin = new Section(ADMIN_TOKEN);
+        private final Section directory = new Section(DIRECTORY);
+        private final Section tokens = new Section(TOKEN_DECISIONS);
+        private final Section services = new Section(SERVICE_DECISIONS);
+
+        @Override
+        public void adminToken(String token, long expiresAt)
+        {
+            try
+            {
+                admin.out.writeLong(expiresAt);
+                writeString(admin.out, token);
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void directory(List<GKUser> users, List<GKService> serviceList, long createdAt)
+        {
+            try
+            {
+                directory.out.writeLong(createdAt);
+                directory.out.writeInt(users.size());
+                for(GKUser user : users)
+                {
+                    directory.out.writeInt(user.getId());
+                    writeString(directory.out, user.getUsername());
+                }
+                directory.out.writeInt(serviceList.size());
+                for(GKService service : serviceList)
+                {
+                    directory.out.writeInt(service.getId());
+                    writeString(directory.out, service.getShortName());
+                    writeString(directory.out, service.getKey());
+                }
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void tokenDecision(String token, int userId, boolean valid, long expiresAt)
+        {
+            try
+            {
+                tokens.out.writeLong(expiresAt);
+                tokens.out.writeInt(userId);
+                tokens.out.writeBoolean(valid);
+                writeString(tokens.out, token);
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void serviceDecision(String serviceKey, String token, boolean granted, long expiresAt)
+        {
+            try
+            {
+                services.out.writeLong(expiresAt);
+                services.out.writeBoolean(granted);
+                writeString(services.out, serviceKey);
+                writeString(services.out, token);
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        byte[] payload() throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for(Section section : new Section[] {admin, directory, tokens, services})
+            {
+                if(section.bytes.size() == 0) continue;
+                out.writeByte(section.tag);
+                out.writeInt(section.bytes.size());
+                section.bytes.writeTo(out);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static final class Section
+    {
+        final byte tag;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        Section(byte tag)
+        {
+            this.tag = tag;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+/**
+ * Immutable outcome of GKDriver.warmUp, the time taken by every phase in milliseconds.
+ */
+public final class WarmUpReport
+{
+    private final long dnsMillis;
+    private final long connectMillis;
+    private final int connections;
+    private final long adminTokenMillis;
+    private final long parsingMillis;
+    private final boolean complete;
+
+    public WarmUpReport(long dnsMillis, long connectMillis, int connections, long adminTokenMillis, long parsingMillis, boolean complete)
+    {
+        this.dnsMillis = dnsMillis;
+        this.connectMillis = connectMillis;
+        this.connections = connections;
+        this.adminTokenMillis = adminTokenMillis;
+        this.parsingMillis = parsingMillis;
+        this.complete = complete;
+    }
+
+    /**
+     * @return  time taken to resolve the host names of all endpoints
+     */
+    public long getDnsMillis()
+    {
+        return dnsMillis;
+    }
+
+    /**
+     * @return  time taken to open the pooled connections
+     */
+    public long getConnectMillis()
+    {
+        return connectMillis;
+    }
+
+    /**
+     * @return  number of connections that were opened and returned to the pool
+     */
+    public int getConnections()
+    {
+        return connections;
+    }
+
+    public long getAdminTokenMillis()
+    {
+        return adminTokenMillis;
+    }
+
+    /**
+     * @return  time taken to load and run the response parsers once
+     */
+    public long getParsingMillis()
+    {
+        return parsingMillis;
+    }
+
+    public long getTotalMillis()
+    {
+        return dnsMillis + connectMillis + adminTokenMillis + parsingMillis;
+    }
+
+    /**
+     * @return  true if every phase succeeded, the driver log tells which one failed otherwise
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "dns=" + dnsMillis + "ms, connect=" + connectMillis + "ms (" + connections + " connections), adminToken="
+                + adminTokenMillis + "ms, parsing=" + parsingMillis + "ms, total=" + getTotalMillis() + "ms, complete=" + complete;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class AdminTokenManagerTest
+{
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void stopTimer()
+    {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Hands out the queued outcomes, a null outcome fails the generation.
+     */
+    private static final class Source implements Supplier<CompletableFuture<String>>
+    {
+        final LinkedBlockingQueue<String> outcomes = new LinkedBlockingQueue<String>();
+        final LinkedBlockingQueue<String> generated = new LinkedBlockingQueue<String>();
+
+        Source(String... outcomes)
+        {
+            for(String outcome : outcomes) this.outcomes.add(outcome);
+        }
+
+        @Override
+        public CompletableFuture<String> get()
+        {
+            String outcome = outcomes.poll();
+            CompletableFuture<String> token = new CompletableFuture<String>();
+            if(outcome == null || outcome.equals("fail")) token.completeExceptionally(new IOException("gatekeeper unreachable"));
+            else token.complete(outcome);
+            generated.add(outcome == null ? "fail" : outcome);
+            return token;
+        }
+    }
+
+    @Test
+    public void sharesTheCurrentToken() throws Exception
+    {
+        Source source = new Source("t1");
+        AdminTokenManager tokens = new AdminTokenManager(source, 60000, 0, null, Logger.getLogger("gatekeeper-driver.Test"));
+        assertEquals("t1", tokens.getToken());
+        assertEquals("t1", tokens.getToken());
+        assertEquals(1, source.generated.size());
+    }
+
+    @Test
+    public void replacesARejectedToken() throws Exception
+    {
+        Source source = new Source("t1", "t2");
+        AdminTokenManager tokens = new AdminTokenManager(source, 60000, 0, null, Logger.getLogger("gatekeeper-driver.Test"));
+        assertEquals("t1", tokens.getToken());
+        assertEquals("t2", tokens.refresh("t1"));
+        assertEquals("t2", tokens.refresh("t1"));
+        assertEquals(2, source.generated.size());
+    }
+
+    @Test
+    public void keepsTheTokenAndRetriesAFailedRenewal() throws Exception
+    {
+        Source source = new Source("t1", "fail", "t2");
+        AdminTokenManager tokens = new AdminTokenManager(source, 400, 300, timer, Logger.getLogger("gatekeeper-driver.Test"));
+        assertEquals("t1", tokens.getToken());
+        assertEquals("t1", source.generated.take());
+
+        assertEquals("fail", source.generated.poll(1, TimeUnit.SECONDS));
+        assertEquals("the failed renewal keeps the valid token", "t1", tokens.currentToken());
+
+        assertEquals("t2", source.generated.poll(1, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        assertEquals("t2", tokens.currentToken());
+        tokens.close();
+    }
+
+    @Test
+    public void stopsRenewingOnceClosed() throws Exception
+    {
+        Source source = new Source("t1", "t2");
+        AdminTokenManager tokens = new AdminTokenManager(source, 200, 150, timer, Logger.getLogger("gatekeeper-driver.Test"));
+        assertEquals("t1", tokens.getToken());
+        tokens.close();
+        Thread.sleep(150);
+        assertEquals(1, source.generated.size());
+        assertFalse("the timer belongs to the driver", timer.isShutdown());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BatchValidationTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+    private final List<GKDriver> drivers = new ArrayList<GKDriver>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * Accepts the tokens starting with "good", stalls on "slow" and drops the connection on "broken".
+     */
+    @Before
+    public void startServer() throws Exception
+    {
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException
+            {
+                String token = request.getPath().substring("/token/validate/".length());
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try
+                {
+                    Thread.sleep(20);
+                    if(token.startsWith("slow")) return new MockResponse().setResponseCode(200).setHeadersDelay(3, TimeUnit.SECONDS);
+                    if(token.startsWith("broken")) return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+                    return new MockResponse().setResponseCode(token.startsWith("good") ? 200 : 401);
+                }
+                finally
+                {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stop() throws Exception
+    {
+        for(GKDriver driver : drivers) driver.close();
+        server.shutdown();
+    }
+
+    private GKDriver driver(String... settings) throws Exception
+    {
+        GKDriver driver = TestDrivers.create(server, folder, settings);
+        drivers.add(driver);
+        return driver;
+    }
+
+    @Test
+    public void validatesEveryDistinctCheckOnce() throws Exception
+    {
+        GKDriver driver = driver();
+        Map<TokenCheck, Boolean> result = driver.validateTokens(Arrays.asList(TokenCheck.forUser("good-a", 7),
+                TokenCheck.forUser("bad-b", 7), TokenCheck.forUser("good-a", 7), TokenCheck.forService("good-c", "billing-key")));
+
+        assertEquals(3, result.size());
+        assertEquals(Boolean.TRUE, result.get(TokenCheck.forUser("good-a", 7)));
+        assertEquals(Boolean.FALSE, result.get(TokenCheck.forUser("bad-b", 7)));
+        assertEquals(Boolean.TRUE, result.get(TokenCheck.forService("good-c", "billing-key")));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void boundsTheRequestsInFlight() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.batch.maxInFlight = 2");
+        List<TokenCheck> checks = new ArrayList<TokenCheck>();
+        for(int i=0; i<12; i++) checks.add(TokenCheck.forUser("good-" + i, 7));
+
+        assertEquals(12, driver.validateTokens(checks).size());
+        assertTrue("at most 2 requests in flight, saw " + maxInFlight.get(), maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void leavesOutChecksThatFailedOrMissedTheDeadline() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.retry.maxAttempts = 1");
+        long start = System.nanoTime();
+        Map<TokenCheck, Boolean> result = driver.validateTokens(Arrays.asList(TokenCheck.forUser("good-a", 7),
+                TokenCheck.forUser("slow-b", 7), TokenCheck.forUser("broken-c", 7)), 500);
+
+        assertTrue("the batch ends at its deadline", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(1, result.size());
+        assertEquals(Boolean.TRUE, result.get(TokenCheck.forUser("good-a", 7)));
+    }
+}
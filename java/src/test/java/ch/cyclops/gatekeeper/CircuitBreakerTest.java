@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest
+{
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static CircuitBreaker breaker(long openMillis, int probes)
+    {
+        return new CircuitBreaker("test", 10, 4, 50, 80, 100, openMillis, probes, Logger.getLogger("gatekeeper-driver.Test"));
+    }
+
+    private static void call(CircuitBreaker breaker, boolean failure, long duration)
+    {
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(failure, duration);
+    }
+
+    @Test
+    public void staysClosedBelowTheMinimumNumberOfCalls()
+    {
+        CircuitBreaker breaker = breaker(10000, 1);
+        for(int i=0; i<3; i++) call(breaker, true, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+    }
+
+    @Test
+    public void opensOnTheFailureRateAndRefusesCalls()
+    {
+        CircuitBreaker breaker = breaker(10000, 1);
+        call(breaker, false, FAST);
+        call(breaker, false, FAST);
+        call(breaker, true, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+        call(breaker, true, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.currentState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1, breaker.getRejectedCalls());
+        assertEquals(1, breaker.getTransitionsToOpen());
+    }
+
+    @Test
+    public void opensOnTheSlowCallRate()
+    {
+        CircuitBreaker breaker = breaker(10000, 1);
+        for(int i=0; i<4; i++) call(breaker, false, SLOW);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.currentState());
+    }
+
+    @Test
+    public void clientErrorsAndFastCallsKeepItClosed()
+    {
+        CircuitBreaker breaker = breaker(10000, 1);
+        for(int i=0; i<50; i++) call(breaker, false, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+        assertEquals(0.0, breaker.getFailureRate(), 0.0);
+    }
+
+    @Test
+    public void closesAfterSuccessfulProbes() throws InterruptedException
+    {
+        CircuitBreaker breaker = breaker(20, 2);
+        for(int i=0; i<4; i++) call(breaker, true, FAST);
+        Thread.sleep(40);
+
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.currentState());
+        assertTrue(breaker.tryAcquire());
+        assertFalse("only the configured number of probes is let through", breaker.tryAcquire());
+
+        breaker.onResult(false, FAST);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.currentState());
+        breaker.onResult(false, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+        assertEquals(1, breaker.getTransitionsToClosed());
+    }
+
+    @Test
+    public void reopensOnAFailedProbe() throws InterruptedException
+    {
+        CircuitBreaker breaker = breaker(20, 2);
+        for(int i=0; i<4; i++) call(breaker, true, FAST);
+        Thread.sleep(40);
+
+        call(breaker, true, FAST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.currentState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(2, breaker.getTransitionsToOpen());
+    }
+
+    @Test
+    public void releasedProbesCanBeIssuedAgain() throws InterruptedException
+    {
+        CircuitBreaker breaker = breaker(20, 1);
+        for(int i=0; i<4; i++) call(breaker, true, FAST);
+        Thread.sleep(40);
+
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.release();
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(false, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void stopTimer()
+    {
+        timer.shutdownNow();
+    }
+
+    private ConcurrencyLimiter limiter(int limit, int maxQueue, long queueTimeoutMillis)
+    {
+        return new ConcurrencyLimiter(limit, 1, 10, 2.0, 0.5, 100, maxQueue, queueTimeoutMillis, timer);
+    }
+
+    @Test
+    public void grantsSlotsUpToTheLimit() throws Exception
+    {
+        ConcurrencyLimiter limiter = limiter(2, 0, 100);
+        limiter.acquire(SECOND);
+        limiter.acquire(SECOND);
+        assertEquals(2, limiter.getInFlight());
+        try
+        {
+            limiter.acquire(SECOND);
+            fail("the third call must be refused");
+        }
+        catch (GKLimitExceededException ex)
+        {
+            assertEquals(2, ex.getLimit());
+        }
+        assertEquals(1, limiter.getRejectedCalls());
+
+        limiter.release();
+        limiter.acquire(SECOND);
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void refusesCallsWhenTheQueueIsFull()
+    {
+        ConcurrencyLimiter limiter = limiter(1, 1, 10000);
+        assertTrue(limiter.acquireAsync(SECOND).isDone());
+        CompletableFuture<Void> queued = limiter.acquireAsync(SECOND);
+        assertFalse(queued.isDone());
+        assertEquals(1, limiter.getQueueDepth());
+
+        CompletableFuture<Void> refused = limiter.acquireAsync(SECOND);
+        assertTrue(refused.isCompletedExceptionally());
+        queued.cancel(false);
+    }
+
+    @Test
+    public void handsReleasedSlotsToWaitersInOrder() throws Exception
+    {
+        ConcurrencyLimiter limiter = limiter(1, 2, 10000);
+        limiter.acquire(SECOND);
+        CompletableFuture<Void> first = limiter.acquireAsync(SECOND);
+        CompletableFuture<Void> second = limiter.acquireAsync(SECOND);
+
+        limiter.release();
+        first.get(1, TimeUnit.SECONDS);
+        assertFalse(second.isDone());
+        assertEquals(1, limiter.getInFlight());
+
+        limiter.release();
+        second.get(1, TimeUnit.SECONDS);
+        assertEquals(0, limiter.getQueueDepth());
+    }
+
+    @Test
+    public void expiresWaitsAfterTheQueueTimeout() throws Exception
+    {
+        ConcurrencyLimiter limiter = limiter(1, 2, 20);
+        limiter.acquire(SECOND);
+        try
+        {
+            limiter.acquire(SECOND);
+            fail("the wait must time out");
+        }
+        catch (GKLimitExceededException expected)
+        {
+        }
+        try
+        {
+            limiter.acquireAsync(SECOND).get(1, TimeUnit.SECONDS);
+            fail("the asynchronous wait must time out");
+        }
+        catch (ExecutionException ex)
+        {
+            assertTrue(ex.getCause() instanceof GKLimitExceededException);
+        }
+        //the expiry counts the timeout after completing the wait, on the timer thread
+        timer.submit(() -> { }).get();
+        assertEquals(2, limiter.getTimedOutWaits());
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(0, limiter.getQueueDepth());
+    }
+
+    @Test
+    public void cutsTheLimitOnDroppedCalls() throws Exception
+    {
+        ConcurrencyLimiter limiter = limiter(8, 0, 100);
+        Thread.sleep(2);
+        limiter.acquire(SECOND);
+        limiter.onSample(0, true);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+
+        //calls sent before the cut do not cut again
+        limiter.acquire(SECOND);
+        limiter.onSample(SECOND, true);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void neverGoesBelowTheMinimum() throws Exception
+    {
+        ConcurrencyLimiter limiter = limiter(1, 0, 100);
+        Thread.sleep(2);
+        limiter.acquire(SECOND);
+        limiter.onSample(0, true);
+        assertEquals(1, limiter.getLimit());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CredentialVerifierTest
+{
+    private final CredentialVerifier verifier = new CredentialVerifier(100, 60000, 1000);
+
+    @Test
+    public void verifiesRecordedPasswords()
+    {
+        verifier.record(7, "secret", verifier.generation(7));
+        assertTrue(verifier.verify(7, "secret"));
+        assertFalse(verifier.verify(7, "other"));
+        assertFalse(verifier.verify(8, "secret"));
+    }
+
+    @Test
+    public void forgetsInvalidatedUsers()
+    {
+        verifier.record(7, "secret", verifier.generation(7));
+        verifier.record(8, "secret", verifier.generation(8));
+        verifier.invalidate(7);
+        assertFalse(verifier.verify(7, "secret"));
+        assertTrue(verifier.verify(8, "secret"));
+        verifier.invalidateAll();
+        assertFalse(verifier.verify(8, "secret"));
+    }
+
+    @Test
+    public void doesNotRecordAPasswordInvalidatedDuringTheCheck()
+    {
+        long generation = verifier.generation(7);
+        verifier.invalidate(7);
+        verifier.record(7, "old", generation);
+        assertFalse(verifier.verify(7, "old"));
+
+        generation = verifier.generation(7);
+        verifier.invalidateAll();
+        verifier.record(7, "old", generation);
+        assertFalse(verifier.verify(7, "old"));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EndpointRouterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer first = new MockWebServer();
+    private final MockWebServer second = new MockWebServer();
+    private GKDriver driver;
+
+    @After
+    public void stop() throws Exception
+    {
+        if(driver != null) driver.close();
+        first.shutdown();
+        second.shutdown();
+    }
+
+    private GKDriver driver(String endpoints) throws Exception
+    {
+        File conf = folder.newFile();
+        Files.write(conf.toPath(), Arrays.asList("gatekeeper.endpoints = " + endpoints, "gatekeeper.health.interval = 0",
+                "gatekeeper.hedge.enabled = true", "gatekeeper.hedge.delay = 50"), StandardCharsets.UTF_8);
+        driver = new GKDriver(conf.getPath(), 1, "admin-password");
+        return driver;
+    }
+
+    private static MockResponse slow()
+    {
+        return new MockResponse().setHeadersDelay(300, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void leavesTheLosingHedgeOutOfTheMetrics() throws Exception
+    {
+        first.start();
+        second.start();
+        first.enqueue(slow());
+        second.enqueue(slow());
+        GKDriver driver = driver(first.url("/") + ", " + second.url("/"));
+
+        assertTrue(driver.validateToken("token-a", 7));
+        Thread.sleep(200);
+
+        OperationMetrics metrics = driver.getMetrics().get(GKOperation.VALIDATE_TOKEN_USER);
+        assertEquals(1, metrics.getHedges());
+        assertEquals(2, first.getRequestCount() + second.getRequestCount());
+        assertEquals("the cancelled loser is no i/o error", 0, metrics.getIoErrors());
+        assertEquals("only the winner is timed", 1, metrics.getLatency().getCount());
+        assertTrue(metrics.getLatency().getMaxMicros() >= 300000);
+    }
+
+    @Test
+    public void doesNotHedgeWithASingleEndpoint() throws Exception
+    {
+        first.start();
+        first.enqueue(slow());
+        GKDriver driver = driver(first.url("/").toString());
+
+        assertTrue(driver.validateToken("token-a", 7));
+        assertEquals(0, driver.getMetrics().get(GKOperation.VALIDATE_TOKEN_USER).getHedges());
+        assertEquals(1, first.getRequestCount());
+    }
+}
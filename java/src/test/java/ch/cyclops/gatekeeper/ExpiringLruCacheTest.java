@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class ExpiringLruCacheTest
+{
+    @Test
+    public void returnsLiveEntries()
+    {
+        ExpiringLruCache<String, Integer> cache = new ExpiringLruCache<String, Integer>(10);
+        cache.put("a", 1, 60000);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertNull(cache.get("b"));
+
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(1, stats.getSize());
+    }
+
+    @Test
+    public void dropsExpiredEntries() throws InterruptedException
+    {
+        ExpiringLruCache<String, Integer> cache = new ExpiringLruCache<String, Integer>(10);
+        cache.put("a", 1, 20);
+        Thread.sleep(40);
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getStats().getExpirationCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void ignoresNonPositiveTimeToLive()
+    {
+        ExpiringLruCache<String, Integer> cache = new ExpiringLruCache<String, Integer>(10);
+        cache.put("a", 1, 0);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntry()
+    {
+        ExpiringLruCache<String, Integer> cache = new ExpiringLruCache<String, Integer>(2, 1);
+        cache.put("a", 1, 60000);
+        cache.put("b", 2, 60000);
+        cache.get("a");
+        cache.put("c", 3, 60000);
+
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(3), cache.get("c"));
+        assertEquals(1, cache.getStats().getEvictionCount());
+    }
+
+    @Test
+    public void neverHoldsMoreThanItsCapacity()
+    {
+        ExpiringLruCache<Integer, Integer> cache = new ExpiringLruCache<Integer, Integer>(10, 8);
+        for(int i=0; i<100; i++) cache.put(i, i, 60000);
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void invalidatesSelectedEntries()
+    {
+        ExpiringLruCache<String, Integer> cache = new ExpiringLruCache<String, Integer>(100);
+        for(int i=0; i<10; i++) cache.put("k" + i, i, 60000);
+        cache.invalidate("k0");
+        cache.invalidateIf(key -> key.endsWith("1") || key.endsWith("2"));
+
+        assertNull(cache.get("k0"));
+        assertNull(cache.get("k1"));
+        assertNull(cache.get("k2"));
+        assertEquals(7, cache.size());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void visitsLiveEntriesWithTheirRemainingTime()
+    {
+        ExpiringLruCache<String, Integer> cache = new ExpiringLruCache<String, Integer>(100);
+        cache.put("a", 1, 60000);
+        cache.put("b", 2, 30000);
+        final HashMap<String, Long> seen = new HashMap<String, Long>();
+        cache.forEachLive((key, value, ttl) -> seen.put(key + "=" + value, ttl));
+
+        assertEquals(2, seen.size());
+        assertTrue(seen.get("a=1") > 59000 && seen.get("a=1") <= 60000);
+        assertTrue(seen.get("b=2") > 29000 && seen.get("b=2") <= 30000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyCapacity()
+    {
+        new ExpiringLruCache<String, Integer>(0);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GKAsyncDriverTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+    private final List<GKDriver> drivers = new ArrayList<GKDriver>();
+
+    @Before
+    public void startServer() throws Exception
+    {
+        server.start();
+    }
+
+    @After
+    public void stop() throws Exception
+    {
+        for(GKDriver driver : drivers) driver.close();
+        server.shutdown();
+    }
+
+    private GKDriver driver(String... settings) throws Exception
+    {
+        GKDriver driver = TestDrivers.create(server, folder, settings);
+        drivers.add(driver);
+        return driver;
+    }
+
+    @Test
+    public void validatesTokens() throws Exception
+    {
+        GKAsyncDriver async = new GKAsyncDriver(driver());
+        server.enqueue(new MockResponse().setResponseCode(200));
+        assertTrue(async.validateTokenAsync("token-a", 7).get(2, TimeUnit.SECONDS));
+        server.enqueue(new MockResponse().setResponseCode(401));
+        assertFalse(async.validateTokenAsync("token-b", 7).get(2, TimeUnit.SECONDS));
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("/token/validate/token-a", request.getPath());
+    }
+
+    @Test
+    public void makesAdminCallsWithTheAdminToken() throws Exception
+    {
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(RecordedRequest request)
+            {
+                if(request.getPath().equals("/token/")) return new MockResponse().setBody("{\"token\":{\"id\":\"admin-token\"}}");
+                if(request.getPath().equals("/admin/user/") && "admin-token".equals(request.getHeader("X-Auth-Token")))
+                    return new MockResponse().setBody("{\"userlist\":[\"alice\",\"bob\"],\"userids\":[7,8]}");
+                return new MockResponse().setResponseCode(403);
+            }
+        });
+        GKAsyncDriver async = new GKAsyncDriver(driver());
+        ArrayList<String> users = async.getUserListAsync().get(2, TimeUnit.SECONDS);
+        assertEquals(2, users.size());
+        assertTrue(users.get(0).contains("alice"));
+        assertTrue(users.get(1).contains("bob"));
+    }
+
+    @Test
+    public void completesOnTheGivenExecutor() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor(task -> new Thread(task, "test-completions"));
+        try
+        {
+            GKAsyncDriver async = new GKAsyncDriver(driver(), executor);
+            server.enqueue(new MockResponse().setResponseCode(200).setHeadersDelay(100, TimeUnit.MILLISECONDS));
+            CompletableFuture<String> thread = async.validateTokenAsync("token-a", 7).thenApply(valid -> Thread.currentThread().getName());
+            assertEquals("test-completions", thread.get(2, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failsWithTheErrorOfTheCall() throws Exception
+    {
+        GKAsyncDriver async = new GKAsyncDriver(driver());
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        try
+        {
+            async.generateTokenAsync(7, "password").get(2, TimeUnit.SECONDS);
+            fail("the i/o error must be raised");
+        }
+        catch (ExecutionException expected)
+        {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        assertEquals("token generation is not repeated", 1, server.getRequestCount());
+    }
+
+    @Test
+    public void cancellingTheFutureCancelsTheCall() throws Exception
+    {
+        //with one request in flight at most, the next call waits for the first unless it was cancelled
+        GKAsyncDriver async = new GKAsyncDriver(driver("gatekeeper.http.maxRequests = 1"));
+        server.enqueue(new MockResponse().setResponseCode(200).setHeadersDelay(3, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> valid = async.validateTokenAsync("token-a", 7);
+        server.takeRequest(2, TimeUnit.SECONDS);
+        long start = System.nanoTime();
+        assertTrue(valid.cancel(true));
+        assertTrue(valid.isCancelled());
+
+        server.enqueue(new MockResponse().setResponseCode(200));
+        assertTrue(async.validateTokenAsync("token-a", 7).get(2, TimeUnit.SECONDS));
+        assertTrue("the cancelled call does not hold the driver", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    }
+}
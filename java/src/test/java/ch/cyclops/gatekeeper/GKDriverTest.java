@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GKDriverTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+    private final List<GKDriver> drivers = new ArrayList<GKDriver>();
+
+    @Before
+    public void startServer() throws Exception
+    {
+        server.start();
+    }
+
+    @After
+    public void stop() throws Exception
+    {
+        for(GKDriver driver : drivers) driver.close();
+        server.shutdown();
+    }
+
+    private GKDriver driver(String... settings) throws Exception
+    {
+        GKDriver driver = TestDrivers.create(server, folder, settings);
+        drivers.add(driver);
+        return driver;
+    }
+
+    @Test
+    public void cachesDefinitiveDenials() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.cache.token.enabled = true");
+        server.enqueue(new MockResponse().setResponseCode(401));
+        assertFalse(driver.validateToken("token-a", 7));
+        assertFalse(driver.validateToken("token-a", 7));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void doesNotCacheThrottledValidations() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.cache.token.enabled = true");
+        server.enqueue(new MockResponse().setResponseCode(429));
+        server.enqueue(new MockResponse().setResponseCode(200));
+        driver.validateToken("token-a", 7);
+        assertTrue(driver.validateToken("token-a", 7));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void answersThrottledValidationsFromTheDegradedMode() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.degraded.enabled = true");
+        server.enqueue(new MockResponse().setResponseCode(200));
+        server.enqueue(new MockResponse().setResponseCode(429));
+        assertTrue(driver.validateToken("token-a", 7));
+        GKDecision decision = driver.validate(TokenCheck.forUser("token-a", 7));
+        assertTrue(decision.isValid());
+        assertTrue(decision.isStale());
+    }
+
+    @Test
+    public void revalidatesStaleDecisionsOnceGatekeeperAnswers() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.degraded.enabled = true", "gatekeeper.degraded.revalidate = 50");
+        server.enqueue(new MockResponse().setResponseCode(200));
+        server.enqueue(new MockResponse().setResponseCode(429));
+        server.enqueue(new MockResponse().setResponseCode(401));
+        assertTrue(driver.validateToken("token-a", 7));
+        assertTrue(driver.validate(TokenCheck.forUser("token-a", 7)).isStale());
+
+        server.takeRequest();
+        server.takeRequest();
+        RecordedRequest revalidation = server.takeRequest(2, TimeUnit.SECONDS);
+        assertNotNull("the stale decision is revalidated in the background", revalidation);
+        assertEquals("/token/validate/token-a", revalidation.getPath());
+
+        server.enqueue(new MockResponse().setResponseCode(429));
+        long deadline = System.currentTimeMillis() + 2000;
+        GKDecision decision = driver.validate(TokenCheck.forUser("token-a", 7));
+        while(decision.isValid() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(20);
+            server.enqueue(new MockResponse().setResponseCode(429));
+            decision = driver.validate(TokenCheck.forUser("token-a", 7));
+        }
+        assertFalse("a token rejected on revalidation is no longer accepted", decision.isValid());
+    }
+
+    @Test
+    public void doesNotRepeatATokenGenerationAfterAnIoError() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.retry.maxAttempts = 3");
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setBody("{\"token\":\"second\"}"));
+        try
+        {
+            driver.generateToken(7, "password");
+            fail("the i/o error must be raised");
+        }
+        catch (IOException expected)
+        {
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void generatesALeasedTokenWithinTheDeadline() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.cache.lease.enabled = true");
+        server.enqueue(new MockResponse().setBody("{\"token\":{\"id\":\"leased\"}}"));
+        CallOptions options = CallOptions.deadline(2, TimeUnit.SECONDS);
+        assertEquals("leased", driver.generateToken(7, "password", options));
+        assertEquals("leased", driver.generateToken(7, "password", options));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void dropsTheLeaseOnceThePasswordChanged() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.cache.lease.enabled = true");
+        server.enqueue(new MockResponse().setBody("{\"token\":{\"id\":\"first\"}}"));
+        server.enqueue(new MockResponse().setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("{\"token\":{\"id\":\"second\"}}"));
+        assertEquals("first", driver.generateToken(7, "password"));
+        assertTrue(driver.updatePassword("7", "password", "first"));
+        assertEquals("second", driver.generateToken(7, "password"));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void returnsTheProbeOfACancelledCall() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.breaker.enabled = true", "gatekeeper.breaker.minimumCalls = 2",
+                "gatekeeper.breaker.open = 50", "gatekeeper.breaker.halfOpenProbes = 1");
+        CircuitBreaker breaker = driver.getCircuitBreakers().get("validation");
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(new MockResponse().setResponseCode(500));
+        assertFalse(driver.simpleAuthentication(7, "password"));
+        assertFalse(driver.simpleAuthentication(7, "password"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.currentState());
+        Thread.sleep(100);
+
+        server.enqueue(new MockResponse().setResponseCode(202).setHeadersDelay(2, TimeUnit.SECONDS));
+        final CallCanceller canceller = new CallCanceller();
+        new Thread(() -> {
+            try
+            {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException ex)
+            {
+                return;
+            }
+            canceller.cancel();
+        }).start();
+        try
+        {
+            driver.simpleAuthentication(7, "password", CallOptions.DEFAULT.cancelledBy(canceller));
+            fail("the call must be cancelled");
+        }
+        catch (CancellationException expected)
+        {
+        }
+
+        server.enqueue(new MockResponse().setResponseCode(202));
+        assertTrue("the probe of the cancelled call is handed out again", driver.simpleAuthentication(7, "password"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+    }
+
+    @Test
+    public void returnsTheProbeOfAFailingCall() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.breaker.enabled = true", "gatekeeper.breaker.minimumCalls = 2",
+                "gatekeeper.breaker.open = 50", "gatekeeper.breaker.halfOpenProbes = 1");
+        CircuitBreaker breaker = driver.getCircuitBreakers().get("validation");
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(new MockResponse().setResponseCode(500));
+        assertFalse(driver.simpleAuthentication(7, "password"));
+        assertFalse(driver.simpleAuthentication(7, "password"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.currentState());
+        Thread.sleep(100);
+
+        try
+        {
+            //a read timeout beyond what OkHttp accepts makes the call throw before any byte is sent
+            driver.simpleAuthentication(7, "password", CallOptions.DEFAULT.withReadTimeout(Long.MAX_VALUE));
+            fail("the call must throw");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+
+        server.enqueue(new MockResponse().setResponseCode(202));
+        assertTrue("the probe of the failed call is handed out again", driver.simpleAuthentication(7, "password"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+    }
+
+    @Test
+    public void coalescesConcurrentValidations() throws Exception
+    {
+        final GKDriver driver = driver();
+        server.enqueue(new MockResponse().setResponseCode(200).setHeadersDelay(500, TimeUnit.MILLISECONDS));
+        List<Thread> callers = new ArrayList<Thread>();
+        final List<Boolean> answers = new CopyOnWriteArrayList<Boolean>();
+        for(int i=0; i<4; i++)
+        {
+            Thread caller = new Thread(() -> {
+                try
+                {
+                    answers.add(driver.validateToken("token-a", 7));
+                }
+                catch (Exception ex)
+                {
+                    answers.add(null);
+                }
+            });
+            callers.add(caller);
+            caller.start();
+        }
+        for(Thread caller : callers) caller.join(2000);
+
+        assertEquals(Arrays.asList(true, true, true, true), answers);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void streamsTheListingsToAConsumer() throws Exception
+    {
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(RecordedRequest request)
+            {
+                if(request.getPath().equals("/token/")) return new MockResponse().setBody("{\"token\":{\"id\":\"admin-token\"}}");
+                if(request.getPath().equals("/admin/user/"))
+                    return new MockResponse().setBody("{\"userids\":[7,8],\"userlist\":[\"alice\",\"bob\"]}");
+                if(request.getPath().equals("/admin/service/"))
+                    return new MockResponse().setBody("{\"servicelist\":{\"id\":[3],\"service-key\":[\"key-a\"],\"shortname\":[\"billing\"]}}");
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+        GKDriver driver = driver();
+
+        List<String> users = new ArrayList<String>();
+        assertTrue(driver.forEachUser(user -> users.add(user.getUsername() + "=" + user.getId())));
+        assertEquals(Arrays.asList("alice=7", "bob=8"), users);
+
+        List<String> services = new ArrayList<String>();
+        assertTrue(driver.forEachService(service -> services.add(service.getShortName() + "=" + service.getKey())));
+        assertEquals(Arrays.asList("billing=key-a"), services);
+
+        assertEquals(Arrays.asList("alice,7", "bob,8"), driver.getUserList());
+        assertEquals(Arrays.asList("billing,key-a,3"), driver.getServiceList());
+    }
+
+    @Test
+    public void refusedListingsAreNotStreamed() throws Exception
+    {
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(RecordedRequest request)
+            {
+                if(request.getPath().equals("/token/")) return new MockResponse().setBody("{\"token\":{\"id\":\"admin-token\"}}");
+                return new MockResponse().setResponseCode(403);
+            }
+        });
+        GKDriver driver = driver();
+        List<GKUser> users = new ArrayList<GKUser>();
+        assertFalse(driver.forEachUser(users::add));
+        assertTrue(users.isEmpty());
+        assertNull(driver.getUserList());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okio.Buffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GKListParserTest
+{
+    private static List<GKUser> users(String json) throws IOException
+    {
+        List<GKUser> users = new ArrayList<GKUser>();
+        GKListParser.parseUsers(new Buffer().writeUtf8(json), users::add);
+        return users;
+    }
+
+    private static List<GKService> services(String json) throws IOException
+    {
+        List<GKService> services = new ArrayList<GKService>();
+        GKListParser.parseServices(new Buffer().writeUtf8(json), services::add);
+        return services;
+    }
+
+    @Test
+    public void parsesUsersInEitherFieldOrder() throws IOException
+    {
+        List<GKUser> users = users("{\"userlist\": [\"alice\", \"bob\"], \"userids\": [7, 8]}");
+        assertEquals(2, users.size());
+        assertEquals("alice", users.get(0).getUsername());
+        assertEquals(8, users.get(1).getId());
+
+        users = users("{\"userids\": [7, 8], \"userlist\": [\"alice\", \"bob\"]}");
+        assertEquals("alice,7", users.get(0).toString());
+        assertEquals("bob,8", users.get(1).toString());
+    }
+
+    @Test
+    public void parsesServicesInAnyFieldOrder() throws IOException
+    {
+        String[] listings = {
+                "{\"servicelist\": {\"shortname\": [\"a\", \"b\"], \"service-key\": [\"k1\", \"k2\"], \"id\": [1, 2]}}",
+                "{\"servicelist\": {\"id\": [1, 2], \"shortname\": [\"a\", \"b\"], \"service-key\": [\"k1\", \"k2\"]}}",
+                "{\"servicelist\": {\"service-key\": [\"k1\", \"k2\"], \"id\": [1, 2], \"shortname\": [\"a\", \"b\"]}}"};
+        for(String listing : listings)
+        {
+            List<GKService> services = services(listing);
+            assertEquals(2, services.size());
+            assertEquals("a,k1,1", services.get(0).toString());
+            assertEquals("b,k2,2", services.get(1).toString());
+        }
+    }
+
+    @Test
+    public void skipsUnknownFields() throws IOException
+    {
+        List<GKUser> users = users("{\"total\": 1, \"userlist\": [\"alice\"], \"meta\": {\"page\": [1]}, \"userids\": [7]}");
+        assertEquals(1, users.size());
+        List<GKService> services = services("{\"servicelist\": {\"shortname\": [\"a\"], \"description\": [\"x\"], \"service-key\": [\"k1\"], \"id\": [1]}}");
+        assertEquals("a,k1,1", services.get(0).toString());
+    }
+
+    @Test
+    public void countsTheRecordsHandedOut() throws IOException
+    {
+        assertEquals(0, GKListParser.parseUsers(new Buffer().writeUtf8("{\"userlist\": [], \"userids\": []}"), user -> fail()));
+        assertEquals(3, GKListParser.parseUsers(
+                new Buffer().writeUtf8("{\"userlist\": [\"a\", \"b\", \"c\"], \"userids\": [1, 2, 3]}"), user -> { }));
+    }
+
+    private static void assertMismatch(String json, boolean services)
+    {
+        try
+        {
+            if(services) services(json);
+            else users(json);
+            fail("arrays of different lengths must fail the parse: " + json);
+        }
+        catch (IOException expected)
+        {
+            assertTrue(expected.getMessage().contains("differ in length"));
+        }
+    }
+
+    @Test
+    public void rejectsUserArraysOfDifferentLengths()
+    {
+        assertMismatch("{\"userlist\": [\"alice\", \"bob\"], \"userids\": [7]}", false);
+        assertMismatch("{\"userids\": [7, 8], \"userlist\": [\"alice\"]}", false);
+        assertMismatch("{\"userlist\": [\"alice\"], \"userids\": [7, 8]}", false);
+        assertMismatch("{\"userlist\": [\"alice\"]}", false);
+    }
+
+    @Test
+    public void rejectsServiceArraysOfDifferentLengths()
+    {
+        assertMismatch("{\"servicelist\": {\"shortname\": [\"a\", \"b\"], \"service-key\": [\"k1\", \"k2\"], \"id\": [1]}}", true);
+        assertMismatch("{\"servicelist\": {\"shortname\": [\"a\"], \"service-key\": [\"k1\", \"k2\"], \"id\": [1, 2]}}", true);
+        assertMismatch("{\"servicelist\": {\"id\": [1, 2], \"shortname\": [\"a\", \"b\"], \"service-key\": [\"k1\", \"k2\", \"k3\"]}}", true);
+        assertMismatch("{\"servicelist\": {\"shortname\": [\"a\"], \"service-key\": [\"k1\"]}}", true);
+    }
+}
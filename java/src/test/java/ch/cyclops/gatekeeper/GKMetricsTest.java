@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GKMetricsTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+    private final List<GKDriver> drivers = new ArrayList<GKDriver>();
+
+    @Before
+    public void startServer() throws Exception
+    {
+        server.start();
+    }
+
+    @After
+    public void stop() throws Exception
+    {
+        for(GKDriver driver : drivers) driver.close();
+        server.shutdown();
+    }
+
+    private GKDriver driver(String... settings) throws Exception
+    {
+        GKDriver driver = TestDrivers.create(server, folder, settings);
+        drivers.add(driver);
+        return driver;
+    }
+
+    @Test
+    public void countsCallsAndStatusesPerOperation() throws Exception
+    {
+        GKDriver driver = driver();
+        server.enqueue(new MockResponse().setResponseCode(200));
+        server.enqueue(new MockResponse().setResponseCode(401));
+        assertTrue(driver.validateToken("token-a", 7));
+        assertFalse(driver.validateToken("token-b", 7));
+
+        OperationMetrics validations = driver.getMetrics().get(GKOperation.VALIDATE_TOKEN_USER);
+        assertEquals(2, validations.getCalls());
+        assertEquals(1, validations.getStatus2xx());
+        assertEquals(1, validations.getStatus4xx());
+        assertEquals(0, validations.getIoErrors());
+        assertEquals(2, validations.getLatency().getCount());
+        assertEquals("other operations are not charged", 0, driver.getMetrics().get(GKOperation.VALIDATE_TOKEN_SERVICE).getCalls());
+    }
+
+    @Test
+    public void countsRetriesAndIoErrors() throws Exception
+    {
+        GKDriver driver = driver("gatekeeper.retry.maxAttempts = 2");
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setResponseCode(200));
+        assertTrue(driver.validateToken("token-a", 7));
+
+        OperationMetrics validations = driver.getMetrics().get(GKOperation.VALIDATE_TOKEN_USER);
+        assertEquals(2, validations.getCalls());
+        assertEquals(1, validations.getIoErrors());
+        assertEquals(1, validations.getRetries());
+        assertEquals(1, validations.getStatus2xx());
+    }
+
+    @Test
+    public void measuresTheTimeToFirstByte() throws Exception
+    {
+        GKDriver driver = driver();
+        server.enqueue(new MockResponse().setResponseCode(200).setHeadersDelay(100, TimeUnit.MILLISECONDS));
+        assertTrue(driver.validateToken("token-a", 7));
+
+        OperationMetrics validations = driver.getMetrics().get(GKOperation.VALIDATE_TOKEN_USER);
+        assertEquals(1, validations.getTimeToFirstByte().getCount());
+        assertTrue(validations.getTimeToFirstByte().getMaxMicros() >= 100000);
+        assertTrue(validations.getLatency().getMaxMicros() >= 100000);
+    }
+
+    @Test
+    public void publishesTheMetricsOverJmxWhenEnabled() throws Exception
+    {
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        GKDriver silent = driver();
+        ObjectName silentName = new ObjectName("ch.cyclops.gatekeeper:type=GKDriver,driver=" + silent.getMetrics().getDriverId()
+                + ",operation=validateTokenByUser");
+        assertFalse(mbeans.isRegistered(silentName));
+
+        GKDriver driver = driver("gatekeeper.metrics.jmx = true");
+        ObjectName name = new ObjectName("ch.cyclops.gatekeeper:type=GKDriver,driver=" + driver.getMetrics().getDriverId()
+                + ",operation=validateTokenByUser");
+        server.enqueue(new MockResponse().setResponseCode(200));
+        assertTrue(driver.validateToken("token-a", 7));
+        assertEquals(1L, mbeans.getAttribute(name, "Calls"));
+
+        driver.close();
+        assertFalse("closing the driver unregisters its MBeans", mbeans.isRegistered(name));
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class InvalidationBusTest
+{
+    private static final Logger logger = Logger.getLogger("gatekeeper-driver.Test");
+    private static final byte[] SECRET = "a secret shared by the fleet".getBytes(StandardCharsets.UTF_8);
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final List<InvalidationBus> buses = new ArrayList<InvalidationBus>();
+
+    @After
+    public void stop()
+    {
+        for(InvalidationBus bus : buses) bus.close();
+        timer.shutdownNow();
+    }
+
+    private InvalidationBus bus(InvalidationTransport transport, Recorder recorder) throws IOException
+    {
+        return bus(transport, recorder, SECRET, 0);
+    }
+
+    private InvalidationBus bus(InvalidationTransport transport, Recorder recorder, byte[] secret, long heartbeatMillis) throws IOException
+    {
+        InvalidationBus bus = new InvalidationBus(transport, recorder, secret, timer, 60000, 1400, heartbeatMillis, logger);
+        buses.add(bus);
+        bus.start();
+        return bus;
+    }
+
+    @Test
+    public void appliesInvalidationsLocallyAndRemotely() throws Exception
+    {
+        Hub hub = new Hub();
+        Recorder local = new Recorder();
+        Recorder remote = new Recorder();
+        InvalidationBus sender = bus(hub.member(), local);
+        InvalidationBus receiver = bus(hub.member(), remote);
+
+        sender.invalidateUser(7);
+        sender.invalidateToken("token-a");
+        sender.invalidateServiceKey("billing-key");
+        assertEquals(Arrays.asList("user 7", "token token-a", "service billing-key"), local.drain(3));
+        assertTrue("invalidations are batched", remote.events.isEmpty());
+
+        sender.flush();
+        assertEquals(Arrays.asList("user 7", "token token-a", "service billing-key"), remote.drain(3));
+        assertEquals(3, receiver.getAppliedInvalidations());
+        assertEquals(0, receiver.getLostMessages());
+        assertTrue(local.events.isEmpty());
+    }
+
+    @Test
+    public void dropsEverythingOnAGap() throws Exception
+    {
+        Hub hub = new Hub();
+        Recorder remote = new Recorder();
+        InvalidationBus sender = bus(hub.member(), new Recorder());
+        InvalidationBus receiver = bus(hub.member(), remote);
+
+        sender.invalidateUser(1);
+        sender.flush();
+        assertEquals(Arrays.asList("user 1"), remote.drain(1));
+
+        hub.dropNext = true;
+        sender.invalidateUser(2);
+        sender.flush();
+        sender.invalidateUser(3);
+        sender.flush();
+
+        assertEquals(Arrays.asList("lost", "user 3"), remote.drain(2));
+        assertEquals(1, receiver.getLostMessages());
+    }
+
+    @Test
+    public void ignoresDuplicatesAndMalformedMessages() throws Exception
+    {
+        Hub hub = new Hub();
+        Recorder remote = new Recorder();
+        InvalidationBus sender = bus(hub.member(), new Recorder());
+        InvalidationBus receiver = bus(hub.member(), remote);
+
+        sender.invalidateUser(1);
+        sender.flush();
+        assertEquals(Arrays.asList("user 1"), remote.drain(1));
+
+        hub.replayLast();
+        hub.deliver(new byte[] {1, 2, 3});
+        assertTrue(remote.events.isEmpty());
+        assertEquals(0, receiver.getLostMessages());
+        assertEquals(1, receiver.getMalformedMessages());
+    }
+
+    @Test
+    public void sendsDigestsInsteadOfTokens() throws Exception
+    {
+        Hub hub = new Hub();
+        Recorder remote = new Recorder();
+        InvalidationBus sender = bus(hub.member(), new Recorder());
+        bus(hub.member(), remote);
+
+        sender.invalidateToken("token-a");
+        sender.invalidateServiceKey("billing-key");
+        sender.flush();
+        assertEquals(Arrays.asList("token token-a", "service billing-key"), remote.drain(2));
+        String sent = new String(hub.last, StandardCharsets.ISO_8859_1);
+        assertFalse(sent.contains("token-a"));
+        assertFalse(sent.contains("billing-key"));
+    }
+
+    @Test
+    public void ignoresForgedMessages() throws Exception
+    {
+        Hub hub = new Hub();
+        Recorder remote = new Recorder();
+        InvalidationBus sender = bus(hub.member(), new Recorder());
+        InvalidationBus receiver = bus(hub.member(), remote);
+        InvalidationBus stranger = bus(hub.member(), new Recorder(), "another secret of 16+ bytes".getBytes(StandardCharsets.UTF_8), 0);
+
+        sender.invalidateUser(1);
+        sender.flush();
+        assertEquals(Arrays.asList("user 1"), remote.drain(1));
+
+        //a far ahead sequence number would otherwise hide the next messages of the sender as late ones
+        byte[] forged = hub.last.clone();
+        ByteBuffer.wrap(forged).putLong(12, Long.MAX_VALUE);
+        hub.deliver(forged);
+        stranger.invalidateUser(2);
+        stranger.flush();
+
+        sender.invalidateUser(3);
+        sender.flush();
+        assertEquals(Arrays.asList("user 3"), remote.drain(1));
+        assertEquals(0, receiver.getLostMessages());
+        assertEquals(2, receiver.getMalformedMessages());
+        assertEquals(1, receiver.getKnownSenders());
+    }
+
+    @Test
+    public void forgetsQuietSenders() throws Exception
+    {
+        Hub hub = new Hub();
+        InvalidationBus quiet = bus(hub.member(), new Recorder(), SECRET, 50);
+        bus(hub.member(), new Recorder(), SECRET, 50);
+        InvalidationBus receiver = bus(hub.member(), new Recorder(), SECRET, 50);
+
+        assertTrue(awaitKnownSenders(receiver, 2));
+        quiet.close();
+        assertTrue("a sender not heard from for three heartbeats is forgotten", awaitKnownSenders(receiver, 1));
+    }
+
+    private static boolean awaitKnownSenders(InvalidationBus bus, int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 2000;
+        while(bus.getKnownSenders() != count && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        return bus.getKnownSenders() == count;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAShortSecret()
+    {
+        new InvalidationBus(new Hub().member(), new Recorder(), new byte[8], timer, 20, 1400, 0, logger);
+    }
+
+    @Test
+    public void detectsGapsOverLoopbackMulticast() throws Exception
+    {
+        NetworkInterface loopback = NetworkInterface.getByName("lo");
+        Assume.assumeTrue(loopback != null && loopback.isUp() && loopback.supportsMulticast());
+        int port;
+        try(DatagramSocket probe = new DatagramSocket(0))
+        {
+            port = probe.getLocalPort();
+        }
+
+        Recorder remote = new Recorder();
+        Dropping lossy = new Dropping(new MulticastTransport("239.255.42.99", port, 0, "lo"));
+        InvalidationBus sender;
+        try
+        {
+            sender = bus(lossy, new Recorder());
+            bus(new MulticastTransport("239.255.42.99", port, 0, "lo"), remote);
+        }
+        catch (IOException ex)
+        {
+            Assume.assumeNoException("multicast is not available on the loopback interface", ex);
+            return;
+        }
+
+        sender.invalidateUser(1);
+        sender.flush();
+        Assume.assumeTrue("multicast datagrams are not looped back", remote.poll() != null);
+
+        lossy.dropNext = true;
+        sender.invalidateUser(2);
+        sender.flush();
+        sender.invalidateToken("token-b");
+        sender.flush();
+        assertEquals(Arrays.asList("lost", "token token-b"), remote.drain(2));
+    }
+
+    /**
+     * In-memory transport connecting all its members, delivers on the sending thread.
+     */
+    private static final class Hub
+    {
+        final List<Consumer<ByteBuffer>> receivers = new CopyOnWriteArrayList<Consumer<ByteBuffer>>();
+        volatile boolean dropNext;
+        volatile byte[] last;
+
+        InvalidationTransport member()
+        {
+            return new InvalidationTransport()
+            {
+                @Override
+                public void start(Consumer<ByteBuffer> receiver)
+                {
+                    receivers.add(receiver);
+                }
+
+                @Override
+                public void send(byte[] message)
+                {
+                    last = message.clone();
+                    if(dropNext)
+                    {
+                        dropNext = false;
+                        return;
+                    }
+                    deliver(message);
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+
+        void deliver(byte[] message)
+        {
+            for(Consumer<ByteBuffer> receiver : receivers) receiver.accept(ByteBuffer.wrap(message.clone()));
+        }
+
+        void replayLast()
+        {
+            deliver(last);
+        }
+    }
+
+    /**
+     * Loses the next message sent when asked to.
+     */
+    private static final class Dropping implements InvalidationTransport
+    {
+        final InvalidationTransport transport;
+        volatile boolean dropNext;
+
+        Dropping(InvalidationTransport transport)
+        {
+            this.transport = transport;
+        }
+
+        @Override
+        public void start(Consumer<ByteBuffer> receiver) throws IOException
+        {
+            transport.start(receiver);
+        }
+
+        @Override
+        public void send(byte[] message) throws IOException
+        {
+            if(dropNext)
+            {
+                dropNext = false;
+                return;
+            }
+            transport.send(message);
+        }
+
+        @Override
+        public void close()
+        {
+            transport.close();
+        }
+    }
+
+    private static final class Recorder implements InvalidationBus.Receiver
+    {
+        static final List<String> CACHED = Arrays.asList("token-a", "token-b", "token-c", "billing-key", "other-key");
+
+        final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void userChanged(int userId)
+        {
+            events.add("user " + userId);
+        }
+
+        @Override
+        public void tokensRevoked(Predicate<String> revoked)
+        {
+            for(String token : CACHED)
+                if(revoked.test(token)) events.add("token " + token);
+        }
+
+        @Override
+        public void serviceKeysChanged(Predicate<String> changed)
+        {
+            for(String serviceKey : CACHED)
+                if(changed.test(serviceKey)) events.add("service " + serviceKey);
+        }
+
+        @Override
+        public void invalidationsLost()
+        {
+            events.add("lost");
+        }
+
+        String poll() throws InterruptedException
+        {
+            return events.poll(2, TimeUnit.SECONDS);
+        }
+
+        List<String> drain(int count) throws InterruptedException
+        {
+            List<String> drained = new ArrayList<String>();
+            while(drained.size() < count)
+            {
+                String event = poll();
+                if(event == null) break;
+                drained.add(event);
+            }
+            return drained;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class KnownGoodTokensTest
+{
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final Logger logger = Logger.getLogger(KnownGoodTokensTest.class);
+
+    @After
+    public void stopTimer()
+    {
+        timer.shutdownNow();
+    }
+
+    private static void await(Set<?> set, int size) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 2000;
+        while(set.size() < size && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    }
+
+    @Test
+    public void forgetsPendingTokensTheCacheEvicted() throws Exception
+    {
+        final Set<TokenCheck> asked = ConcurrentHashMap.newKeySet();
+        Function<TokenCheck, CompletableFuture<Boolean>> upstream = check -> {
+            asked.add(check);
+            return CompletableFuture.completedFuture(true);
+        };
+        try(KnownGoodTokens tokens = new KnownGoodTokens(4, 60000, 500, upstream, timer, logger))
+        {
+            for(int i=0; i<100; i++)
+            {
+                TokenCheck check = TokenCheck.forUser("token-" + i, 7);
+                tokens.record(check, true);
+                assertNotNull(tokens.lookup(check));
+            }
+            await(asked, 4);
+            Thread.sleep(100);
+            assertTrue("revalidated " + asked.size() + " tokens", asked.size() <= 2 * 4 + 1);
+            assertTrue("the last token is still known good", asked.contains(TokenCheck.forUser("token-99", 7)));
+        }
+    }
+
+    @Test
+    public void acceptsConfirmedTokensAsStaleDecisions()
+    {
+        try(KnownGoodTokens tokens = new KnownGoodTokens(4, 60000, 60000, check -> new CompletableFuture<Boolean>(), timer, logger))
+        {
+            TokenCheck check = TokenCheck.forUser("token-a", 7);
+            assertNull("an unknown token is not accepted", tokens.lookup(check));
+            long before = System.currentTimeMillis();
+            tokens.record(check, true);
+            GKDecision decision = tokens.lookup(check);
+            assertTrue(decision.isValid());
+            assertTrue(decision.isStale());
+            assertTrue(decision.getConfirmedAt() >= before);
+            assertNull("another user of the token is not accepted", tokens.lookup(TokenCheck.forUser("token-a", 8)));
+            assertEquals(1, tokens.getStaleDecisionCount());
+
+            tokens.record(check, false);
+            assertNull("a rejected token is forgotten", tokens.lookup(check));
+        }
+    }
+
+    @Test
+    public void forgetsTokensAfterTheStalenessWindow() throws Exception
+    {
+        try(KnownGoodTokens tokens = new KnownGoodTokens(4, 50, 60000, check -> new CompletableFuture<Boolean>(), timer, logger))
+        {
+            TokenCheck check = TokenCheck.forUser("token-a", 7);
+            tokens.record(check, true);
+            assertNotNull(tokens.lookup(check));
+            Thread.sleep(100);
+            assertNull(tokens.lookup(check));
+        }
+    }
+
+    @Test
+    public void revalidatesEveryPendingTokenOnceGatekeeperAnswers() throws Exception
+    {
+        final AtomicBoolean reachable = new AtomicBoolean();
+        final Set<TokenCheck> asked = ConcurrentHashMap.newKeySet();
+        final TokenCheck revoked = TokenCheck.forUser("token-revoked", 7);
+        Function<TokenCheck, CompletableFuture<Boolean>> upstream = check -> {
+            if(!reachable.get()) return CompletableFuture.completedFuture(null);
+            asked.add(check);
+            return CompletableFuture.completedFuture(!check.equals(revoked));
+        };
+        try(KnownGoodTokens tokens = new KnownGoodTokens(16, 60000, 20, upstream, timer, logger))
+        {
+            TokenCheck[] checks = {TokenCheck.forUser("token-a", 7), TokenCheck.forUser("token-b", 7), revoked};
+            for(TokenCheck check : checks)
+            {
+                tokens.record(check, true);
+                assertNotNull(tokens.lookup(check));
+            }
+            Thread.sleep(100);
+            assertTrue("nothing is answered while gatekeeper is unreachable", asked.isEmpty());
+
+            reachable.set(true);
+            await(asked, checks.length);
+            assertEquals(checks.length, asked.size());
+            assertNotNull(tokens.lookup(checks[0]));
+            assertNull("a token gatekeeper rejects on revalidation is forgotten", tokens.lookup(revoked));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest
+{
+    private static void record(LatencyHistogram histogram, long millis, int times)
+    {
+        for(int i=0; i<times; i++) histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void reportsPercentilesWithinTheBucketError()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        record(histogram, 10, 90);
+        record(histogram, 200, 10);
+
+        assertEquals(100, histogram.getCount());
+        long p50 = histogram.getPercentileMicros(50);
+        assertTrue(p50 >= 10000 && p50 <= 10000 * 1.125);
+        long p95 = histogram.getPercentileMicros(95);
+        assertTrue(p95 >= 200000 && p95 <= 200000 * 1.125);
+        assertEquals(200000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void computesPercentilesOfTheValuesRecordedBetweenTwoSnapshots()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        record(histogram, 200, 1000);
+        long[] before = histogram.getCounts();
+        record(histogram, 10, 100);
+        long[] after = histogram.getCounts();
+
+        long[] recent = new long[after.length];
+        for(int i=0; i<after.length; i++) recent[i] = after[i] - before[i];
+        long p95 = LatencyHistogram.percentileOf(recent, 95);
+        assertTrue("older values do not weigh on the window", p95 >= 10000 && p95 <= 10000 * 1.125);
+        assertTrue(histogram.getPercentileMicros(95) >= 200000);
+        assertEquals(0, LatencyHistogram.percentileOf(new long[after.length], 95));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServiceDecisionCacheTest
+{
+    @Test
+    public void keepsDecisionsPerService()
+    {
+        ServiceDecisionCache cache = new ServiceDecisionCache(10, 4, 60000, 60000);
+        cache.put("billing", "token-a", true);
+        cache.put("billing", "token-b", false);
+        cache.put("storage", "token-a", true);
+
+        assertEquals(Boolean.TRUE, cache.get("billing", "token-a"));
+        assertEquals(Boolean.FALSE, cache.get("billing", "token-b"));
+        assertNull(cache.get("storage", "token-b"));
+
+        cache.invalidateToken("token-a");
+        assertNull(cache.get("billing", "token-a"));
+        assertNull(cache.get("storage", "token-a"));
+        cache.invalidateService("billing");
+        assertNull(cache.get("billing", "token-b"));
+    }
+
+    @Test
+    public void admitsServicesOnlyOnceGranted()
+    {
+        ServiceDecisionCache cache = new ServiceDecisionCache(10, 2, 60000, 60000);
+        for(int i=0; i<100; i++) cache.put("bogus-" + i, "token-a", false);
+        assertTrue(cache.getStats().isEmpty());
+        assertNull(cache.get("bogus-0", "token-a"));
+
+        cache.put("billing", "token-a", true);
+        cache.put("storage", "token-a", true);
+        assertEquals(2, cache.getStats().size());
+    }
+
+    @Test
+    public void makesRoomForNewServices() throws InterruptedException
+    {
+        ServiceDecisionCache cache = new ServiceDecisionCache(10, 2, 60000, 60000);
+        cache.put("billing", "token-a", true);
+        Thread.sleep(2);
+        cache.put("storage", "token-a", true);
+        Thread.sleep(2);
+        cache.get("billing", "token-a");
+
+        cache.put("search", "token-a", true);
+        assertEquals("the least recently used service makes room", 2, cache.getStats().size());
+        assertEquals(Boolean.TRUE, cache.get("billing", "token-a"));
+        assertNull(cache.get("storage", "token-a"));
+        assertEquals(Boolean.TRUE, cache.get("search", "token-a"));
+
+        cache.invalidateToken("token-a");
+        cache.put("retired", "token-b", true);
+        cache.put("rotated", "token-b", true);
+        assertEquals(Boolean.TRUE, cache.get("retired", "token-b"));
+        assertEquals(Boolean.TRUE, cache.get("rotated", "token-b"));
+    }
+
+    @Test
+    public void dropsDecisionsTakenBeforeAnInvalidation()
+    {
+        ServiceDecisionCache cache = new ServiceDecisionCache(10, 4, 60000, 60000);
+        long before = cache.generation("billing");
+        cache.invalidateService("billing");
+        cache.put("billing", "token-a", true, before);
+        assertNull("a validation in flight during the rotation does not restore the old key", cache.get("billing", "token-a"));
+        assertTrue(cache.getStats().isEmpty());
+
+        before = cache.generation("billing");
+        cache.invalidateToken("token-b");
+        cache.put("billing", "token-b", true, before);
+        assertNull(cache.get("billing", "token-b"));
+
+        cache.put("billing", "token-a", true, cache.generation("billing"));
+        assertEquals(Boolean.TRUE, cache.get("billing", "token-a"));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest
+{
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @After
+    public void stopCallers()
+    {
+        callers.shutdownNow();
+    }
+
+    /**
+     * Starts a call that blocks until released, and waits until it is in flight.
+     */
+    private <V> Future<V> blockedCall(final SingleFlight<String, V> flights, final CountDownLatch release, final V value)
+            throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<V> leader = callers.submit(() -> flights.execute("key", () -> {
+            started.countDown();
+            release.await();
+            return value;
+        }));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        return leader;
+    }
+
+    @Test
+    public void collapsesConcurrentCalls() throws Exception
+    {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> leader = blockedCall(flights, release, "value");
+        Future<String> waiter = callers.submit(() -> flights.execute("key", () -> "second call"));
+        while(flights.getStats().getCollapsedCount() == 0) Thread.sleep(1);
+
+        release.countDown();
+        assertEquals("value", leader.get(1, TimeUnit.SECONDS));
+        assertEquals("value", waiter.get(1, TimeUnit.SECONDS));
+        assertEquals(1, flights.getStats().getExecutedCount());
+        assertEquals("nothing is remembered", "next", flights.execute("key", () -> "next"));
+    }
+
+    @Test
+    public void sharesCopiesOfMutableResults() throws Exception
+    {
+        SingleFlight<String, ArrayList<String>> flights = new SingleFlight<String, ArrayList<String>>(ArrayList::new);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<ArrayList<String>> leader = blockedCall(flights, release, new ArrayList<String>(Collections.singletonList("a")));
+        Future<ArrayList<String>> waiter = callers.submit(() -> flights.execute("key", ArrayList::new));
+        while(flights.getStats().getCollapsedCount() == 0) Thread.sleep(1);
+
+        release.countDown();
+        ArrayList<String> mine = leader.get(1, TimeUnit.SECONDS);
+        ArrayList<String> theirs = waiter.get(1, TimeUnit.SECONDS);
+        assertEquals(mine, theirs);
+        assertNotSame(mine, theirs);
+    }
+
+    @Test
+    public void sharesFailures() throws Exception
+    {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        CompletableFuture<String> upstream = new CompletableFuture<String>();
+        CompletableFuture<String> leader = flights.executeAsync("key", () -> upstream);
+        CompletableFuture<String> waiter = flights.executeAsync("key", () -> CompletableFuture.completedFuture("second call"));
+
+        upstream.completeExceptionally(new IOException("connection reset"));
+        for(CompletableFuture<String> caller : Arrays.asList(leader, waiter))
+        {
+            try
+            {
+                caller.get(1, TimeUnit.SECONDS);
+                fail("the failure must be shared");
+            }
+            catch (ExecutionException expected)
+            {
+                assertTrue(expected.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void aCancellingLeaderLeavesTheCallToTheWaiters() throws Exception
+    {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        CompletableFuture<String> upstream = new CompletableFuture<String>();
+        CompletableFuture<String> leader = flights.executeAsync("key", () -> upstream);
+        CompletableFuture<String> waiter = flights.executeAsync("key", () -> CompletableFuture.completedFuture("second call"));
+
+        assertTrue(leader.cancel(true));
+        assertFalse("the call is kept for the waiter", upstream.isCancelled());
+        upstream.complete("value");
+        assertEquals("value", waiter.get(1, TimeUnit.SECONDS));
+        assertEquals(1, flights.getStats().getCollapsedCount());
+    }
+
+    @Test
+    public void theCallIsCancelledOnceEveryCallerCancelled() throws Exception
+    {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        CompletableFuture<String> upstream = new CompletableFuture<String>();
+        CompletableFuture<String> leader = flights.executeAsync("key", () -> upstream);
+        CompletableFuture<String> waiter = flights.executeAsync("key", () -> CompletableFuture.completedFuture("second call"));
+
+        waiter.cancel(true);
+        assertFalse(upstream.isCancelled());
+        leader.cancel(true);
+        assertTrue(upstream.isCancelled());
+
+        CompletableFuture<String> next = flights.executeAsync("key", () -> CompletableFuture.completedFuture("new call"));
+        assertEquals("an abandoned call is not joined", "new call", next.get(1, TimeUnit.SECONDS));
+    }
+}
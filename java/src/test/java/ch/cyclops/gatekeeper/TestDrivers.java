@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Creates drivers talking to a MockWebServer.
+ */
+final class TestDrivers
+{
+    private TestDrivers()
+    {
+    }
+
+    /**
+     * @param settings  configuration lines added to the ones pointing the driver at the mock server
+     */
+    static GKDriver create(MockWebServer server, TemporaryFolder folder, String... settings) throws Exception
+    {
+        List<String> lines = new ArrayList<String>();
+        lines.add("gatekeeper.uri = http://" + server.getHostName());
+        lines.add("gatekeeper.port = " + server.getPort());
+        lines.addAll(Arrays.asList(settings));
+        File conf = folder.newFile();
+        Files.write(conf.toPath(), lines, StandardCharsets.UTF_8);
+        return new GKDriver(conf.getPath(), 1, "admin-password");
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.*;
+
+public class TokenLeaseCacheTest
+{
+    private final AtomicInteger minted = new AtomicInteger();
+    private final BiFunction<Integer, String, CompletableFuture<String>> source = (userId, password) ->
+            CompletableFuture.completedFuture(password.equals("wrong") ? null : "token-" + minted.incrementAndGet());
+
+    @Test
+    public void reusesTheTokenOfTheSameCredentials() throws Exception
+    {
+        TokenLeaseCache leases = new TokenLeaseCache(16, 60000, 1000, 5000, source);
+        assertEquals("token-1", leases.getAsync(7, "password").get());
+        assertEquals("token-1", leases.getAsync(7, "password").get());
+        assertEquals(1, minted.get());
+
+        assertEquals("another password gets its own token", "token-2", leases.getAsync(7, "other").get());
+        assertEquals("another user gets its own token", "token-3", leases.getAsync(8, "other").get());
+    }
+
+    @Test
+    public void doesNotLeaseRejectedCredentials() throws Exception
+    {
+        TokenLeaseCache leases = new TokenLeaseCache(16, 60000, 1000, 5000, source);
+        assertNull(leases.getAsync(7, "wrong").get());
+        assertEquals("token-1", leases.getAsync(7, "password").get());
+        assertNull("a wrong password does not get the leased token", leases.getAsync(7, "wrong").get());
+    }
+
+    @Test
+    public void renewsTheTokenAheadOfItsExpiry() throws Exception
+    {
+        //usable for 1s, renewed once 50ms have passed
+        TokenLeaseCache leases = new TokenLeaseCache(16, 1100, 100, 950, source);
+        assertEquals("token-1", leases.getAsync(7, "password").get());
+        Thread.sleep(80);
+        assertEquals("the caller entering the renewal window keeps the current token", "token-1", leases.getAsync(7, "password").get());
+        assertEquals(2, minted.get());
+        assertEquals("token-2", leases.getAsync(7, "password").get());
+        assertEquals(2, minted.get());
+    }
+
+    @Test
+    public void mintsOnceForConcurrentCallers() throws Exception
+    {
+        final CompletableFuture<String> pending = new CompletableFuture<String>();
+        TokenLeaseCache leases = new TokenLeaseCache(16, 60000, 1000, 5000, (userId, password) -> {
+            minted.incrementAndGet();
+            return pending;
+        });
+        CompletableFuture<String> first = leases.getAsync(7, "password");
+        CompletableFuture<String> second = leases.getAsync(7, "password");
+        assertEquals(1, minted.get());
+        pending.complete("token-a");
+        assertEquals("token-a", first.get());
+        assertEquals("token-a", second.get());
+    }
+
+    @Test
+    public void forgetsInvalidatedLeases() throws Exception
+    {
+        TokenLeaseCache leases = new TokenLeaseCache(16, 60000, 1000, 5000, source);
+        leases.getAsync(7, "password").get();
+        leases.getAsync(8, "password").get();
+        leases.invalidate(7);
+        assertEquals("token-3", leases.getAsync(7, "password").get());
+        assertEquals("token-2", leases.getAsync(8, "password").get());
+        leases.invalidateAll();
+        assertEquals("token-4", leases.getAsync(8, "password").get());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ValidationServerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer gatekeeper = new MockWebServer();
+    private final OkHttpClient client = new OkHttpClient();
+    private GKDriver driver;
+    private ValidationServer server;
+
+    @Before
+    public void start() throws Exception
+    {
+        gatekeeper.start();
+        File conf = folder.newFile();
+        Files.write(conf.toPath(), Arrays.asList("gatekeeper.uri = http://" + gatekeeper.getHostName(),
+                "gatekeeper.port = " + gatekeeper.getPort()), StandardCharsets.UTF_8);
+        driver = new GKDriver(conf.getPath(), 1, "admin-password");
+        server = new ValidationServer(driver, "127.0.0.1", 0, 1, 1, 16);
+    }
+
+    @After
+    public void stop() throws Exception
+    {
+        server.close();
+        driver.close();
+        gatekeeper.shutdown();
+        client.dispatcher().executorService().shutdown();
+    }
+
+    private int validate(String token) throws Exception
+    {
+        Request request = new Request.Builder().url("http://127.0.0.1:" + server.getAddress().getPort() + "/validate?uid=7&token=" + token).build();
+        try(Response response = client.newCall(request).execute())
+        {
+            return response.code();
+        }
+    }
+
+    @Test
+    public void answersTokenChecks() throws Exception
+    {
+        gatekeeper.enqueue(new MockResponse().setResponseCode(200));
+        gatekeeper.enqueue(new MockResponse().setResponseCode(401));
+        assertEquals(200, validate("token-a"));
+        assertEquals(401, validate("token-b"));
+    }
+
+    @Test
+    public void refusesRequestsBeyondTheQueue() throws Exception
+    {
+        for(int i=0; i<3; i++) gatekeeper.enqueue(new MockResponse().setHeadersDelay(500, TimeUnit.MILLISECONDS));
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        try
+        {
+            List<Future<Integer>> codes = new ArrayList<Future<Integer>>();
+            for(int i=0; i<3; i++)
+            {
+                final String token = "token-" + i;
+                codes.add(clients.submit(() -> validate(token)));
+                Thread.sleep(50);
+            }
+            List<Integer> answered = new ArrayList<Integer>();
+            for(Future<Integer> code : codes) answered.add(code.get(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(200, 200, 503), answered);
+        }
+        finally
+        {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void hidesTheDetailsOfInternalErrors() throws Exception
+    {
+        File conf = folder.newFile();
+        Files.write(conf.toPath(), Arrays.asList("gatekeeper.uri = http://" + gatekeeper.getHostName(),
+                "gatekeeper.port = " + gatekeeper.getPort()), StandardCharsets.UTF_8);
+        GKDriver failing = new GKDriver(conf.getPath(), 1, "admin-password")
+        {
+            @Override
+            public GKDecision validate(TokenCheck check) throws Exception
+            {
+                throw new IllegalStateException("connection pool of /10.0.0.7 exhausted");
+            }
+        };
+        try(ValidationServer sidecar = new ValidationServer(failing, "127.0.0.1", 0, 1, 1, 16))
+        {
+            Request request = new Request.Builder().url("http://127.0.0.1:" + sidecar.getAddress().getPort() + "/validate?uid=7&token=a").build();
+            try(Response response = client.newCall(request).execute())
+            {
+                assertEquals(500, response.code());
+                assertEquals("{\"error\":\"internal error\"}", response.body().string());
+            }
+        }
+        finally
+        {
+            failing.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016. Zuercher Hochschule fuer Angewandte Wissenschaften
+ *  All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *     not use this file except in compliance with the License. You may obtain
+ *     a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *     WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *     License for the specific language governing permissions and limitations
+ *     under the License.
+ */
+
+/*
+ *     Author: Piyush Harsh,
+ *     URL: piyush-harsh.info
+ */
+package ch.cyclops.gatekeeper;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class WarmSnapshotTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+    private WarmSnapshot snapshot;
+
+    @Before
+    public void createSnapshot()
+    {
+        file = folder.getRoot().toPath().resolve("state").resolve("warm.snapshot");
+        snapshot = new WarmSnapshot(file, 60000, Logger.getLogger("gatekeeper-driver.Test"));
+    }
+
+    private long save() throws IOException
+    {
+        final long later = System.currentTimeMillis() + 60000;
+        final long earlier = System.currentTimeMillis() - 1000;
+        return snapshot.save(sink -> {
+            sink.adminToken("admin-token", later);
+            sink.directory(Collections.singletonList(new GKUser("alice", 7)),
+                    Collections.singletonList(new GKService("billing", "billing-key", 3)), 1234L);
+            sink.tokenDecision("token-a", 7, true, later);
+            sink.tokenDecision("token-b", 0, false, later);
+            sink.tokenDecision("token-c", 7, true, earlier);
+            sink.serviceDecision("billing-key", "token-a", true, later);
+        });
+    }
+
+    @Test
+    public void restoresWhatWasSaved() throws IOException
+    {
+        long size = save();
+        assertEquals(size, Files.size(file));
+        assertFalse(Files.exists(file.resolveSibling("warm.snapshot.tmp")));
+
+        Recorder recorder = new Recorder();
+        assertEquals(6, snapshot.load(recorder));
+        assertEquals(Arrays.asList("admin admin-token", "directory alice#7 billing/billing-key#3 1234",
+                "token token-a 7 true", "token token-b 0 false", "service billing-key token-a true"), recorder.events);
+    }
+
+    @Test
+    public void replacesThePreviousSnapshot() throws IOException
+    {
+        save();
+        snapshot.save(sink -> sink.adminToken("other", System.currentTimeMillis() + 60000));
+        Recorder recorder = new Recorder();
+        assertEquals(1, snapshot.load(recorder));
+        assertEquals(Collections.singletonList("admin other"), recorder.events);
+    }
+
+    @Test
+    public void isReadableByItsOwnerOnly() throws IOException
+    {
+        assumeTrue(folder.getRoot().toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Files.createDirectories(file.getParent());
+        Files.write(file.resolveSibling("warm.snapshot.tmp"), new byte[8]);
+        save();
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+    }
+
+    @Test
+    public void ignoresAMissingFile() throws IOException
+    {
+        assertEquals(-1, snapshot.load(new Recorder()));
+    }
+
+    @Test
+    public void ignoresAnOldSnapshot() throws Exception
+    {
+        save();
+        Thread.sleep(20);
+        WarmSnapshot stale = new WarmSnapshot(file, 10, Logger.getLogger("gatekeeper-driver.Test"));
+        assertEquals(-1, stale.load(new Recorder()));
+    }
+
+    @Test
+    public void ignoresAnotherVersion() throws IOException
+    {
+        save();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[5] = (byte) (WarmSnapshot.VERSION + 1);
+        Files.write(file, bytes);
+        assertEquals(-1, snapshot.load(new Recorder()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsABadChecksum() throws IOException
+    {
+        save();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 0x55;
+        Files.write(file, bytes);
+        snapshot.load(new Recorder());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsATruncatedFile() throws IOException
+    {
+        save();
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        snapshot.load(new Recorder());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAForeignFile() throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[64]);
+        snapshot.load(new Recorder());
+    }
+
+    private static final class Recorder implements WarmSnapshot.Sink
+    {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void adminToken(String token, long expiresAt)
+        {
+            events.add("admin " + token);
+        }
+
+        @Override
+        public void directory(List<GKUser> users, List<GKService> services, long createdAt)
+        {
+            StringBuilder event = new StringBuilder("directory");
+            for(GKUser user : users) event.append(' ').append(user.getUsername()).append('#').append(user.getId());
+            for(GKService service : services)
+                event.append(' ').append(service.getShortName()).append('/').append(service.getKey()).append('#').append(service.getId());
+            events.add(event.append(' ').append(createdAt).toString());
+        }
+
+        @Override
+        public void tokenDecision(String token, int userId, boolean valid, long expiresAt)
+        {
+            events.add("token " + token + " " + userId + " " + valid);
+        }
+
+        @Override
+        public void serviceDecision(String serviceKey, String token, boolean granted, long expiresAt)
+        {
+            events.add("service " + serviceKey + " " + token + " " + granted);
+        }
+    }
+}